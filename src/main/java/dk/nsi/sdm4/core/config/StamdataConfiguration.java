@@ -4,6 +4,7 @@ import dk.nsi.sdm4.core.parser.DirectoryInbox;
 import dk.nsi.sdm4.core.parser.Inbox;
 import dk.nsi.sdm4.core.parser.Parser;
 import dk.nsi.sdm4.core.parser.ParserExecutor;
+import dk.nsi.sdm4.core.parser.RecordPipeline;
 import dk.nsi.sdm4.core.persistence.migration.DbMigrator;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordFetcher;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordPersister;
@@ -110,6 +111,11 @@ public abstract class StamdataConfiguration {
         return new RecordFetcher();
     }
 
+	@Bean
+	public RecordPipeline recordPipeline() {
+		return new RecordPipeline();
+	}
+
 	// This needs the static modifier due to https://jira.springsource.org/browse/SPR-8269. If not static, field jdbcJndiName
 	// will not be set when trying to instantiate the DataSource
 	@Bean
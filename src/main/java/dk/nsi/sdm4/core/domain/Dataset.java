@@ -29,9 +29,11 @@ package dk.nsi.sdm4.core.domain;
 import org.apache.log4j.Logger;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Deprecated
 public class Dataset<T extends TemporalEntity> {
@@ -68,6 +70,10 @@ public class Dataset<T extends TemporalEntity> {
 		return entities.containsKey(id);
 	}
 
+	public Set<Object> getKeys() {
+		return Collections.unmodifiableSet(entities.keySet());
+	}
+
 	public Class<T> getType() {
 		return type;
 	}
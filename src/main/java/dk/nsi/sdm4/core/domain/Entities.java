@@ -24,30 +24,29 @@
  */
 package dk.nsi.sdm4.core.domain;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
-import javax.persistence.Id;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.String.format;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 public final class Entities {
-	private static final Cache<Class<?>, List<Method>> columnCache = CacheBuilder.newBuilder().expireAfterAccess(1, MINUTES).build();
+	private static final ConcurrentMap<Class<?>, List<Method>> columnCache = Maps.newConcurrentMap();
 
 	protected Entities() {
 	}
 
 	public static Object getEntityID(Object entity) {
 		try {
-			return Entities.getIdColumn(entity.getClass()).invoke(entity);
+			return EntityAccessor.of(entity.getClass()).getId(entity);
 		} catch (Exception e) {
 			throw new RuntimeException("Could not get the entity's ID.", e);
 		}
@@ -60,8 +59,8 @@ public final class Entities {
 	 * @return An iterable of columns that are lexically ordered.
 	 */
 	public static List<Method> getColumns(Class<?> type) {
-		if (columnCache.getIfPresent(type) != null) return columnCache.getIfPresent(type);
-		// The code below could be simplified by making the cache use it as loader
+		List<Method> cachedColumns = columnCache.get(type);
+		if (cachedColumns != null) return cachedColumns;
 
 		List<Method> columns = Lists.newArrayList();
 
@@ -69,10 +68,10 @@ public final class Entities {
 			columns.add(method);
 		}
 
-		List<Method> sortedColumns = Ordering.usingToString().sortedCopy(columns);
-		columnCache.put(type, sortedColumns);
+		List<Method> sortedColumns = ImmutableList.copyOf(Ordering.usingToString().sortedCopy(columns));
+		cachedColumns = columnCache.putIfAbsent(type, sortedColumns);
 
-		return sortedColumns;
+		return cachedColumns != null ? cachedColumns : sortedColumns;
 	}
 
 	public static java.lang.String getColumnName(Method column) {
@@ -89,13 +88,10 @@ public final class Entities {
 	}
 
 	public static Method getIdColumn(Class<?> type) {
-		for (Method column : getColumns(type)) {
-			if (column.isAnnotationPresent(Id.class)) {
-				return column;
-			}
-		}
+		Method idMethod = EntityMetadata.of(type).getIdMethod();
+		checkArgument(idMethod != null, format("The type '%s' does not have a method annotated with @Id.", type.getCanonicalName()));
 
-		throw new IllegalArgumentException(format("The type '%s' does not have a method annotated with @Id.", type.getCanonicalName()));
+		return idMethod;
 	}
 
 	public static String getEntityTypeDisplayName(Class<?> type) {
@@ -105,14 +101,7 @@ public final class Entities {
 	}
 
 	public static List<Method> getOutputMethods(Class<? extends TemporalEntity> type) {
-		Method[] methods = type.getMethods();
-		List<Method> outputMethods = Lists.newArrayList();
-
-		for (Method method : methods) {
-			if (method.isAnnotationPresent(Column.class)) outputMethods.add(method);
-		}
-
-		return outputMethods;
+		return EntityMetadata.of(type).getColumnMethods();
 	}
 
 	/**
@@ -137,18 +126,10 @@ public final class Entities {
 	 *         StamdataEntity type
 	 */
 	public static Method getIdMethod(Class<?> type) {
-		Method[] allMethods = type.getMethods();
-
-		for (Method method : allMethods) {
-			if (method.isAnnotationPresent(Id.class)) {
-				return method;
-			}
-		}
-
-		return null;
+		return EntityMetadata.of(type).getIdMethod();
 	}
 
 	public static String getIdColumnName(Class<?> entityType) {
-		return getOutputFieldName(getIdMethod(entityType));
+		return EntityMetadata.of(entityType).getIdColumnName();
 	}
 }
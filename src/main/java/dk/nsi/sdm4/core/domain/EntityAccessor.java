@@ -0,0 +1,147 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import com.google.common.base.Throwables;
+import net.sf.cglib.core.CodeGenerationException;
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads the id and the column values of entities of a type without reflection.
+ * <p/>
+ * The getters are called through a class generated by cglib, which calls them directly, instead of
+ * {@link Method#invoke}. Types cglib can not generate a class for, eg. types that are not public, are read by
+ * reflection.
+ */
+public final class EntityAccessor {
+	private static final Logger logger = Logger.getLogger(EntityAccessor.class);
+
+	private final Class<?> type;
+	private final Method idMethod;
+	private final List<Method> columnMethods;
+	private final FastMethod fastIdMethod;
+	private final FastMethod[] fastColumnMethods;
+
+	EntityAccessor(Class<?> type, Method idMethod, List<Method> columnMethods) {
+		this.type = type;
+		this.idMethod = idMethod;
+		this.columnMethods = columnMethods;
+
+		FastClass fastClass = createFastClass(type);
+		if (fastClass != null) {
+			fastIdMethod = idMethod != null ? fastClass.getMethod(idMethod) : null;
+			fastColumnMethods = new FastMethod[columnMethods.size()];
+			for (int i = 0; i < fastColumnMethods.length; i++) {
+				fastColumnMethods[i] = fastClass.getMethod(columnMethods.get(i));
+			}
+		} else {
+			fastIdMethod = null;
+			fastColumnMethods = null;
+		}
+	}
+
+	/**
+	 * @return the accessor of an entity type, kept in its {@link EntityMetadata}
+	 */
+	public static EntityAccessor of(Class<?> type) {
+		return EntityMetadata.of(type).getAccessor();
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public Method getIdMethod() {
+		return idMethod;
+	}
+
+	/**
+	 * @return the getters annotated with {@link javax.persistence.Column}, in the order of {@link #getColumnValues}
+	 */
+	public List<Method> getColumnMethods() {
+		return columnMethods;
+	}
+
+	public Object getId(Object entity) {
+		checkArgument(idMethod != null, "The type '%s' does not have a method annotated with @Id.", type.getCanonicalName());
+		return fastIdMethod != null ? invoke(fastIdMethod, entity) : invoke(idMethod, entity);
+	}
+
+	/**
+	 * @return the values of all columns of the entity, in the order of {@link #getColumnMethods()}
+	 */
+	public Object[] getColumnValues(Object entity) {
+		Object[] values = new Object[columnMethods.size()];
+		if (fastColumnMethods != null) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = invoke(fastColumnMethods[i], entity);
+			}
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = invoke(columnMethods.get(i), entity);
+			}
+		}
+		return values;
+	}
+
+	private static FastClass createFastClass(Class<?> type) {
+		if (!Modifier.isPublic(type.getModifiers())) {
+			return null;
+		}
+		try {
+			return FastClass.create(type);
+		} catch (CodeGenerationException e) {
+			logger.warn("Could not generate accessor of " + type + ", its getters are called by reflection", e);
+			return null;
+		}
+	}
+
+	private static Object invoke(FastMethod method, Object entity) {
+		try {
+			return method.invoke(entity, null);
+		} catch (InvocationTargetException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	private static Object invoke(Method method, Object entity) {
+		try {
+			return method.invoke(entity);
+		} catch (InvocationTargetException e) {
+			throw Throwables.propagate(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Could not call " + method, e);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+import javax.persistence.Column;
+import javax.persistence.Id;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What the legacy persistence needs to know about an entity type, found by reflection once per type and kept for
+ * the life of the class loader.
+ */
+public final class EntityMetadata {
+	private static final ConcurrentMap<Class<?>, EntityMetadata> registry = Maps.newConcurrentMap();
+
+	private final Class<?> type;
+	private final String tableName;
+	private final Method idMethod;
+	private final String idColumnName;
+	private final List<Method> columnMethods;
+	private final List<String> columnNames;
+	private final EntityAccessor accessor;
+
+	// read from the database by the first DatabaseTableWrapper of the type
+	private volatile List<String> notUpdatedColumns;
+	private volatile Optional<String> primaryKeyColumn;
+
+	private EntityMetadata(Class<?> type) {
+		this.type = type;
+		this.tableName = Entities.getEntityTypeDisplayName(type);
+
+		Method id = null;
+		for (Method method : Ordering.usingToString().sortedCopy(ImmutableList.copyOf(type.getMethods()))) {
+			if (method.isAnnotationPresent(Id.class)) {
+				id = method;
+				break;
+			}
+		}
+		this.idMethod = id;
+		this.idColumnName = id != null ? Entities.getOutputFieldName(id) : null;
+
+		ImmutableList.Builder<Method> columns = ImmutableList.builder();
+		ImmutableList.Builder<String> names = ImmutableList.builder();
+		for (Method method : type.getMethods()) {
+			if (method.isAnnotationPresent(Column.class)) {
+				columns.add(method);
+				names.add(Entities.getColumnName(method));
+			}
+		}
+		this.columnMethods = columns.build();
+		this.columnNames = names.build();
+
+		this.accessor = new EntityAccessor(type, idMethod, columnMethods);
+	}
+
+	/**
+	 * @return the metadata of an entity type, found the first time it is asked for
+	 */
+	public static EntityMetadata of(Class<?> type) {
+		EntityMetadata metadata = registry.get(type);
+		if (metadata == null) {
+			EntityMetadata created = new EntityMetadata(type);
+			metadata = registry.putIfAbsent(type, created);
+			if (metadata == null) {
+				metadata = created;
+			}
+		}
+		return metadata;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return the getter annotated with {@link Id}, or null if there is none
+	 */
+	public Method getIdMethod() {
+		return idMethod;
+	}
+
+	public String getIdColumnName() {
+		return idColumnName;
+	}
+
+	/**
+	 * @return the getters annotated with {@link Column}, in the order used for all statements of the type
+	 */
+	public List<Method> getColumnMethods() {
+		return columnMethods;
+	}
+
+	/**
+	 * @return the names of the columns of {@link #getColumnMethods()}, in the same order
+	 */
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+
+	public EntityAccessor getAccessor() {
+		return accessor;
+	}
+
+	/**
+	 * Returns the columns of the table that are not set by the entity. Entities don't have to be complete, they can
+	 * update only parts of a table, and then the rest have to be copied as not changed. The table is described the
+	 * first time this is called.
+	 */
+	public List<String> getNotUpdatedColumns(Connection connection) throws SQLException {
+		List<String> columns = notUpdatedColumns;
+		if (columns == null) {
+			columns = findNotUpdatedColumns(connection);
+			notUpdatedColumns = columns;
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the column of the primary key of the table, usually its PID column, which tells the versions of an
+	 * entity apart. The table is described the first time this is called.
+	 * @return the column, or null if the table has no primary key or one of several columns
+	 */
+	public String getPrimaryKeyColumn(Connection connection) throws SQLException {
+		Optional<String> column = primaryKeyColumn;
+		if (column == null) {
+			column = findPrimaryKeyColumn(connection);
+			primaryKeyColumn = column;
+		}
+		return column.orNull();
+	}
+
+	private Optional<String> findPrimaryKeyColumn(Connection connection) throws SQLException {
+		List<String> keyColumns = Lists.newArrayList();
+		Statement stm = connection.createStatement();
+		try {
+			ResultSet rs = stm.executeQuery("desc " + tableName);
+			while (rs.next()) {
+				if ("PRI".equalsIgnoreCase(rs.getString("Key"))) {
+					keyColumns.add(rs.getString("Field"));
+				}
+			}
+			rs.close();
+		} finally {
+			stm.close();
+		}
+		return keyColumns.size() == 1 ? Optional.of(keyColumns.get(0)) : Optional.<String>absent();
+	}
+
+	private List<String> findNotUpdatedColumns(Connection connection) throws SQLException {
+		// NOTE: The only reason why this exists is because
+		// the Person table spans several entities.
+
+		ImmutableList.Builder<String> results = ImmutableList.builder();
+		Statement stm = connection.createStatement();
+		try {
+			ResultSet rs = stm.executeQuery("desc " + tableName);
+
+			while (rs.next()) {
+				String colName = rs.getString(1);
+
+				// Ignore all system columns
+
+				if (colName.toUpperCase().indexOf("PID") > 0)
+					continue;
+				if (colName.equalsIgnoreCase("ModifiedDate"))
+					continue;
+				if (colName.equalsIgnoreCase("CreatedDate"))
+					continue;
+				if (colName.equalsIgnoreCase("ValidFrom"))
+					continue;
+				if (colName.equalsIgnoreCase("ValidTo"))
+					continue;
+
+				boolean found = false;
+				for (Method method : columnMethods) {
+					// Ignore the columns that are updated by the entity
+
+					if (colName.equalsIgnoreCase(Entities.getOutputFieldName(method))) {
+						found = true;
+					}
+				}
+
+				if (!found) {
+					results.add(colName);
+				}
+			}
+
+			rs.close();
+		} finally {
+			stm.close();
+		}
+
+		return results.build();
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The keys of the entities of a data set, without the entities.
+ * <p/>
+ * Integral keys (Long, Integer, Short and Byte) are kept in a sorted long array, 8 bytes per key, and looked up by
+ * binary search. They are compared by value whatever their boxed type, so an Integer key matches a Long key with the
+ * same value, unlike with {@link Long#equals}. Other keys, eg. strings, are kept in a hash set.
+ */
+public class KeySet implements Iterable<Object> {
+	private long[] numbers = new long[1024];
+	private int numberCount;
+	private boolean sorted = true;
+	private int duplicates;
+
+	private final Set<Object> others = Sets.newHashSet();
+
+	public void add(Object key) {
+		if (isIntegral(key)) {
+			if (numberCount == numbers.length) {
+				numbers = Arrays.copyOf(numbers, numbers.length + (numbers.length >> 1));
+			}
+			long number = ((Number) key).longValue();
+			if (sorted && numberCount > 0 && number <= numbers[numberCount - 1]) {
+				sorted = false;
+			}
+			numbers[numberCount++] = number;
+		} else if (!others.add(key)) {
+			duplicates++;
+		}
+	}
+
+	public boolean contains(Object key) {
+		if (isIntegral(key)) {
+			sort();
+			return Arrays.binarySearch(numbers, 0, numberCount, ((Number) key).longValue()) >= 0;
+		}
+		return others.contains(key);
+	}
+
+	/**
+	 * @return number of distinct keys
+	 */
+	public int size() {
+		sort();
+		return numberCount + others.size();
+	}
+
+	/**
+	 * @return number of keys added more than once
+	 */
+	public int getDuplicates() {
+		sort();
+		return duplicates;
+	}
+
+	/**
+	 * Iterates over the distinct keys, integral keys as Long. The set must not be changed while iterating.
+	 */
+	@Override
+	public Iterator<Object> iterator() {
+		sort();
+		Iterator<Object> numberIterator = new AbstractIterator<Object>() {
+			private int index;
+
+			@Override
+			protected Object computeNext() {
+				return index < numberCount ? (Object) numbers[index++] : endOfData();
+			}
+		};
+		return Iterators.concat(numberIterator, Iterators.unmodifiableIterator(others.iterator()));
+	}
+
+	private void sort() {
+		if (sorted) {
+			return;
+		}
+
+		Arrays.sort(numbers, 0, numberCount);
+		int distinct = numberCount == 0 ? 0 : 1;
+		for (int i = 1; i < numberCount; i++) {
+			if (numbers[i] != numbers[distinct - 1]) {
+				numbers[distinct++] = numbers[i];
+			}
+		}
+		duplicates += numberCount - distinct;
+		numberCount = distinct;
+		sorted = true;
+	}
+
+	private static boolean isIntegral(Object key) {
+		return key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte;
+	}
+}
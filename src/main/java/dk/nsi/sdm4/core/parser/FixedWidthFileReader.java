@@ -0,0 +1,227 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.base.Preconditions;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the lines of a fixed width data file as views into a memory mapping of the file, for
+ * {@link SingleLineRecordParser#parseLine(ByteBuffer)}. The contents of the file are never copied to the heap, which
+ * matters for register files of several GB.
+ * <p/>
+ * Every line must have the accepted line length of the record specification followed by the same line terminator,
+ * \n or \r\n (found from the first line), except the last line which may be unterminated. Trailing blank bytes
+ * after the last line, like an end of file marker, are ignored.
+ * <p/>
+ * Files larger than 2GB are mapped in several segments, each holding a whole number of lines.
+ * The mappings are released by the garbage collector, there is no way to unmap them explicitly.
+ * A reader must only be used by one thread.
+ */
+public class FixedWidthFileReader implements Closeable {
+    private static final int MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    private static final byte END_OF_FILE_MARKER = 0x1A;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final int lineLength;
+    private final int terminatorLength;
+    private final int stride;
+    private final long segmentBytes;
+    private final long lineCount;
+
+    private long nextLine = 0;
+    private long segmentStartLine = -1;
+    private ByteBuffer segment;
+
+    public FixedWidthFileReader(File file, RecordSpecification specification) throws IOException {
+        this(file, specification.acceptedTotalLineLength());
+    }
+
+    public FixedWidthFileReader(File file, int lineLength) throws IOException {
+        this(file, lineLength, MAX_SEGMENT_BYTES);
+    }
+
+    FixedWidthFileReader(File file, int lineLength, int maxSegmentBytes) throws IOException {
+        Preconditions.checkArgument(lineLength > 0, "lineLength must be positive, was %s", lineLength);
+        this.file = file;
+        this.lineLength = lineLength;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            this.channel = randomAccessFile.getChannel();
+            this.fileLength = channel.size();
+            this.terminatorLength = findTerminatorLength();
+            this.stride = lineLength + terminatorLength;
+            Preconditions.checkArgument(maxSegmentBytes >= stride, "Segments must hold at least one line");
+            this.segmentBytes = (maxSegmentBytes / stride) * (long) stride;
+            this.lineCount = countLines();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of lines in the file
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return number of the line returned by the next call to {@link #next()}, counting from 0
+     */
+    public long getLineNumber() {
+        return nextLine;
+    }
+
+    /**
+     * @return byte offset in the file of the line returned by the next call to {@link #next()}
+     */
+    public long getPosition() {
+        return nextLine * stride;
+    }
+
+    /**
+     * Continues reading from a byte offset found by {@link #getPosition()}, ie. the start of a line
+     */
+    public void seek(long position) {
+        Preconditions.checkArgument(position >= 0 && position % stride == 0 && position / stride <= lineCount,
+                "Position %s is not the start of a line in %s", position, file);
+        nextLine = position / stride;
+    }
+
+    /**
+     * Continues reading from a line, counting from 0
+     */
+    public void seekToLine(long lineNumber) {
+        Preconditions.checkArgument(lineNumber >= 0 && lineNumber <= lineCount,
+                "Line %s is not in %s", lineNumber, file);
+        nextLine = lineNumber;
+    }
+
+    public boolean hasNext() {
+        return nextLine < lineCount;
+    }
+
+    /**
+     * Returns the next line, without its terminator, as the bytes between position and limit of a buffer.
+     * The buffer is reused, so it is only valid until the next call.
+     * @throws ParserException if the line is not followed by the line terminator, ie. has a wrong length
+     */
+    public ByteBuffer next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more lines in " + file);
+        }
+
+        long line = nextLine++;
+        long linesPerSegment = segmentBytes / stride;
+        if (segment == null || line < segmentStartLine || line >= segmentStartLine + linesPerSegment) {
+            mapSegmentOf(line, linesPerSegment);
+        }
+
+        int start = (int) ((line - segmentStartLine) * stride);
+        int end = start + lineLength;
+        segment.clear(); // absolute gets are limited by the limit of the previous line
+        if (line < lineCount - 1 && !hasTerminatorAt(segment, end)) {
+            throw new ParserException("Line " + (line + 1) + " of " + file + " does not have the length " + lineLength);
+        }
+        segment.limit(end);
+        segment.position(start);
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        randomAccessFile.close();
+    }
+
+    private void mapSegmentOf(long line, long linesPerSegment) throws IOException {
+        segmentStartLine = (line / linesPerSegment) * linesPerSegment;
+        long start = segmentStartLine * stride;
+        long size = Math.min(segmentBytes, fileLength - start);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        segment = mapped.duplicate();
+    }
+
+    private int findTerminatorLength() throws IOException {
+        if (fileLength <= lineLength) {
+            return 1; // at most one line, the terminator does not matter
+        }
+        ByteBuffer afterFirstLine = ByteBuffer.allocate(2);
+        channel.read(afterFirstLine, lineLength);
+        if (afterFirstLine.get(0) == '\r' && afterFirstLine.position() > 1 && afterFirstLine.get(1) == '\n') {
+            return 2;
+        } else if (afterFirstLine.get(0) == '\n') {
+            return 1;
+        }
+        throw new ParserException("First line of " + file + " does not have the length " + lineLength);
+    }
+
+    private long countLines() throws IOException {
+        long lines = fileLength / stride;
+        int remainder = (int) (fileLength % stride);
+        if (remainder >= lineLength) {
+            // an unterminated last line, possibly followed by an end of file marker
+            lines++;
+            remainder -= lineLength;
+        }
+
+        if (remainder > 0) {
+            ByteBuffer trailing = ByteBuffer.allocate(remainder);
+            channel.read(trailing, fileLength - remainder);
+            for (int i = 0; i < remainder; i++) {
+                byte b = trailing.get(i);
+                if ((b & 0xFF) > ' ' && b != END_OF_FILE_MARKER) {
+                    throw new ParserException("The last line of " + file + " does not have the length " + lineLength);
+                }
+            }
+        }
+        return lines;
+    }
+
+    // the last line needs no check, what follows it has been checked by countLines
+    private boolean hasTerminatorAt(ByteBuffer buffer, int index) {
+        if (terminatorLength == 2) {
+            return buffer.get(index) == '\r' && buffer.get(index + 1) == '\n';
+        }
+        return buffer.get(index) == '\n';
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.base.Preconditions;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Parses a fixed width data file on several threads and hands the records to a {@link RecordHandler} on the calling
+ * thread, in the order of the file. The handler can therefore persist the records in the transaction of the caller.
+ * <p/>
+ * The file is parsed by the reader and parser stages of a {@link RecordPipeline}, with the handler as its writer.
+ * Each worker is at most {@link #CHUNKS_AHEAD} chunks ahead, so the number of parsed records waiting for the handler is
+ * bounded.
+ */
+public class ParallelRecordParser {
+    public static final int DEFAULT_CHUNK_LINES = 10000;
+    static final int CHUNKS_AHEAD = 2;
+
+    private final RecordSpecification recordSpecification;
+    private final Charset charset;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int chunkLines = DEFAULT_CHUNK_LINES;
+
+    public ParallelRecordParser(RecordSpecification recordSpecification) {
+        this(recordSpecification, SingleLineRecordParser.DEFAULT_CHARSET);
+    }
+
+    public ParallelRecordParser(RecordSpecification recordSpecification, Charset charset) {
+        this.recordSpecification = recordSpecification;
+        this.charset = charset;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @param workers number of parsing threads, defaults to the number of processors
+     */
+    public void setWorkers(int workers) {
+        Preconditions.checkArgument(workers > 0, "workers must be positive, was %s", workers);
+        this.workers = workers;
+    }
+
+    public int getChunkLines() {
+        return chunkLines;
+    }
+
+    public void setChunkLines(int chunkLines) {
+        Preconditions.checkArgument(chunkLines > 0, "chunkLines must be positive, was %s", chunkLines);
+        this.chunkLines = chunkLines;
+    }
+
+    /**
+     * Parses all lines of a file, handing the records to the handler in the order of the file.
+     * If parsing or the handler fails, the workers are stopped and the exception is thrown.
+     * @return number of records handled
+     * @throws ParserException if a line can not be parsed or the handler throws an exception
+     */
+    public long parse(File file, RecordHandler handler) throws IOException {
+        RecordPipeline pipeline = new RecordPipeline();
+        pipeline.setParserThreads(workers);
+        pipeline.setChunkLines(chunkLines);
+        pipeline.setChunksInFlight(CHUNKS_AHEAD * workers);
+        pipeline.setCharset(charset);
+        return pipeline.process(file, recordSpecification, handler);
+    }
+}
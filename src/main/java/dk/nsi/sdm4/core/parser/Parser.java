@@ -53,6 +53,9 @@ public interface Parser {
 	 * </ol>
 	 * <p/>
 	 * You should only log on DEBUG level. See {@linkplain Parser parser}.
+	 * <p/>
+	 * Fixed width data files can be parsed and persisted with {@link RecordPipeline}, which parses on other threads
+	 * while the records are persisted in the transaction of the calling {@link ParserExecutor}.
 	 *
 	 * @param dataSet the root directory of the file set. Data files are contained within the directory.
      * @param identifier identifer for this "parse run"
@@ -2,6 +2,7 @@ package dk.nsi.sdm4.core.parser;
 
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordFetcher;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordPersister;
+import dk.nsi.sdm4.core.status.ImportCheckpointRepository;
 import dk.nsi.sdm4.core.status.ImportStatusRepository;
 import dk.sdsd.nsp.slalog.api.SLALogItem;
 import dk.sdsd.nsp.slalog.api.SLALogger;
@@ -40,6 +41,10 @@ public class ParserExecutor {
 	@Autowired
 	private SLALogger slaLogger;
 
+	// only parsers committing their imports in chunks have checkpoints
+	@Autowired(required = false)
+	ImportCheckpointRepository importCheckpointRepo;
+
 	protected static Logger logger = Logger.getLogger(ParserExecutor.class); // we need to be able to test the logging behaviour, therefore this field is not private and not final
 
 	@Scheduled(fixedDelay = 1000)
@@ -71,8 +76,19 @@ public class ParserExecutor {
                     recordFetcher.setTransactionTime(recordPersister.getTransactionTime());
 
 					importStatusRepo.importStartedAt(new DateTime());
+					if (importCheckpointRepo != null) {
+						importCheckpointRepo.discardOtherDatasets(dataSet.getName());
+					}
 					parser.process(dataSet, runIdentifier);
 
+					// Send records the parser has queued for batched inserts
+					recordPersister.flush();
+
+					// Make records committed in chunks visible in the same transaction as the rest of the import
+					if (importCheckpointRepo != null) {
+						importCheckpointRepo.publish(dataSet.getName(), recordPersister.getTransactionTime());
+					}
+
 					// Once the import is complete
 					// we can remove the data set
 					// from the inbox.
@@ -89,6 +105,9 @@ public class ParserExecutor {
 				}
 			}
 		} catch (Exception e) {
+			// the transaction rolls back, so records still queued must not reach the next run
+			recordPersister.clearBatch();
+
 			try {
 				inbox.lock();
 			} catch (RuntimeException lockExc) {
@@ -0,0 +1,471 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import dk.nsi.sdm4.core.persistence.recordpersister.Record;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordPersister;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.UpdateExistingRecordPersister;
+import dk.nsi.sdm4.core.status.ImportCheckpoint;
+import dk.nsi.sdm4.core.status.ImportCheckpointRepository;
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports a fixed width data file in three stages connected by bounded queues:
+ * <ol>
+ *     <li>a reader thread copies chunks of whole lines out of the file,</li>
+ *     <li>parser threads turn the chunks into records,</li>
+ *     <li>the calling thread writes the records, in the order of the file.</li>
+ * </ol>
+ * Parsing therefore overlaps with the database work of the writer, while the writer stays on the thread of
+ * {@link ParserExecutor}, in its transaction. An import still commits or rolls back as a whole.
+ * <p/>
+ * At most {@link #getChunksInFlight()} chunks are between the reader and the writer at any time. When the writer falls
+ * behind, the reader waits for it, so memory use does not depend on the size of the file.
+ * <p/>
+ * If the parser has an {@link ImportCheckpointRepository}, {@link #persist} commits every
+ * {@link #getCommitInterval()} records in a transaction of its own, together with a checkpoint. An import that fails
+ * continues from the checkpoint when it is run again, and the committed records stay hidden until
+ * {@link ParserExecutor} publishes them at the end of the import. Only a {@link RecordPersister} inserting new rows can
+ * commit in chunks, an {@link UpdateExistingRecordPersister} persists in the import transaction.
+ */
+public class RecordPipeline {
+    private static final Logger log = Logger.getLogger(RecordPipeline.class);
+
+    public static final int DEFAULT_CHUNK_LINES = 5000;
+    public static final int DEFAULT_COMMIT_INTERVAL = 100000;
+
+    @Autowired
+    RecordPersister recordPersister;
+
+    @Autowired(required = false)
+    ImportCheckpointRepository checkpoints;
+
+    @Autowired(required = false)
+    PlatformTransactionManager transactionManager;
+
+    private int parserThreads = Runtime.getRuntime().availableProcessors();
+    private int chunkLines = DEFAULT_CHUNK_LINES;
+    private int chunksInFlight = 2 * parserThreads + 2;
+    private Charset charset = SingleLineRecordParser.DEFAULT_CHARSET;
+    private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+
+    public int getParserThreads() {
+        return parserThreads;
+    }
+
+    /**
+     * @param parserThreads number of threads in the parser stage, defaults to the number of processors
+     */
+    public void setParserThreads(int parserThreads) {
+        Preconditions.checkArgument(parserThreads > 0, "parserThreads must be positive, was %s", parserThreads);
+        this.parserThreads = parserThreads;
+    }
+
+    public int getChunkLines() {
+        return chunkLines;
+    }
+
+    public void setChunkLines(int chunkLines) {
+        Preconditions.checkArgument(chunkLines > 0, "chunkLines must be positive, was %s", chunkLines);
+        this.chunkLines = chunkLines;
+    }
+
+    public int getChunksInFlight() {
+        return chunksInFlight;
+    }
+
+    /**
+     * @param chunksInFlight number of chunks read, but not yet written, before the reader waits for the writer.
+     *                       Defaults to two per processor plus two
+     */
+    public void setChunksInFlight(int chunksInFlight) {
+        Preconditions.checkArgument(chunksInFlight > 0, "chunksInFlight must be positive, was %s", chunksInFlight);
+        this.chunksInFlight = chunksInFlight;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * @param commitInterval number of records committed at a time when the parser has an
+     *                       {@link ImportCheckpointRepository}, 0 to persist everything in the import transaction.
+     *                       The records are committed after whole chunks, so a commit can hold up to
+     *                       {@link #getChunkLines()} - 1 records more.
+     */
+    public void setCommitInterval(int commitInterval) {
+        Preconditions.checkArgument(commitInterval >= 0, "commitInterval must not be negative, was %s", commitInterval);
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Parses a file and queues its records for batched inserts with the {@link RecordPersister} of the calling thread.
+     * The batch is flushed before returning.
+     * <p/>
+     * Committing in chunks needs a {@link PlatformTransactionManager}, and a {@link RecordPersister} that only inserts
+     * rows, as the rows an {@link UpdateExistingRecordPersister} closes could not be published or discarded.
+     * @param dataSet name of the data set the file belongs to, ie. of the directory given to {@link Parser#process},
+     *                which {@link ParserExecutor} publishes the checkpointed records of
+     * @return number of records persisted, not counting records committed by an earlier run
+     * @throws ParserException if a line can not be parsed or a record can not be persisted
+     * @throws IllegalStateException if committing in chunks without a {@link PlatformTransactionManager} or with an
+     *                               {@link UpdateExistingRecordPersister}
+     */
+    public long persist(File file, String dataSet, final RecordSpecification specification) throws IOException {
+        RecordHandler writer = new RecordHandler() {
+            @Override
+            public void handle(Record record) throws Exception {
+                recordPersister.persistBatched(record, specification);
+            }
+        };
+
+        if (checkpoints == null || commitInterval == 0) {
+            long count = process(file, specification, writer);
+            recordPersister.flush();
+            return count;
+        }
+        Preconditions.checkState(transactionManager != null,
+                "Committing every %s records needs a PlatformTransactionManager, set commitInterval to 0 to persist in the import transaction",
+                commitInterval);
+        // publish and discard only know the rows inserted by the import, not the rows it closes
+        Preconditions.checkState(!(recordPersister instanceof UpdateExistingRecordPersister),
+                "UpdateExistingRecordPersister can not commit in chunks, set commitInterval to 0 to persist in the import transaction");
+
+        ImportCheckpoint checkpoint = checkpoints.getCheckpoint(dataSet, file.getName());
+        long startPosition = checkpoint == null ? 0 : checkpoint.getByteOffset();
+        if (checkpoint != null && log.isDebugEnabled()) {
+            log.debug("Continuing " + file + " from byte " + startPosition);
+        }
+
+        // records queued earlier belong to the import transaction, not to the first chunk
+        recordPersister.flush();
+        Instant transactionTime = recordPersister.getTransactionTime();
+        recordPersister.setTransactionTime(ImportCheckpoint.UNPUBLISHED);
+        ChunkCommitter committer = new ChunkCommitter(dataSet, file.getName(), specification.getTable());
+        try {
+            return process(file, specification, writer, startPosition, committer);
+        } finally {
+            committer.rollbackIfActive();
+            recordPersister.setTransactionTime(transactionTime);
+        }
+    }
+
+    /**
+     * Parses a file, handing the records to the writer on the calling thread in the order of the file.
+     * If a stage fails, the other stages are stopped and the exception is thrown.
+     * @param writer the last stage, called on the calling thread only
+     * @return number of records handed to the writer
+     * @throws ParserException if a line can not be parsed or the writer throws an exception
+     */
+    public long process(File file, RecordSpecification specification, RecordHandler writer) throws IOException {
+        return process(file, specification, writer, 0, null);
+    }
+
+    private long process(File file, RecordSpecification specification, RecordHandler writer, long startPosition,
+                         ChunkCommitter committer) throws IOException {
+        // opened here, so a missing or malformed file fails before any thread is started
+        FixedWidthFileReader reader = new FixedWidthFileReader(file, specification);
+        try {
+            reader.seek(startPosition);
+        } catch (RuntimeException e) {
+            Closeables.closeQuietly(reader);
+            throw e;
+        }
+
+        Semaphore permits = new Semaphore(chunksInFlight);
+        BlockingQueue<LineChunk> lineChunks = new ArrayBlockingQueue<LineChunk>(chunksInFlight);
+        // chunk n goes to slot n % chunksInFlight, which the writer has emptied before the reader got a permit for it
+        List<BlockingQueue<ParsedChunk>> slots = Lists.newArrayListWithCapacity(chunksInFlight);
+        for (int i = 0; i < chunksInFlight; i++) {
+            slots.add(new ArrayBlockingQueue<ParsedChunk>(1));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parserThreads + 1, new StageThreadFactory(file));
+        try {
+            executor.execute(new ChunkReader(reader, specification, permits, lineChunks, slots));
+            reader = null;
+            for (int i = 0; i < parserThreads; i++) {
+                executor.execute(new ChunkParser(specification, lineChunks, slots));
+            }
+
+            long written = 0;
+            for (long chunk = 0; ; chunk++) {
+                ParsedChunk parsedChunk = slots.get((int) (chunk % chunksInFlight)).take();
+                if (parsedChunk.error != null) {
+                    Throwables.propagateIfPossible(parsedChunk.error, IOException.class);
+                    throw new ParserException("Could not parse " + file, parsedChunk.error);
+                }
+                if (parsedChunk == ParsedChunk.END) {
+                    if (committer != null) {
+                        committer.commit();
+                    }
+                    break;
+                }
+                if (committer != null) {
+                    committer.beginChunk();
+                }
+                for (Record record : parsedChunk.records) {
+                    writer.handle(record);
+                }
+                written += parsedChunk.records.size();
+                if (committer != null) {
+                    committer.chunkWritten(parsedChunk.records.size(), parsedChunk.endPosition);
+                }
+                permits.release();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Processed " + written + " records from " + file + " using " + parserThreads + " parser threads");
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ParserException("Interrupted while processing " + file, e);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ParserException(e);
+        } finally {
+            executor.shutdownNow();
+            Closeables.closeQuietly(reader);
+        }
+    }
+
+    private static class LineChunk {
+        private final long number;
+        private final byte[] bytes;
+        private final int lineCount;
+        private final long endPosition;
+
+        private LineChunk(long number, byte[] bytes, int lineCount, long endPosition) {
+            this.number = number;
+            this.bytes = bytes;
+            this.lineCount = lineCount;
+            this.endPosition = endPosition;
+        }
+    }
+
+    private static class ParsedChunk {
+        private static final ParsedChunk END = new ParsedChunk(null, 0, null);
+
+        private final List<Record> records;
+        private final long endPosition;
+        private final Throwable error;
+
+        private ParsedChunk(List<Record> records, long endPosition, Throwable error) {
+            this.records = records;
+            this.endPosition = endPosition;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Commits the records written since the last commit, with a checkpoint after them, every commitInterval records
+     */
+    private class ChunkCommitter {
+        private final String dataset;
+        private final String file;
+        private final String table;
+        private TransactionStatus transaction;
+        private long uncommittedRecords;
+        private long endPosition = -1;
+
+        private ChunkCommitter(String dataset, String file, String table) {
+            this.dataset = dataset;
+            this.file = file;
+            this.table = table;
+        }
+
+        private void beginChunk() {
+            if (transaction == null) {
+                transaction = transactionManager.getTransaction(
+                        new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+            }
+        }
+
+        private void chunkWritten(int records, long endPosition) {
+            this.uncommittedRecords += records;
+            this.endPosition = endPosition;
+            if (uncommittedRecords >= commitInterval) {
+                commit();
+            }
+        }
+
+        private void commit() {
+            if (transaction == null) {
+                return;
+            }
+            recordPersister.flush();
+            checkpoints.saveCheckpoint(new ImportCheckpoint(dataset, file, table, endPosition));
+            TransactionStatus committing = transaction;
+            transaction = null;
+            uncommittedRecords = 0;
+            transactionManager.commit(committing);
+        }
+
+        private void rollbackIfActive() {
+            if (transaction != null) {
+                recordPersister.clearBatch();
+                TransactionStatus rollingBack = transaction;
+                transaction = null;
+                transactionManager.rollback(rollingBack);
+            }
+        }
+    }
+
+    private class ChunkReader implements Runnable {
+        private final FixedWidthFileReader reader;
+        private final int lineLength;
+        private final Semaphore permits;
+        private final BlockingQueue<LineChunk> lineChunks;
+        private final List<BlockingQueue<ParsedChunk>> slots;
+
+        private ChunkReader(FixedWidthFileReader reader, RecordSpecification specification, Semaphore permits,
+                            BlockingQueue<LineChunk> lineChunks, List<BlockingQueue<ParsedChunk>> slots) {
+            this.reader = reader;
+            this.lineLength = specification.acceptedTotalLineLength();
+            this.permits = permits;
+            this.lineChunks = lineChunks;
+            this.slots = slots;
+        }
+
+        @Override
+        public void run() {
+            long chunk = 0;
+            try {
+                try {
+                    while (true) {
+                        permits.acquire();
+                        if (!reader.hasNext()) {
+                            slots.get((int) (chunk % chunksInFlight)).put(ParsedChunk.END);
+                            return;
+                        }
+                        byte[] bytes = new byte[chunkLines * lineLength];
+                        int lineCount = 0;
+                        while (lineCount < chunkLines && reader.hasNext()) {
+                            ByteBuffer line = reader.next();
+                            line.get(bytes, lineCount * lineLength, lineLength);
+                            lineCount++;
+                        }
+                        lineChunks.put(new LineChunk(chunk, bytes, lineCount, reader.getPosition()));
+                        chunk++;
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    // takes the place of the chunk that failed, the writer throws it when it gets there
+                    slots.get((int) (chunk % chunksInFlight)).put(new ParsedChunk(null, 0, e));
+                }
+            } catch (InterruptedException e) {
+                // stopped by the writer
+            } finally {
+                Closeables.closeQuietly(reader);
+            }
+        }
+    }
+
+    private class ChunkParser implements Runnable {
+        private final RecordSpecification specification;
+        private final BlockingQueue<LineChunk> lineChunks;
+        private final List<BlockingQueue<ParsedChunk>> slots;
+
+        private ChunkParser(RecordSpecification specification, BlockingQueue<LineChunk> lineChunks,
+                            List<BlockingQueue<ParsedChunk>> slots) {
+            this.specification = specification;
+            this.lineChunks = lineChunks;
+            this.slots = slots;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SingleLineRecordParser parser = new SingleLineRecordParser(specification, charset);
+                int lineLength = specification.acceptedTotalLineLength();
+                while (true) {
+                    LineChunk lineChunk = lineChunks.take();
+                    ParsedChunk parsedChunk;
+                    try {
+                        List<Record> records = Lists.newArrayListWithCapacity(lineChunk.lineCount);
+                        for (int i = 0; i < lineChunk.lineCount; i++) {
+                            records.add(parser.parseLine(lineChunk.bytes, i * lineLength, lineLength));
+                        }
+                        parsedChunk = new ParsedChunk(records, lineChunk.endPosition, null);
+                    } catch (Throwable e) {
+                        parsedChunk = new ParsedChunk(null, 0, e);
+                    }
+                    slots.get((int) (lineChunk.number % chunksInFlight)).put(parsedChunk);
+                }
+            } catch (InterruptedException e) {
+                // stopped by the writer
+            }
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String name;
+
+        private StageThreadFactory(File file) {
+            this.name = "pipeline-" + file.getName() + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -25,60 +25,222 @@
 package dk.nsi.sdm4.core.parser;
 
 import com.google.common.base.Preconditions;
+import dk.nsi.sdm4.core.persistence.recordpersister.CompiledRecordSpecification;
 import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
 import dk.nsi.sdm4.core.persistence.recordpersister.Record;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordBuilder;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
 import org.apache.commons.lang.StringUtils;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.ALPHANUMERICAL;
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.DECIMAL10_3;
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.NUMERICAL;
 import static java.lang.String.format;
 
 public class SingleLineRecordParser {
+    /**
+     * The charset of the register files, used when lines are parsed from bytes
+     */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+    // exact powers of ten, see parseDecimal
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+    private static final int MAX_EXACT_DECIMAL_DIGITS = 15;
+    private static final int MAX_EXACT_LONG_DIGITS = 18;
+
     private final RecordSpecification recordSpecification;
+    private final Charset charset;
 
     public SingleLineRecordParser(RecordSpecification recordSpecification) {
+        this(recordSpecification, DEFAULT_CHARSET);
+    }
+
+    /**
+     * @param charset charset of lines given as bytes. Must use one byte per character, as the field lengths of the
+     *                specification are used as byte offsets
+     */
+    public SingleLineRecordParser(RecordSpecification recordSpecification, Charset charset) {
+        Preconditions.checkArgument(charset.newEncoder().maxBytesPerChar() == 1.0f, "Charset %s is not single byte", charset);
         this.recordSpecification = recordSpecification;
+        this.charset = charset;
     }
 
     public Record parseLine(String line) {
-        Preconditions.checkArgument(line.length() == recordSpecification.acceptedTotalLineLength(), format(
-                "Supplied line had length %s but only lines of length %d are accepted", line.length(),
-                recordSpecification.acceptedTotalLineLength()));
+        CompiledRecordSpecification compiled = recordSpecification.compile();
+        if (line.length() != compiled.acceptedTotalLineLength()) {
+            throw new IllegalArgumentException(format("Supplied line had length %s but only lines of length %d are accepted",
+                    line.length(), compiled.acceptedTotalLineLength()));
+        }
 
         RecordBuilder builder = new RecordBuilder(recordSpecification);
 
-        int offset = 0;
-
-        for (FieldSpecification fieldSpecification : recordSpecification.getFieldSpecs()) {
-	        if (!fieldSpecification.ignored && !fieldSpecification.calculatedField) {
-	            String subString = line.substring(offset, offset + fieldSpecification.length);
-
-		        String trimmedValue = subString.trim();
-		        if (fieldSpecification.type == ALPHANUMERICAL) {
-	                builder.field(fieldSpecification.name, trimmedValue);
-		        } else if (fieldSpecification.type == DECIMAL10_3) {
-			        if (StringUtils.isEmpty(trimmedValue)) {
-				        throw new ParserException("Field " + fieldSpecification.name + " at offset " + offset + " in line " + line  + " has value '" + subString + "' which is not allowed for numerical fields");
-			        }
-			        builder.field(fieldSpecification.name, Double.parseDouble(trimmedValue));
-		        } else if (fieldSpecification.type == NUMERICAL) {
-			        if (StringUtils.isEmpty(trimmedValue) || !StringUtils.isNumeric(trimmedValue)) {
-				        throw new ParserException("Field " + fieldSpecification.name + " at offset " + offset + " in line " + line  + " has value '" + subString + "' which is not allowed for numerical fields");
-			        }
-	                builder.field(fieldSpecification.name, Long.parseLong(trimmedValue));
-	            } else {
-	                throw new AssertionError("Should match exactly one of the types alphanumerical or numerical.");
-	            }
-	        }
-            // Calculated fields does not count
-            if (!fieldSpecification.calculatedField) {
-                offset += fieldSpecification.length;
+        List<FieldSpecification> parsedFields = compiled.getParsedFields();
+        for (int i = 0; i < parsedFields.size(); i++) {
+            FieldSpecification fieldSpecification = parsedFields.get(i);
+            int offset = compiled.getParsedFieldOffset(i);
+            String subString = line.substring(offset, offset + fieldSpecification.length);
+
+            String trimmedValue = subString.trim();
+            if (fieldSpecification.type == ALPHANUMERICAL) {
+                builder.field(fieldSpecification.name, trimmedValue);
+            } else if (fieldSpecification.type == DECIMAL10_3) {
+                if (StringUtils.isEmpty(trimmedValue)) {
+                    throw new ParserException("Field " + fieldSpecification.name + " at offset " + offset + " in line " + line  + " has value '" + subString + "' which is not allowed for numerical fields");
+                }
+                builder.field(fieldSpecification.name, Double.parseDouble(trimmedValue));
+            } else if (fieldSpecification.type == NUMERICAL) {
+                if (StringUtils.isEmpty(trimmedValue) || !StringUtils.isNumeric(trimmedValue)) {
+                    throw new ParserException("Field " + fieldSpecification.name + " at offset " + offset + " in line " + line  + " has value '" + subString + "' which is not allowed for numerical fields");
+                }
+                builder.field(fieldSpecification.name, Long.parseLong(trimmedValue));
+            } else {
+                throw new AssertionError("Should match exactly one of the types alphanumerical or numerical.");
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Same as {@link #parseLine(ByteBuffer)} for a line in part of an array
+     */
+    public Record parseLine(byte[] bytes, int offset, int length) {
+        return parseLine(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Parses a line given as the bytes between position and limit of a buffer, giving the same record as
+     * {@link #parseLine(String)} of the decoded line.
+     * Fields are trimmed and numbers parsed directly in the buffer, so the only objects created are the record and
+     * the strings of alphanumerical fields. Ignored fields are skipped without being looked at.
+     * The position of the buffer is not changed.
+     */
+    public Record parseLine(ByteBuffer line) {
+        CompiledRecordSpecification compiled = recordSpecification.compile();
+        if (line.remaining() != compiled.acceptedTotalLineLength()) {
+            throw new IllegalArgumentException(format("Supplied line had length %s but only lines of length %d are accepted",
+                    line.remaining(), compiled.acceptedTotalLineLength()));
+        }
+
+        RecordBuilder builder = new RecordBuilder(recordSpecification);
+
+        int lineStart = line.position();
+        List<FieldSpecification> parsedFields = compiled.getParsedFields();
+        for (int i = 0; i < parsedFields.size(); i++) {
+            FieldSpecification fieldSpecification = parsedFields.get(i);
+            int offset = compiled.getParsedFieldOffset(i);
+
+            // trim like String.trim
+            int from = lineStart + offset;
+            int to = from + fieldSpecification.length;
+            while (from < to && (line.get(from) & 0xFF) <= ' ') {
+                from++;
+            }
+            while (to > from && (line.get(to - 1) & 0xFF) <= ' ') {
+                to--;
+            }
+
+            if (fieldSpecification.type == ALPHANUMERICAL) {
+                builder.field(fieldSpecification.name, decode(line, from, to));
+            } else if (fieldSpecification.type == DECIMAL10_3) {
+                if (from == to) {
+                    throw numericalFieldException(fieldSpecification, offset, line);
+                }
+                builder.field(fieldSpecification.name, parseDecimal(line, from, to));
+            } else if (fieldSpecification.type == NUMERICAL) {
+                if (from == to || !isDigits(line, from, to)) {
+                    throw numericalFieldException(fieldSpecification, offset, line);
+                }
+                builder.field(fieldSpecification.name, parseDigits(line, from, to));
+            } else {
+                throw new AssertionError("Should match exactly one of the types alphanumerical or numerical.");
             }
         }
 
         return builder.build();
     }
+
+    private String decode(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, charset);
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private static boolean isDigits(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseDigits(ByteBuffer buffer, int from, int to) {
+        if (to - from > MAX_EXACT_LONG_DIGITS) {
+            return Long.parseLong(decode(buffer, from, to)); // may overflow, let Long complain
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses a plain decimal number like [+-]digits[.digits]. When it has at most 15 digits the digits make up a
+     * long that is exactly representable as a double, and dividing it by an exact power of ten gives the correctly
+     * rounded result, ie. the same as Double.parseDouble. Anything else is left to Double.parseDouble.
+     */
+    private double parseDecimal(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        byte first = buffer.get(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1; // number of digits after the decimal point, -1 until the point is seen
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (++digits > MAX_EXACT_DECIMAL_DIGITS) {
+                    return Double.parseDouble(decode(buffer, from, to));
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (b == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                return Double.parseDouble(decode(buffer, from, to));
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(decode(buffer, from, to));
+        }
+
+        double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private ParserException numericalFieldException(FieldSpecification fieldSpecification, int offset, ByteBuffer line) {
+        String decodedLine = decode(line, line.position(), line.limit());
+        String subString = decodedLine.substring(offset, offset + fieldSpecification.length);
+        return new ParserException("Field " + fieldSpecification.name + " at offset " + offset + " in line " + decodedLine  + " has value '" + subString + "' which is not allowed for numerical fields");
+    }
 }
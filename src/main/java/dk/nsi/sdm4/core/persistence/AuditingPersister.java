@@ -26,9 +26,12 @@
 
 package dk.nsi.sdm4.core.persistence;
 
+import com.google.common.base.Preconditions;
 import dk.nsi.sdm4.core.domain.CompleteDataset;
 import dk.nsi.sdm4.core.domain.Dataset;
 import dk.nsi.sdm4.core.domain.Entities;
+import dk.nsi.sdm4.core.domain.EntityMetadata;
+import dk.nsi.sdm4.core.domain.KeySet;
 import dk.nsi.sdm4.core.domain.TemporalEntity;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
@@ -39,7 +42,6 @@ import javax.sql.DataSource;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Date;
-import java.util.List;
 
 @Deprecated
 public class AuditingPersister implements Persister {
@@ -89,156 +91,167 @@ public class AuditingPersister implements Persister {
 	public <T extends TemporalEntity> void persistDeltaDataset(Dataset<T> dataset) throws Exception {
 		DatabaseTableWrapper<T> table = getTable(dataset.getType());
 
-		MDC.put("data_type", Entities.getEntityTypeDisplayName(dataset.getType()));
+		MDC.put("data_type", EntityMetadata.of(dataset.getType()).getTableName());
 
 		int insertedCount = 0;
 
 		logger.info("Dataset contains rows=" + dataset.getEntities().size());
 
 		for (T record : dataset.getEntities()) {
-			Object key = Entities.getEntityID(record);
-			boolean exists = table.fetchEntityConflicts(key, record.getValidFrom(), record.getValidTo());
-
-			if (!exists) {
+			if (persistEntity(table, record)) {
 				insertedCount++;
-				// Entity was not found, so create it.
-				table.insertEntity(record, transactionTime);
-			} else {
-				// At least one version was found in the same validity range.
-				boolean insertVersion = true;
-
-				do {
-					Date existingValidFrom = table.getCurrentRowValidFrom();
-					Date existingValidTo = table.getCurrentRowValidTo();
-
-					boolean dataEquals = table.currentRowEquals(record);
-
-					if (existingValidFrom.before(record.getValidFrom())) {
-						if (existingValidTo.equals(record.getValidFrom())) {
-							// This existing row is not in the range of our
-							// entity.
-							continue;
-						}
+			}
+		}
 
-						// our entity is newer.
+		table.close();
 
-						if (existingValidTo.after(record.getValidTo())) {
-							// Our version is inside the existing version,
+		logger.info("Persist complete. rows=" + insertedCount);
+	}
 
-							if (!dataEquals) {
-								// The existing version must be split in two.
-								// Copy existing row. Set validFrom in copy
-								// entity to our validTo.
+	/**
+	 * Persists a single entity of a data set as described in {@link #persistDeltaDataset(Dataset)}
+	 * @return whether the entity was new
+	 */
+	<T extends TemporalEntity> boolean persistEntity(DatabaseTableWrapper<T> table, T record) throws Exception {
+		Object key = Entities.getEntityID(record);
+		boolean exists = table.fetchEntityConflicts(key, record.getValidFrom(), record.getValidTo());
+
+		if (!exists) {
+			// Entity was not found, so create it.
+			table.insertEntity(record, transactionTime);
+			return true;
+		} else {
+			// At least one version was found in the same validity range.
+			boolean insertVersion = true;
+
+			do {
+				Date existingValidFrom = table.getCurrentRowValidFrom();
+				Date existingValidTo = table.getCurrentRowValidTo();
+
+				boolean dataEquals = table.currentRowEquals(record);
+
+				if (existingValidFrom.before(record.getValidFrom())) {
+					if (existingValidTo.equals(record.getValidFrom())) {
+						// This existing row is not in the range of our
+						// entity.
+						continue;
+					}
 
-								table.copyCurrentRowButWithChangedValidFrom(record.getValidTo(), transactionTime);
+					// our entity is newer.
 
-								// Set validTo in existing entity to our
-								// validFrom.
+					if (existingValidTo.after(record.getValidTo())) {
+						// Our version is inside the existing version,
 
-								table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
-							}
-						} else if (existingValidTo.before(record.getValidTo())) {
-							// Our version starts after the existing, but ends
-							// later.
-							if (dataEquals) {
-								// If necessary, increase validTo on existing
-								// entity to our validTo.
+						if (!dataEquals) {
+							// The existing version must be split in two.
+							// Copy existing row. Set validFrom in copy
+							// entity to our validTo.
 
-								if (table.getCurrentRowValidTo().before(record.getValidTo()))
-									table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
+							table.copyCurrentRowButWithChangedValidFrom(record.getValidTo(), transactionTime);
 
-								// No need to insert our version as the range is
-								// covered by existing version
+							// Set validTo in existing entity to our
+							// validFrom.
 
-								insertVersion = false;
-							} else {
-								// Our version starts after the existing, but
-								// ends at the same time.
-								// Set validTo in existing entity to our
-								// validFrom.
+							table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
+						}
+					} else if (existingValidTo.before(record.getValidTo())) {
+						// Our version starts after the existing, but ends
+						// later.
+						if (dataEquals) {
+							// If necessary, increase validTo on existing
+							// entity to our validTo.
+
+							if (table.getCurrentRowValidTo().before(record.getValidTo()))
+								table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
 
-								table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
-							}
+							// No need to insert our version as the range is
+							// covered by existing version
+
+							insertVersion = false;
 						} else {
-							// Our version is newer. Same validTo
-							if (dataEquals) {
-								// do nothing
-								insertVersion = false;
-							} else {
-								// invalidate the existing.
-								table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
-							}
+							// Our version starts after the existing, but
+							// ends at the same time.
+							// Set validTo in existing entity to our
+							// validFrom.
 
+							table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
 						}
-					} else if (existingValidFrom.after(record.getValidFrom())) {
-						// Our version is older as that the existing one
-						if (record.getValidTo().after((existingValidTo))) {
-							// Our version encompases the entire existing
-							// version,
-							if (dataEquals) {
-								// reuse the existing version
-								table.updateValidFromOnCurrentRow(record.getValidFrom(), transactionTime);
-								table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
-							} else {
-								// The existing must be deleted
-								// Delete existing row
-								table.updateRow(record, transactionTime, existingValidFrom, existingValidTo);
-							}
+					} else {
+						// Our version is newer. Same validTo
+						if (dataEquals) {
+							// do nothing
 							insertVersion = false;
-						} else if (record.getValidTo().before((existingValidTo))) {
-							// Our version starts before the existing, but also
-							// ends before.
-							if (dataEquals) {
-								// Set validfrom in existing entity to our
-								// validfrom.
-								table.updateValidFromOnCurrentRow(record.getValidFrom(), transactionTime);
-								insertVersion = false;
-							} else {
-								// Set validfrom in existing entity to our
-								// validto.
-								table.updateValidFromOnCurrentRow(record.getValidTo(), transactionTime);
-							}
 						} else {
-							// Our version starts before the existing, and ends
-							// at the same time
+							// invalidate the existing.
+							table.updateValidToOnCurrentRow(record.getValidFrom(), transactionTime);
+						}
+
+					}
+				} else if (existingValidFrom.after(record.getValidFrom())) {
+					// Our version is older as that the existing one
+					if (record.getValidTo().after((existingValidTo))) {
+						// Our version encompases the entire existing
+						// version,
+						if (dataEquals) {
+							// reuse the existing version
+							table.updateValidFromOnCurrentRow(record.getValidFrom(), transactionTime);
+							table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
+						} else {
+							// The existing must be deleted
+							// Delete existing row
 							table.updateRow(record, transactionTime, existingValidFrom, existingValidTo);
+						}
+						insertVersion = false;
+					} else if (record.getValidTo().before((existingValidTo))) {
+						// Our version starts before the existing, but also
+						// ends before.
+						if (dataEquals) {
+							// Set validfrom in existing entity to our
+							// validfrom.
+							table.updateValidFromOnCurrentRow(record.getValidFrom(), transactionTime);
 							insertVersion = false;
+						} else {
+							// Set validfrom in existing entity to our
+							// validto.
+							table.updateValidFromOnCurrentRow(record.getValidTo(), transactionTime);
 						}
 					} else {
-						// Our version is as old as the existing one
-						if (record.getValidTo().after((existingValidTo))) {
-							// Our version has the same validFrom but later
-							// validTo as the existing.
+						// Our version starts before the existing, and ends
+						// at the same time
+						table.updateRow(record, transactionTime, existingValidFrom, existingValidTo);
+						insertVersion = false;
+					}
+				} else {
+					// Our version is as old as the existing one
+					if (record.getValidTo().after((existingValidTo))) {
+						// Our version has the same validFrom but later
+						// validTo as the existing.
+						table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
+						insertVersion = false;
+					} else if (record.getValidTo().before((existingValidTo))) {
+						// Our version has the same validFrom but earlier
+						// validTo as the existing.
+						if (dataEquals) {
 							table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
 							insertVersion = false;
-						} else if (record.getValidTo().before((existingValidTo))) {
-							// Our version has the same validFrom but earlier
-							// validTo as the existing.
-							if (dataEquals) {
-								table.updateValidToOnCurrentRow(record.getValidTo(), transactionTime);
-								insertVersion = false;
-							} else {
-								table.updateValidFromOnCurrentRow(record.getValidTo(), transactionTime);
-							}
 						} else {
-							// Our version has the same validFrom and validTo as
-							// the existing.
-							if (!dataEquals) {
-								// replace the existing
-								table.updateRow(record, transactionTime, existingValidFrom, existingValidTo);
-							}
-							insertVersion = false;
+							table.updateValidFromOnCurrentRow(record.getValidTo(), transactionTime);
+						}
+					} else {
+						// Our version has the same validFrom and validTo as
+						// the existing.
+						if (!dataEquals) {
+							// replace the existing
+							table.updateRow(record, transactionTime, existingValidFrom, existingValidTo);
 						}
+						insertVersion = false;
 					}
-				} while (table.moveToNextRow());
+				}
+			} while (table.moveToNextRow());
 
-				if (insertVersion) table.insertAndUpdateRow(record, transactionTime);
-			}
+			if (insertVersion) table.insertAndUpdateRow(record, transactionTime);
 		}
-
-		table.close();
-
-		logger.info("Persist complete. rows=" + insertedCount);
+		return false;
 	}
 
 	public <T extends TemporalEntity> DatabaseTableWrapper<T> getTable(Class<T> clazz) throws SQLException {
@@ -251,19 +264,30 @@ public class AuditingPersister implements Persister {
 	 * Invalidates all records not in the data set by setting validTo to the transactionTime.
 	 */
 	private <T extends TemporalEntity> void updateValidToOnRecordsNotInDataset(CompleteDataset<T> dataset) throws SQLException {
-		logger.info("Updating validTo on records not present in the dataset.");
-
 		DatabaseTableWrapper<T> table = getTable(dataset.getType());
+		try {
+			updateValidToOnRecordsNotInDataset(table, dataset.getValidFrom(), dataset.getValidTo(), dataset.getKeys());
+		} finally {
+			table.close();
+		}
+	}
 
-		List<DatabaseTableWrapper.StamdataEntityVersion> versions = table.findEntitiesInRange(dataset.getValidFrom(), dataset.getValidTo());
+	<T extends TemporalEntity> void updateValidToOnRecordsNotInDataset(DatabaseTableWrapper<T> table, Date validFrom, Date validTo, Iterable<?> keys) throws SQLException {
+		logger.info("Updating validTo on records not present in the dataset.");
 
-		for (DatabaseTableWrapper.StamdataEntityVersion version : versions) {
-			if (!dataset.containsKey(version.id)) {
-				table.updateValidToOnEntityVersion(dataset.getValidFrom(), version, transactionTime);
-			}
-		}
+		int closedCount = table.updateValidToOnEntitiesNotIn(keys, validFrom, validTo, transactionTime);
+
+		logger.info("Done updating validTo. rows=" + closedCount);
+	}
 
-		logger.info("Done updating validTo.");
+	/**
+	 * Starts persisting a complete data set whose entities are persisted as they are added, instead of being kept in a
+	 * {@link CompleteDataset} until the end. Only the keys of the entities are kept, in a {@link KeySet}, to close the
+	 * records that are not in the data set when it is {@linkplain StreamingCompleteDataset#finish() finished}.
+	 */
+	public <T extends TemporalEntity> StreamingCompleteDataset<T> openCompleteDataset(Class<T> type, Date validFrom, Date validTo) throws SQLException {
+		Preconditions.checkArgument(type.isAnnotationPresent(Entity.class), "%s is not an entity", type);
+		return new StreamingCompleteDataset<T>(this, getTable(type), type, validFrom, validTo);
 	}
 
 	@Override
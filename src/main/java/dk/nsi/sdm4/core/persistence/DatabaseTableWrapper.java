@@ -26,7 +26,9 @@
 package dk.nsi.sdm4.core.persistence;
 
 import com.google.common.base.Preconditions;
-import dk.nsi.sdm4.core.domain.Entities;
+import com.google.common.base.Strings;
+import dk.nsi.sdm4.core.domain.EntityAccessor;
+import dk.nsi.sdm4.core.domain.EntityMetadata;
 import dk.nsi.sdm4.core.domain.TemporalEntity;
 import dk.nsi.sdm4.core.util.Dates;
 import org.springframework.jdbc.datasource.DataSourceUtils;
@@ -36,7 +38,9 @@ import java.lang.reflect.Method;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static dk.nsi.sdm4.core.util.Dates.toSqlDate;
 
@@ -45,47 +49,77 @@ import static dk.nsi.sdm4.core.util.Dates.toSqlDate;
  */
 @Deprecated
 public class DatabaseTableWrapper<T extends TemporalEntity> {
+	// rows in each INSERT of keys into the temporary table used by updateValidToOnEntitiesNotIn
+	private static final int KEY_INSERT_ROWS = 1000;
+
 	private final PreparedStatement insertRecordStmt;
 	private final PreparedStatement insertAndUpdateRecordStmt;
 	private final PreparedStatement updateRecordStmt;
 	private final PreparedStatement selectConflictsStmt;
 	private final PreparedStatement updateValidToStmt;
 	private final PreparedStatement updateValidFromStmt;
+	private final PreparedStatement copyRecordStmt;
 
 	private final Connection connection;
 	private final DataSource datasource;
+	private final StatementCache statements;
+	private final Map<PreparedStatement, String> takenStatements = new IdentityHashMap<PreparedStatement, String>();
 
 	private ResultSet currentRS;
+
+	// The key of the current row as it is in the database, after the changes made to it through this wrapper.
+	// Statements that copy or change the row find it by these instead of using the values read into currentRS.
+	// Statements that copy the row find it by its primary key, when the table has one.
+	private Object currentId;
+	private Object currentPrimaryKey;
+	private Date currentValidFrom;
+	private Date currentValidTo;
+
 	private Class<T> type;
 	private String tablename;
-	private Method idMethod;
+	private EntityMetadata metadata;
+	private EntityAccessor accessor;
 
 	private List<Method> outputMethods;
 	private List<String> notUpdatedColumns;
+	private String primaryKeyColumn;
 
 	public DatabaseTableWrapper(DataSource datasource, Class<T> type) throws SQLException {
-		this.tablename = Entities.getEntityTypeDisplayName(type);
+		this.metadata = EntityMetadata.of(type);
+		this.tablename = metadata.getTableName();
 		this.type = type;
 		this.datasource = datasource;
 		this.connection = DataSourceUtils.getConnection(datasource); // gets the transactionmanager's connection, not just a new one
+		this.statements = StatementCache.of(connection);
 
-		this.idMethod = Entities.getIdMethod(type);
-		this.outputMethods = Entities.getOutputMethods(type);
+		this.accessor = metadata.getAccessor();
+		this.outputMethods = metadata.getColumnMethods();
 
-		this.notUpdatedColumns = findNotUpdatedColumns();
+		this.notUpdatedColumns = metadata.getNotUpdatedColumns(connection);
+		this.primaryKeyColumn = metadata.getPrimaryKeyColumn(connection);
 		this.insertRecordStmt = prepareInsertStatement();
 		this.insertAndUpdateRecordStmt = prepareInsertAndUpdateStatement();
 		this.updateRecordStmt = prepareUpdateStatement();
 		this.selectConflictsStmt = prepareSelectConflictsStatement();
 		this.updateValidToStmt = prepareUpdateValidToStatement();
 		this.updateValidFromStmt = prepareUpdateValidFromStatement();
+		this.copyRecordStmt = prepareCopyStatement();
+	}
+
+	/**
+	 * Takes a statement from the connection's {@link StatementCache}, to be released when the table is closed.
+	 */
+	private PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.take(sql);
+		takenStatements.put(statement, sql);
+		return statement;
 	}
 
 	private PreparedStatement prepareInsertStatement() throws SQLException {
 		String sql = "INSERT INTO " + tablename + " (ModifiedDate, CreatedDate, ValidFrom, ValidTo";
-		for (Method method : outputMethods) {
+		for (String name : metadata.getColumnNames()) {
 			sql += ", ";
-			sql += Entities.getColumnName(method);
+			sql += name;
 		}
 		sql += ") VALUES (";
 		sql += "?,"; // modifieddate
@@ -99,15 +133,22 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 
 		sql += ")";
 
-		return connection.prepareStatement(sql);
+		return prepare(sql);
 	}
 
+	/**
+	 * Inserts a new version of the entity with the columns it does not set copied from the current row, which is
+	 * found by its key. The copied columns never leave the database.
+	 */
 	private PreparedStatement prepareInsertAndUpdateStatement() throws SQLException {
+		if (notUpdatedColumns.isEmpty()) {
+			return insertRecordStmt;
+		}
+
 		String sql = "INSERT INTO " + tablename + " (ModifiedDate, CreatedDate, ValidFrom, ValidTo";
 
-		for (Method method : outputMethods) {
+		for (String name : metadata.getColumnNames()) {
 			sql += ", ";
-			String name = Entities.getOutputFieldName(method);
 			sql += name;
 		}
 
@@ -115,36 +156,84 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 			sql += ", " + notUpdateName;
 		}
 
-		sql += ") VALUES (?, ?, ?, ?";
+		sql += ") SELECT ?, ?, ?, ?";
 
-		for (int i = 0; i < outputMethods.size() + notUpdatedColumns.size(); i++) {
-			sql += ",?";
+		for (int i = 0; i < outputMethods.size(); i++) {
+			sql += ", ?";
 		}
 
-		sql += ")";
+		for (String notUpdateName : notUpdatedColumns) {
+			sql += ", " + notUpdateName;
+		}
+
+		sql += " FROM " + tablename + currentRowCondition();
+
+		return prepare(sql);
+	}
+
+	/**
+	 * Copies the current row, found by its key, with a new validFrom. ModifiedDate, CreatedDate and ValidFrom are
+	 * parameters, everything else is copied by the database.
+	 */
+	private PreparedStatement prepareCopyStatement() throws SQLException {
+		String columns = "";
+
+		for (String name : metadata.getColumnNames()) {
+			columns += ", " + name;
+		}
+
+		for (String notUpdateName : notUpdatedColumns) {
+			columns += ", " + notUpdateName;
+		}
+
+		String sql = "INSERT INTO " + tablename + " (ModifiedDate, CreatedDate, ValidFrom, ValidTo" + columns + ")" +
+				" SELECT ?, ?, ?, ValidTo" + columns + " FROM " + tablename + currentRowCondition();
 
-		return connection.prepareStatement(sql);
+		return prepare(sql);
+	}
+
+	private String currentRowCondition() {
+		if (primaryKeyColumn != null) {
+			return " WHERE " + primaryKeyColumn + " = ?";
+		}
+
+		// Closed versions can have the same id, validFrom and validTo, they differ only in columns that are not copied.
+		// Without a primary key to tell them apart any of them will do.
+		return " WHERE " + metadata.getIdColumnName() + " = ? AND ValidFrom = ? AND ValidTo = ? LIMIT 1";
 	}
 
 	private PreparedStatement prepareUpdateStatement() throws SQLException {
 		String sql = "UPDATE " + tablename + " SET ModifiedDate = ?, ValidFrom = ?, ValidTo = ?";
 
-		for (Method method : outputMethods) {
-			sql += ", " + Entities.getOutputFieldName(method) + " = ?";
+		for (String name : metadata.getColumnNames()) {
+			sql += ", " + name + " = ?";
 		}
 
-		sql += " WHERE " + Entities.getIdColumnName(type) + " = ? AND ValidFrom = ? AND ValidTo = ?";
+		sql += " WHERE " + metadata.getIdColumnName() + " = ? AND ValidFrom = ? AND ValidTo = ?";
 
-		return connection.prepareStatement(sql);
+		return prepare(sql);
 	}
 
 
 	private PreparedStatement prepareSelectConflictsStatement() throws SQLException {
 		// Select where IDs match and validity intervals overlap.
 
-		String keyColumn = Entities.getIdColumnName(type);
-		String sql = "SELECT * FROM " + tablename + " WHERE " + keyColumn + " = ? AND NOT (ValidTo < ? OR ValidFrom > ?) ORDER BY ValidTo";
-		return connection.prepareStatement(sql);
+		String keyColumn = metadata.getIdColumnName();
+		String sql = "SELECT " + keyColumn + ", ValidFrom, ValidTo";
+		if (primaryKeyColumn != null) {
+			sql += ", " + primaryKeyColumn;
+		}
+
+		// only what is compared by currentRowEquals, the rest is copied by the database
+		for (String name : metadata.getColumnNames()) {
+			sql += ", " + name;
+		}
+
+		sql += " FROM " + tablename + " WHERE " + keyColumn + " = ? AND NOT (ValidTo < ? OR ValidFrom > ?) ORDER BY ValidTo";
+		if (primaryKeyColumn != null) {
+			sql += ", " + primaryKeyColumn;
+		}
+		return prepare(sql);
 	}
 
 	public void insertEntity(TemporalEntity entity, Date transactionTime) throws Exception {
@@ -158,24 +247,31 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 
 	public void insertAndUpdateRow(TemporalEntity entity, Date transactionTime) throws Exception {
 		applyParamsToInsertAndUpdateStatement(insertAndUpdateRecordStmt, entity, transactionTime, transactionTime);
-		insertAndUpdateRecordStmt.execute();
+		int rowsAffected = insertAndUpdateRecordStmt.executeUpdate();
+
+		Preconditions.checkState(rowsAffected == 1, "insertAndUpdateRecordStmt number of rows inserted - expected=1, actual=" + rowsAffected);
 	}
 
 	public void updateRow(T entity, Date transactionTime, Date existingValidFrom, Date existingValidTo) throws Exception {
 		applyParamsToUpdateStatement(updateRecordStmt, entity, transactionTime, transactionTime, existingValidFrom, existingValidTo);
 		updateRecordStmt.execute();
+
+		if (currentId != null && currentId.equals(accessor.getId(entity)) && existingValidFrom.equals(currentValidFrom) && existingValidTo.equals(currentValidTo)) {
+			currentValidFrom = entity.getValidFrom();
+			currentValidTo = entity.getValidTo();
+		}
 	}
 
 	private PreparedStatement prepareUpdateValidToStatement() throws SQLException {
-		String sql = "UPDATE " + tablename + " SET ValidTo = ?, ModifiedDate = ? WHERE " + Entities.getIdColumnName(type) + " = ? AND ValidFrom = ?";
+		String sql = "UPDATE " + tablename + " SET ValidTo = ?, ModifiedDate = ? WHERE " + metadata.getIdColumnName() + " = ? AND ValidFrom = ?";
 
-		return connection.prepareStatement(sql);
+		return prepare(sql);
 	}
 
 	private PreparedStatement prepareUpdateValidFromStatement() throws SQLException {
-		String sql = "UPDATE " + tablename + " SET ValidFrom = ?, ModifiedDate = ? WHERE " + Entities.getIdColumnName(type) + " = ? AND ValidFrom = ?";
+		String sql = "UPDATE " + tablename + " SET ValidFrom = ?, ModifiedDate = ? WHERE " + metadata.getIdColumnName() + " = ? AND ValidFrom = ?";
 
-		return connection.prepareStatement(sql);
+		return prepare(sql);
 	}
 
 	public int applyParamsToInsertStatement(PreparedStatement statement, TemporalEntity entity, Date transactionTime, Date createdTime) throws Exception {
@@ -186,8 +282,7 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 		statement.setTimestamp(idx++, new Timestamp(entity.getValidFrom().getTime()));
 		statement.setTimestamp(idx++, new Timestamp(entity.getValidTo().getTime()));
 
-		for (Method method : outputMethods) {
-			Object o = method.invoke(entity);
+		for (Object o : accessor.getColumnValues(entity)) {
 			statement.setObject(idx++, o);
 		}
 
@@ -197,30 +292,27 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 	public int applyParamsToInsertAndUpdateStatement(PreparedStatement pstmt, TemporalEntity sde, Date transactionTime, Date createdTime) throws Exception {
 		int idx = applyParamsToInsertStatement(pstmt, sde, transactionTime, createdTime);
 
-		currentRS.last();
-
-		for (String notUpdateName : notUpdatedColumns) {
-			Object o = currentRS.getObject(notUpdateName);
-			pstmt.setObject(idx++, o);
+		if (notUpdatedColumns.isEmpty()) {
+			return idx;
 		}
 
-		return idx;
+		// the rest of the columns are copied from the last row of the conflicts
+		return applyCurrentRowKey(pstmt, idx);
 	}
 
 	public void applyParamsToUpdateStatement(PreparedStatement statement, TemporalEntity entity, Date transactionTime, Date createdTime, Date existingValidFrom, Date existingValidTo) throws Exception {
 		int idx = 1;
-		Object key = Entities.getEntityID(entity);
+		Object key = accessor.getId(entity);
 
 		statement.setObject(idx++, transactionTime);
 		statement.setObject(idx++, entity.getValidFrom());
 		statement.setObject(idx++, entity.getValidTo());
 
-		for (Method method : outputMethods) {
-			Object o = method.invoke(entity);
+		for (Object o : accessor.getColumnValues(entity)) {
 			statement.setObject(idx++, o);
 		}
 
-		updateValidToStmt.setObject(3, getCurrentRS().getObject(Entities.getIdColumnName(type)));
+		updateValidToStmt.setObject(3, getCurrentRS().getObject(metadata.getIdColumnName()));
 		statement.setObject(idx++, key);
 		statement.setObject(idx++, existingValidFrom);
 		statement.setObject(idx++, existingValidTo);
@@ -238,7 +330,35 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 		selectConflictsStmt.setObject(3, validTo);
 		currentRS = selectConflictsStmt.executeQuery();
 
-		return getCurrentRS().next();
+		return readCurrentRow();
+	}
+
+	private boolean readCurrentRow() throws SQLException {
+		if (!getCurrentRS().next()) {
+			return false;
+		}
+
+		currentId = getCurrentRS().getObject(metadata.getIdColumnName());
+		currentPrimaryKey = primaryKeyColumn != null ? getCurrentRS().getObject(primaryKeyColumn) : null;
+
+		// We do the conversion from time stamp to date because
+		// the two types cannot be compared easily otherwise.
+
+		currentValidFrom = new Date(getCurrentRS().getTimestamp("ValidFrom").getTime());
+		currentValidTo = new Date(getCurrentRS().getTimestamp("ValidTo").getTime());
+		return true;
+	}
+
+	private int applyCurrentRowKey(PreparedStatement statement, int idx) throws SQLException {
+		if (primaryKeyColumn != null) {
+			statement.setObject(idx++, currentPrimaryKey);
+			return idx;
+		}
+
+		statement.setObject(idx++, currentId);
+		statement.setTimestamp(idx++, new Timestamp(currentValidFrom.getTime()));
+		statement.setTimestamp(idx++, new Timestamp(currentValidTo.getTime()));
+		return idx;
 	}
 
 
@@ -248,110 +368,73 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 		String sql = "SELECT * FROM " + tablename + " WHERE NOT (ValidTo < '" + Dates.toSqlDate(validFrom) + "' OR ValidFrom > '" + Dates.toSqlDate(validTo) + "')";
 		currentRS = connection.createStatement().executeQuery(sql);
 
-		return getCurrentRS().next();
+		return readCurrentRow();
 	}
 
 
 	public Date getCurrentRowValidFrom() throws SQLException {
-		// We do the conversion from time stamp to date because
-		// the two types cannot be compared easily otherwise.
-
-		return new Date(getCurrentRS().getTimestamp("ValidFrom").getTime());
+		return currentValidFrom;
 	}
 
 
 	public Date getCurrentRowValidTo() throws SQLException {
-		return new Date(getCurrentRS().getTimestamp("ValidTo").getTime());
+		return currentValidTo;
 	}
 
 
 	public boolean moveToNextRow() throws SQLException {
-		return getCurrentRS().next();
+		return readCurrentRow();
 	}
 
 	public void copyCurrentRowButWithChangedValidFrom(Date validFrom, Date transactionTime) throws SQLException {
-		// FIXME: This should be done with a INSERT .. SELECT statement to avoid transporting the
-		// entire record.
-
-		String sql = "INSERT INTO " + tablename + " (ModifiedDate, CreatedDate, ValidFrom, ValidTo";
-
-		for (Method method : outputMethods) {
-			sql += ", ";
-			String name = Entities.getOutputFieldName(method);
-			sql += name;
-		}
-
-		for (String notUpdateName : notUpdatedColumns) {
-			sql += ", " + notUpdateName;
-		}
-
-		sql += ") VALUES (";
-		sql += "'" + toSqlDate(transactionTime) + "',"; // modifieddate
-		sql += "'" + toSqlDate(transactionTime) + "',"; // createddate
-		sql += "'" + toSqlDate(validFrom) + "',"; // validfrom
-		sql += "'" + toSqlDate(getCurrentRS().getTimestamp("ValidTo")) + "'"; // validTo
-
-		for (int i = 0; i < outputMethods.size(); i++) {
-			sql += ",?";
-		}
-
-		for (int i = 0; i < notUpdatedColumns.size(); i++) {
-			sql += ",?";
-		}
-
-		sql += ")";
-
-		PreparedStatement stmt = connection.prepareStatement(sql);
 		int idx = 1;
 
-		for (Method method : outputMethods) {
-			stmt.setObject(idx++, getCurrentRS().getObject(Entities.getOutputFieldName(method)));
-		}
+		copyRecordStmt.setTimestamp(idx++, new Timestamp(transactionTime.getTime())); // modifieddate
+		copyRecordStmt.setTimestamp(idx++, new Timestamp(transactionTime.getTime())); // createddate
+		copyRecordStmt.setTimestamp(idx++, new Timestamp(validFrom.getTime()));
+		applyCurrentRowKey(copyRecordStmt, idx);
 
-		for (String notUpdateName : notUpdatedColumns) {
-			stmt.setObject(idx++, getCurrentRS().getObject(notUpdateName));
-		}
+		int rowsAffected = copyRecordStmt.executeUpdate();
 
-		stmt.executeUpdate();
+		Preconditions.checkState(rowsAffected == 1, "copyRecordStmt number of rows copied - expected=1, actual=" + rowsAffected);
 	}
 
 	public void updateValidToOnCurrentRow(Date validTo, Date transactionTime) throws SQLException {
-		updateValidToStmt.setObject(1, validTo);
-		updateValidToStmt.setObject(2, transactionTime);
-		updateValidToStmt.setObject(3, getCurrentRS().getObject(Entities.getIdColumnName(type)));
-		updateValidToStmt.setObject(4, getCurrentRS().getTimestamp("ValidFrom"));
+		updateValidToStmt.setTimestamp(1, new Timestamp(validTo.getTime()));
+		updateValidToStmt.setTimestamp(2, new Timestamp(transactionTime.getTime()));
+		updateValidToStmt.setObject(3, currentId);
+		updateValidToStmt.setTimestamp(4, new Timestamp(currentValidFrom.getTime()));
 
 		// This can potentially hit several rows when validFrom equals validTo
 		// when a record is "closed".
 
 		updateValidToStmt.executeUpdate();
+		currentValidTo = validTo;
 	}
 
 	public void updateValidFromOnCurrentRow(Date validFrom, Date transactionTime) throws SQLException {
-		updateValidFromStmt.setObject(1, validFrom);
-		updateValidFromStmt.setObject(2, transactionTime);
-		updateValidFromStmt.setObject(3, getCurrentRS().getObject(Entities.getIdColumnName(type)));
-		updateValidFromStmt.setObject(4, getCurrentRS().getTimestamp("ValidFrom"));
+		updateValidFromStmt.setTimestamp(1, new Timestamp(validFrom.getTime()));
+		updateValidFromStmt.setTimestamp(2, new Timestamp(transactionTime.getTime()));
+		updateValidFromStmt.setObject(3, currentId);
+		updateValidFromStmt.setTimestamp(4, new Timestamp(currentValidFrom.getTime()));
 
 		// This can potentially hit several rows when validFrom equals validTo
 		// when a record is "closed".
 
 		updateValidFromStmt.executeUpdate();
+		currentValidFrom = validFrom;
 	}
 
 	public boolean currentRowEquals(TemporalEntity entity) throws Exception {
-		for (Method method : outputMethods) {
-			if (!fieldEqualsCurrentRow(method, entity)) return false;
+		Object[] values = accessor.getColumnValues(entity);
+		for (int i = 0; i < values.length; i++) {
+			if (!fieldEqualsCurrentRow(outputMethods.get(i), metadata.getColumnNames().get(i), values[i])) return false;
 		}
 
 		return true;
 	}
 
-	private boolean fieldEqualsCurrentRow(Method method, TemporalEntity entity) throws Exception {
-		String fieldname = Entities.getOutputFieldName(method);
-
-		Object o = method.invoke(entity);
-
+	private boolean fieldEqualsCurrentRow(Method method, String fieldname, Object o) throws Exception {
 		if (o instanceof String) {
 			String value = getCurrentRS().getString(fieldname);
 			// Null strings and empty strings are the same
@@ -387,7 +470,7 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 			if (value != null)
 				return false;
 		} else {
-			String message = "method " + Entities.getEntityTypeDisplayName(type) + "." + method.getName() + " has unsupported return type: " + o + ". DB mapping unknown.";
+			String message = "method " + tablename + "." + method.getName() + " has unsupported return type: " + o + ". DB mapping unknown.";
 			throw new Exception(message);
 		}
 
@@ -395,7 +478,7 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 	}
 
 	public List<StamdataEntityVersion> findEntitiesInRange(Date validFrom, Date validTo) throws SQLException {
-		String sql = "SELECT " + Entities.getOutputFieldName(idMethod) + ", validFrom FROM " + tablename + " WHERE NOT (validTo < '" + toSqlDate(validFrom) + "' OR validFrom > '" + toSqlDate(validTo) + "')";
+		String sql = "SELECT " + metadata.getIdColumnName() + ", validFrom FROM " + tablename + " WHERE NOT (validTo < '" + toSqlDate(validFrom) + "' OR validFrom > '" + toSqlDate(validTo) + "')";
 		currentRS = connection.createStatement().executeQuery(sql);
 
 		List<StamdataEntityVersion> versions = new ArrayList<StamdataEntityVersion>();
@@ -427,62 +510,103 @@ public class DatabaseTableWrapper<T extends TemporalEntity> {
 	}
 
 	/**
-	 * Get a list with all columns that will not be updated by the Entity Entities don't have to be
-	 * complete. They can update only parts of a table and then the rest have to be copied as not
-	 * changed.
+	 * Sets validTo on all versions in the range whose id is not among the keys, ie. closes the records that are not in
+	 * a complete data set. The keys are loaded into a temporary table, so this takes a single UPDATE, not one per
+	 * version.
+	 *
+	 * @param keys ids of the entities in the data set
+	 * @param validFrom start of the range, and the new validTo of the versions closed
+	 * @return number of versions closed
 	 */
-	public List<String> findNotUpdatedColumns() throws SQLException {
-		// NOTE: The only reason why this method exists is because
-		// the Person table spans several entities.
-
-		ArrayList<String> results = new ArrayList<String>();
-		Statement stm = connection.createStatement();
-		ResultSet rs = stm.executeQuery("desc " + tablename);
-
-		while (rs.next()) {
-			String colName = rs.getString(1);
-
-			// Ignore all system columns
-
-			if (colName.toUpperCase().indexOf("PID") > 0)
-				continue;
-			if (colName.equalsIgnoreCase("ModifiedDate"))
-				continue;
-			if (colName.equalsIgnoreCase("CreatedDate"))
-				continue;
-			if (colName.equalsIgnoreCase("ValidFrom"))
-				continue;
-			if (colName.equalsIgnoreCase("ValidTo"))
-				continue;
-
-			boolean found = false;
-			for (Method method : outputMethods) {
-				// Ignore the columns that are updated by the entity
-
-				String name = Entities.getOutputFieldName(method);
-				if (colName.equalsIgnoreCase(name)) {
-					found = true;
-					continue;
+	public int updateValidToOnEntitiesNotIn(Iterable<?> keys, Date validFrom, Date validTo, Date transactionTime) throws SQLException {
+		String idColumn = metadata.getIdColumnName();
+		String keyTable = tablename + "DatasetKeys";
+
+		Statement statement = connection.createStatement();
+		try {
+			// takes the type of the id column, and its collation
+			statement.executeUpdate("CREATE TEMPORARY TABLE " + keyTable + " (PRIMARY KEY (Id)) SELECT " + idColumn + " AS Id FROM " + tablename + " LIMIT 0");
+			try {
+				insertKeys(keyTable, keys);
+
+				PreparedStatement update = connection.prepareStatement("UPDATE " + tablename + " t LEFT JOIN " + keyTable + " k ON t." + idColumn + " = k.Id" +
+						" SET t.ValidTo = ?, t.ModifiedDate = ? WHERE k.Id IS NULL AND NOT (t.ValidTo < ? OR t.ValidFrom > ?)");
+				try {
+					update.setTimestamp(1, new Timestamp(validFrom.getTime()));
+					update.setTimestamp(2, new Timestamp(transactionTime.getTime()));
+					update.setTimestamp(3, new Timestamp(validFrom.getTime()));
+					update.setTimestamp(4, new Timestamp(validTo.getTime()));
+					return update.executeUpdate();
+				} finally {
+					update.close();
 				}
+			} finally {
+				statement.executeUpdate("DROP TEMPORARY TABLE " + keyTable);
 			}
+		} finally {
+			statement.close();
+		}
+	}
 
-			if (!found) {
-				results.add(colName);
+	private void insertKeys(String keyTable, Iterable<?> keys) throws SQLException {
+		PreparedStatement insert = connection.prepareStatement(insertKeysSql(keyTable, KEY_INSERT_ROWS));
+		try {
+			int row = 0;
+			List<Object> remaining = new ArrayList<Object>(KEY_INSERT_ROWS);
+			for (Object key : keys) {
+				remaining.add(key);
+				insert.setObject(++row, key);
+				if (row == KEY_INSERT_ROWS) {
+					insert.executeUpdate();
+					remaining.clear();
+					row = 0;
+				}
 			}
+
+			if (!remaining.isEmpty()) {
+				PreparedStatement insertRemaining = connection.prepareStatement(insertKeysSql(keyTable, remaining.size()));
+				try {
+					for (int i = 0; i < remaining.size(); i++) {
+						insertRemaining.setObject(i + 1, remaining.get(i));
+					}
+					insertRemaining.executeUpdate();
+				} finally {
+					insertRemaining.close();
+				}
+			}
+		} finally {
+			insert.close();
 		}
+	}
 
-		rs.close();
-		stm.close();
+	/**
+	 * Inserts a number of keys, skipping keys already in the table. Unlike INSERT IGNORE, a key the id column can not
+	 * hold, eg. one that is too long, fails instead of being truncated into another key.
+	 */
+	private static String insertKeysSql(String keyTable, int rows) {
+		String values = Strings.repeat("(?),", rows);
+		return "INSERT INTO " + keyTable + " (Id) VALUES " + values.substring(0, values.length() - 1) + " ON DUPLICATE KEY UPDATE Id = Id";
+	}
 
-		return results;
+	/**
+	 * Get a list with all columns that will not be updated by the Entity Entities don't have to be
+	 * complete. They can update only parts of a table and then the rest have to be copied as not
+	 * changed.
+	 */
+	public List<String> findNotUpdatedColumns() throws SQLException {
+		return new ArrayList<String>(metadata.getNotUpdatedColumns(connection));
 	}
 
 	public void close() throws SQLException {
-		insertAndUpdateRecordStmt.close();
-		updateRecordStmt.close();
-		selectConflictsStmt.close();
-		updateValidToStmt.close();
-		updateValidFromStmt.close();
+		if (currentRS != null) currentRS.close();
+
+		// the statements stay prepared for the next table of the type in the transaction
+		for (Map.Entry<PreparedStatement, String> taken : takenStatements.entrySet()) {
+			statements.release(taken.getValue(), taken.getKey());
+		}
+		takenStatements.clear();
+		if (!statements.isBound()) statements.close();
+
 		DataSourceUtils.releaseConnection(connection, datasource);
 
 		System.gc();
@@ -0,0 +1,163 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+
+package dk.nsi.sdm4.core.persistence;
+
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Prepared statements of a connection, kept for the rest of its transaction so that the statements of a table are
+ * prepared once per import instead of once per {@link DatabaseTableWrapper}.
+ * <p/>
+ * A statement is {@linkplain #take(String) taken} from the cache while in use and {@linkplain #release(String,
+ * PreparedStatement) released} back when the user is done, so two users never share an open result set. The cache is
+ * bound to the transaction and closes its statements when the transaction completes, before the connection is
+ * released. Outside a transaction the cache belongs to its user, who must {@link #close()} it.
+ */
+@Deprecated
+final class StatementCache {
+	private static final Logger logger = Logger.getLogger(StatementCache.class);
+
+	private final Connection connection;
+	private final boolean bound;
+	private final Map<String, PreparedStatement> idle = Maps.newHashMap();
+
+	private StatementCache(Connection connection, boolean bound) {
+		this.connection = connection;
+		this.bound = bound;
+	}
+
+	/**
+	 * @return the cache of the connection in the current transaction, or a new cache if there is no transaction
+	 */
+	static StatementCache of(Connection connection) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return new StatementCache(connection, false);
+		}
+
+		Key key = new Key(connection);
+		StatementCache cache = (StatementCache) TransactionSynchronizationManager.getResource(key);
+		if (cache == null) {
+			cache = new StatementCache(connection, true);
+			TransactionSynchronizationManager.bindResource(key, cache);
+			TransactionSynchronizationManager.registerSynchronization(new Closer(key, cache));
+		}
+		return cache;
+	}
+
+	/**
+	 * @return whether the cache is bound to a transaction and closes itself when it completes
+	 */
+	boolean isBound() {
+		return bound;
+	}
+
+	/**
+	 * @return an idle statement for the SQL, or a newly prepared one if there is none
+	 */
+	PreparedStatement take(String sql) throws SQLException {
+		PreparedStatement statement = idle.remove(sql);
+		return statement != null ? statement : connection.prepareStatement(sql);
+	}
+
+	/**
+	 * Makes a statement from {@link #take(String)} available to the next user of the SQL. The statement is closed if
+	 * another statement for the SQL is already idle.
+	 */
+	void release(String sql, PreparedStatement statement) throws SQLException {
+		if (idle.containsKey(sql)) {
+			statement.close();
+		} else {
+			statement.clearParameters();
+			idle.put(sql, statement);
+		}
+	}
+
+	/**
+	 * Closes the idle statements.
+	 */
+	void close() throws SQLException {
+		SQLException failure = null;
+		for (PreparedStatement statement : idle.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				failure = e;
+			}
+		}
+		idle.clear();
+
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Statement caches are bound per connection, as a transaction may use several data sources.
+	 */
+	private static class Key {
+		private final Connection connection;
+
+		Key(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).connection == connection;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(connection);
+		}
+	}
+
+	private static class Closer extends TransactionSynchronizationAdapter {
+		private final Key key;
+		private final StatementCache cache;
+
+		Closer(Key key, StatementCache cache) {
+			this.key = key;
+			this.cache = cache;
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(key);
+			try {
+				cache.close();
+			} catch (SQLException e) {
+				logger.warn("Could not close cached statements", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence;
+
+import dk.nsi.sdm4.core.domain.Entities;
+import dk.nsi.sdm4.core.domain.KeySet;
+import dk.nsi.sdm4.core.domain.TemporalEntity;
+import org.apache.log4j.Logger;
+
+import java.util.Date;
+
+/**
+ * A complete data set, see {@link dk.nsi.sdm4.core.domain.CompleteDataset}, that is persisted while it is read.
+ * Each entity is persisted when it is added, and only its key is kept. When all entities have been added,
+ * {@link #finish()} closes the records that are not in the data set.
+ * <p/>
+ * Created by {@link AuditingPersister#openCompleteDataset(Class, Date, Date)}.
+ */
+@Deprecated
+public class StreamingCompleteDataset<T extends TemporalEntity> {
+	private static final Logger logger = Logger.getLogger(StreamingCompleteDataset.class);
+
+	private final AuditingPersister persister;
+	private final DatabaseTableWrapper<T> table;
+	private final Class<T> type;
+	private final Date validFrom;
+	private final Date validTo;
+	private final KeySet keys = new KeySet();
+
+	private int addedCount;
+	private int insertedCount;
+
+	StreamingCompleteDataset(AuditingPersister persister, DatabaseTableWrapper<T> table, Class<T> type, Date validFrom, Date validTo) {
+		this.persister = persister;
+		this.table = table;
+		this.type = type;
+		this.validFrom = validFrom;
+		this.validTo = validTo;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	public Date getValidFrom() {
+		return validFrom;
+	}
+
+	public Date getValidTo() {
+		return validTo;
+	}
+
+	/**
+	 * @return number of entities added
+	 */
+	public int size() {
+		return addedCount;
+	}
+
+	public boolean containsKey(Object id) {
+		return keys.contains(id);
+	}
+
+	/**
+	 * Persists an entity of the data set. The data set ends as a {@link dk.nsi.sdm4.core.domain.CompleteDataset}
+	 * with the same entities, where the last entity with an id replaces the earlier ones, as long as entities with
+	 * the same id have the same validFrom and validTo. Otherwise the versions written for the earlier entities
+	 * outside the validity of the last one are kept, as they are persisted before the last one is known.
+	 */
+	public void add(T entity) throws Exception {
+		keys.add(Entities.getEntityID(entity));
+		addedCount++;
+		if (persister.persistEntity(table, entity)) {
+			insertedCount++;
+		}
+	}
+
+	/**
+	 * Closes the records that are not in the data set, by setting their validTo to the validFrom of the data set,
+	 * and releases the statements of the table
+	 */
+	public void finish() throws Exception {
+		try {
+			if (keys.getDuplicates() > 0) {
+				// FIXME: As in Dataset, this is actually an error. Every entry is persisted, see add().
+				logger.warn(keys.getDuplicates() + " entries in a single import have the same id as another. type=" + type.getSimpleName());
+			}
+
+			persister.updateValidToOnRecordsNotInDataset(table, validFrom, validTo, keys);
+		} finally {
+			table.close();
+		}
+
+		logger.info("Persist complete. rows=" + insertedCount);
+	}
+}
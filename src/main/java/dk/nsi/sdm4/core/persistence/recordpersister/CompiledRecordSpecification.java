@@ -0,0 +1,178 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordInsertSetter;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordLoadDataWriter;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordUpdateSetter;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.List;
+
+/**
+ * Everything the parsers, persisters and fetchers derive from a RecordSpecification, worked out once per
+ * specification instead of once per record. Obtained by {@link RecordSpecification#compile()}.
+ */
+public class CompiledRecordSpecification {
+    /**
+     * Number of metadata columns before the persisted fields in {@link #getSelectSql()},
+     * which selects PID, ValidFrom, ValidTo and ModifiedDate first
+     */
+    public static final int SELECT_METADATA_COLUMN_COUNT = 4;
+
+    /**
+     * Condition selecting the rows valid at a point in time, which is given as the two following parameters
+     */
+    public static final String VALID_AT_CONDITION = "AND ValidFrom <= ? AND (ValidTo IS NULL OR ValidTo > ?)";
+
+    private final ImmutableList<FieldSpecification> persistedFields;
+    private final ImmutableList<FieldSpecification> parsedFields;
+    private final int[] parsedFieldOffsets;
+    private final int acceptedTotalLineLength;
+    private final String insertSql;
+    private final String updateSql;
+    private final String loadDataSql;
+    private final String selectColumns;
+    private final String selectSql;
+    private final String selectCurrentByKeySql;
+    private final String selectCurrentByNullKeySql;
+
+    CompiledRecordSpecification(RecordSpecification specification) {
+        ImmutableList.Builder<FieldSpecification> persisted = ImmutableList.builder();
+        ImmutableList.Builder<FieldSpecification> parsed = ImmutableList.builder();
+        StringBuilder selectColumns = new StringBuilder("PID, ValidFrom, ValidTo, ModifiedDate");
+        List<Integer> offsets = Lists.newArrayList();
+        int lineLength = 0;
+        for (FieldSpecification fieldSpecification : specification.getFieldSpecs()) {
+            if (fieldSpecification.persistField) {
+                persisted.add(fieldSpecification);
+                selectColumns.append(", ").append(fieldSpecification.name);
+            }
+            if (!fieldSpecification.calculatedField) {
+                if (!fieldSpecification.ignored) {
+                    parsed.add(fieldSpecification);
+                    offsets.add(lineLength);
+                }
+                lineLength += fieldSpecification.length;
+            }
+        }
+        this.persistedFields = persisted.build();
+        this.parsedFields = parsed.build();
+        this.parsedFieldOffsets = Ints.toArray(offsets);
+        this.acceptedTotalLineLength = lineLength;
+
+        this.insertSql = RecordInsertSetter.createInsertStatementSql(specification);
+        this.updateSql = RecordUpdateSetter.createUpdateStatementSql(specification);
+        this.loadDataSql = RecordLoadDataWriter.createLoadDataStatementSql(specification);
+        this.selectColumns = selectColumns.toString();
+        this.selectSql = "SELECT " + selectColumns + " FROM " + specification.getTable();
+        this.selectCurrentByKeySql = selectSql + " WHERE " + specification.getKeyColumn() + " = ? " + VALID_AT_CONDITION;
+        this.selectCurrentByNullKeySql = selectSql + " WHERE " + specification.getKeyColumn() + " IS NULL " + VALID_AT_CONDITION;
+    }
+
+    /**
+     * @return the fields stored in the database, in the order of the specification
+     */
+    public List<FieldSpecification> getPersistedFields() {
+        return persistedFields;
+    }
+
+    /**
+     * @return the fields read from the lines of a register file, ie. all fields that are neither ignored nor calculated
+     */
+    public List<FieldSpecification> getParsedFields() {
+        return parsedFields;
+    }
+
+    /**
+     * @return offset in a line of the field at a position in {@link #getParsedFields()}
+     */
+    public int getParsedFieldOffset(int parsedFieldIndex) {
+        return parsedFieldOffsets[parsedFieldIndex];
+    }
+
+    public int acceptedTotalLineLength() {
+        return acceptedTotalLineLength;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    public String getUpdateSql() {
+        return updateSql;
+    }
+
+    public String getLoadDataSql() {
+        return loadDataSql;
+    }
+
+    /**
+     * @return the columns selected by {@link #getSelectSql()}, separated by commas
+     */
+    public String getSelectColumns() {
+        return selectColumns;
+    }
+
+    /**
+     * @return SELECT of the metadata columns followed by the persisted fields, without a WHERE clause. The persisted
+     * field at position i of {@link #getPersistedFields()} is at column index {@link #SELECT_METADATA_COLUMN_COUNT} + i + 1
+     */
+    public String getSelectSql() {
+        return selectSql;
+    }
+
+    /**
+     * @return {@link #getSelectSql()} of the rows with a given key valid at a given time, the parameters being
+     * key, time, time
+     */
+    public String getSelectCurrentByKeySql() {
+        return selectCurrentByKeySql;
+    }
+
+    /**
+     * @return {@link #getSelectSql()} of the rows with a null key valid at a given time, the parameters being
+     * time, time
+     */
+    public String getSelectCurrentByNullKeySql() {
+        return selectCurrentByNullKeySql;
+    }
+
+    /**
+     * @return column index of a persisted field in a result set of {@link #getSelectSql()}
+     * @param persistedFieldIndex position of the field in {@link #getPersistedFields()}
+     */
+    public int getSelectColumnIndex(int persistedFieldIndex) {
+        return SELECT_METADATA_COLUMN_COUNT + persistedFieldIndex + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledRecordSpecification[" + StringUtils.abbreviate(insertSql, 100) + "]";
+    }
+}
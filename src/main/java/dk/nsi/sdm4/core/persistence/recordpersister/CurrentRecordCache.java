@@ -0,0 +1,206 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import java.util.Map;
+
+/**
+ * Current records looked up by {@link RecordFetcher} during one import, including the lookups that found no record.
+ * As the transaction time is fixed during an import, the current record of a key only changes when it is written, and
+ * {@link RecordPersister} removes the entries of the records it writes. The fetcher empties the cache when its
+ * transaction time is set, ie. at the start of each import.
+ * <p/>
+ * Entries are evicted, least recently used first, when the estimated size of the cached records exceeds a budget.
+ * <p/>
+ * Lookups are cached by table, lookup column and key as given. A write removes the entries whose key matches a value
+ * of the written record the way MySQL compares them: numerical keys by value, other keys ignoring case and trailing
+ * spaces. Writes made directly through JDBC are not seen by the cache, parsers that do that should not use it.
+ * <p/>
+ * The cache is enabled by declaring a bean of this type in the parser's configuration.
+ */
+public class CurrentRecordCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final Cache<LookupKey, Optional<RecordWithMetadata>> cache;
+
+    // the cached lookups by the normalized form of their key, to find the entries a write changes
+    private final SetMultimap<LookupKey, LookupKey> lookupsByNormalizedKey = HashMultimap.create();
+
+    // the columns looked up in each table
+    private final SetMultimap<String, String> lookupColumns = HashMultimap.create();
+
+    public CurrentRecordCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes budget for the estimated size of the cached records
+     */
+    public CurrentRecordCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<LookupKey, Optional<RecordWithMetadata>>() {
+                    @Override
+                    public int weigh(LookupKey key, Optional<RecordWithMetadata> value) {
+                        return estimateBytes(key, value);
+                    }
+                })
+                .removalListener(new RemovalListener<LookupKey, Optional<RecordWithMetadata>>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<LookupKey, Optional<RecordWithMetadata>> notification) {
+                        LookupKey lookup = notification.getKey();
+                        lookupsByNormalizedKey.remove(lookup.normalized(), lookup);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the cached result of a lookup, absent if the lookup found no record, or null if it is not cached
+     */
+    synchronized Optional<RecordWithMetadata> get(RecordSpecification specification, String column, String key) {
+        Optional<RecordWithMetadata> cached = cache.getIfPresent(new LookupKey(specification, column, key));
+        if (cached == null || !cached.isPresent()) {
+            return cached;
+        }
+        return Optional.of(copy(cached.get()));
+    }
+
+    /**
+     * Caches the result of a lookup
+     * @param found the record found, or null if there is none
+     */
+    synchronized void put(RecordSpecification specification, String column, String key, RecordWithMetadata found) {
+        LookupKey lookup = new LookupKey(specification, column, key);
+        cache.put(lookup, found != null ? Optional.of(copy(found)) : Optional.<RecordWithMetadata>absent());
+        lookupsByNormalizedKey.put(lookup.normalized(), lookup);
+        lookupColumns.put(lookup.table, column);
+    }
+
+    /**
+     * Removes the lookups whose result can be changed by writing a record
+     */
+    public synchronized void invalidate(Record record, RecordSpecification specification) {
+        String table = specification.getTable();
+        for (String column : lookupColumns.get(table)) {
+            Object value = record.get(column);
+            LookupKey normalized = new LookupKey(specification, column, value != null ? String.valueOf(value) : null).normalized();
+            cache.invalidateAll(lookupsByNormalizedKey.removeAll(normalized));
+        }
+    }
+
+    /**
+     * Removes the lookups in the table of a specification
+     */
+    public synchronized void invalidate(RecordSpecification specification) {
+        String table = specification.getTable();
+        for (LookupKey lookup : cache.asMap().keySet()) {
+            if (lookup.table.equals(table)) {
+                cache.invalidate(lookup);
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        cache.invalidateAll();
+        lookupsByNormalizedKey.clear();
+        lookupColumns.clear();
+    }
+
+    /**
+     * @return number of cached lookups
+     */
+    public synchronized long size() {
+        return cache.size();
+    }
+
+    private static RecordWithMetadata copy(RecordWithMetadata recordWithMeta) {
+        return new RecordWithMetadata(recordWithMeta.getValidFrom(), recordWithMeta.getValidTo(),
+                recordWithMeta.getModifiedDate(), recordWithMeta.getPid(), recordWithMeta.getRecord().copy());
+    }
+
+    private static int estimateBytes(LookupKey key, Optional<RecordWithMetadata> value) {
+        // entry, key and Optional, the strings of the key are shared with the specification except the key value
+        int bytes = 96 + stringBytes(key.key);
+        if (value.isPresent()) {
+            // RecordWithMetadata, its instants and the record's arrays
+            bytes += 160;
+            for (Map.Entry<String, Object> field : value.get().getRecord().fields()) {
+                Object fieldValue = field.getValue();
+                bytes += 24 + (fieldValue instanceof String ? stringBytes((String) fieldValue) : 24);
+            }
+        }
+        return bytes;
+    }
+
+    private static int stringBytes(String string) {
+        return string != null ? 40 + 2 * string.length() : 0;
+    }
+
+    private static class LookupKey {
+        private final RecordSpecification specification;
+        private final String table;
+        private final String column;
+        private final String key;
+
+        LookupKey(RecordSpecification specification, String column, String key) {
+            this.specification = specification;
+            this.table = specification.getTable();
+            this.column = column;
+            this.key = key;
+        }
+
+        /**
+         * @return the key as MySQL compares it with the values of the column
+         */
+        LookupKey normalized() {
+            return new LookupKey(specification, column, KeyComparison.normalize(specification, column, key));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LookupKey)) {
+                return false;
+            }
+            LookupKey other = (LookupKey) o;
+            return table.equals(other.table) && column.equals(other.column) && Objects.equal(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(table, column, key);
+        }
+    }
+}
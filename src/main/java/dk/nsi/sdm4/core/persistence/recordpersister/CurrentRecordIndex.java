@@ -0,0 +1,239 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The PID, ValidFrom and content hash of the current records of a table with a numerical key, loaded once by
+ * {@link RecordFetcher#fetchCurrentIndex(RecordSpecification)} so {@link UpdateExistingRecordPersister} can decide
+ * which records to insert and close without querying the table.
+ * <p/>
+ * The records are kept in an open addressing hash table of primitive arrays, about 60 bytes per record, instead of
+ * a map of boxed keys and objects. A record written during the import is {@linkplain #markWritten(long) marked}, as
+ * its new PID is not known; its current record must then be read from the database.
+ */
+public class CurrentRecordIndex {
+    private static final byte EMPTY = 0;
+    private static final byte CURRENT = 1;
+    private static final byte CURRENT_WITHOUT_HASH = 2;
+    private static final byte WRITTEN = 3;
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] pids;
+    private long[] validFroms;
+    private long[] hashHighs;
+    private long[] hashLows;
+    private byte[] states;
+    private int size;
+
+    public CurrentRecordIndex() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of records the index can hold before it grows
+     */
+    public CurrentRecordIndex(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Adds the current record of a key
+     * @param contentHash hex encoded digest of {@link RecordContentHash#LENGTH} characters, or null if the record has
+     * none
+     * @return false if the index already has a record for the key
+     */
+    public boolean put(long key, long pid, long validFrom, String contentHash) {
+        if (size + 1 > keys.length * 3 / 4) {
+            grow();
+        }
+
+        int slot = slot(key);
+        if (states[slot] != EMPTY) {
+            return false;
+        }
+
+        keys[slot] = key;
+        pids[slot] = pid;
+        validFroms[slot] = validFrom;
+        if (isContentHash(contentHash)) {
+            hashHighs[slot] = parseHex(contentHash, 0);
+            hashLows[slot] = parseHex(contentHash, RecordContentHash.LENGTH / 2);
+            states[slot] = CURRENT;
+        } else {
+            states[slot] = CURRENT_WITHOUT_HASH;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return whether the key had a current record when the index was loaded, or has been written since
+     */
+    public boolean contains(long key) {
+        return states[slot(key)] != EMPTY;
+    }
+
+    /**
+     * @return whether the record of the key has been written since the index was loaded, so the index does not know
+     * its current record
+     */
+    public boolean isWritten(long key) {
+        return states[slot(key)] == WRITTEN;
+    }
+
+    /**
+     * @return PID and content hash of the current record of a key, or null if the key has no current record
+     * @throws IllegalStateException if the key has been written since the index was loaded
+     */
+    public RecordContentHash getContentHash(long key) {
+        int slot = slot(key);
+        switch (states[slot]) {
+            case CURRENT:
+                return new RecordContentHash(pids[slot], formatHex(hashHighs[slot]) + formatHex(hashLows[slot]));
+            case CURRENT_WITHOUT_HASH:
+                return new RecordContentHash(pids[slot], null);
+            case EMPTY:
+                return null;
+            default:
+                throw new IllegalStateException("The record of key " + key + " has been written since the index was loaded");
+        }
+    }
+
+    /**
+     * @return ValidFrom in milliseconds of the current record of a key
+     * @throws IllegalStateException if the key has no current record in the index
+     */
+    public long getValidFrom(long key) {
+        int slot = slot(key);
+        Preconditions.checkState(states[slot] == CURRENT || states[slot] == CURRENT_WITHOUT_HASH, "No current record of key %s in the index", key);
+        return validFroms[slot];
+    }
+
+    /**
+     * Marks that a record of the key has been written, ie. inserted or closed
+     */
+    public void markWritten(long key) {
+        if (size + 1 > keys.length * 3 / 4) {
+            grow();
+        }
+
+        int slot = slot(key);
+        if (states[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        states[slot] = WRITTEN;
+    }
+
+    /**
+     * @return number of keys in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    // linear probing from a mix of the key, ends at the slot of the key or at the empty slot where it belongs
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+        while (states[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldPids = pids;
+        long[] oldValidFroms = validFroms;
+        long[] oldHashHighs = hashHighs;
+        long[] oldHashLows = hashLows;
+        byte[] oldStates = states;
+
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStates[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                pids[slot] = oldPids[i];
+                validFroms[slot] = oldValidFroms[i];
+                hashHighs[slot] = oldHashHighs[i];
+                hashLows[slot] = oldHashLows[i];
+                states[slot] = oldStates[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        pids = new long[capacity];
+        validFroms = new long[capacity];
+        hashHighs = new long[capacity];
+        hashLows = new long[capacity];
+        states = new byte[capacity];
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static boolean isContentHash(String contentHash) {
+        if (contentHash == null || contentHash.length() != RecordContentHash.LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < contentHash.length(); i++) {
+            if (Character.digit(contentHash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String hex, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; i++) {
+            value = (value << 4) | Character.digit(hex.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static String formatHex(long value) {
+        char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (value & 0xF), 16);
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.NUMERICAL;
+
+/**
+ * Approximates how MySQL compares a key with the values of a column. Numerical columns compare by value, and the
+ * collations used for alphanumerical columns ignore trailing spaces and, unless they are binary, case and accents.
+ * Keys MySQL can find equal have the same normalized form, so it is safe for deciding which keys may hit the same
+ * row, but keys with the same normalized form can still be different in a column with a binary collation.
+ */
+final class KeyComparison {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private KeyComparison() {
+    }
+
+    /**
+     * @return the normalized form of a key of a column of the specification, null for a null key
+     */
+    static String normalize(RecordSpecification specification, String column, String key) {
+        if (key == null) {
+            return null;
+        }
+        if (specification.getFieldType(column) == NUMERICAL) {
+            try {
+                return String.valueOf(Long.parseLong(key.trim()));
+            } catch (NumberFormatException e) {
+                return key;
+            }
+        }
+
+        String trimmed = withoutTrailingSpaces(key);
+        if (isAscii(trimmed)) {
+            return trimmed.toUpperCase(Locale.ENGLISH); // has no accents to remove
+        }
+        String decomposed = Normalizer.normalize(trimmed, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the key without trailing spaces, the only difference a binary collation ignores
+     */
+    static String withoutTrailingSpaces(String key) {
+        int end = key.length();
+        while (end > 0 && key.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end == key.length() ? key : key.substring(0, end);
+    }
+
+    private static boolean isAscii(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
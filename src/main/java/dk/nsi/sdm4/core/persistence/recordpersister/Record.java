@@ -24,33 +24,261 @@
  */
 package dk.nsi.sdm4.core.persistence.recordpersister;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.ForwardingMapEntry;
 import com.google.common.collect.Maps;
 
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+/**
+ * The field values of a single record, by field name.
+ * <p/>
+ * A record created for a RecordSpecification keeps the values of the fields of the specification in an array
+ * indexed by the position of the field in the specification, which takes up much less memory than a map entry per
+ * field when a parser produces millions of records. Fields that are not part of the specification are kept in a map.
+ * A record created without a specification keeps all values in a map.
+ * Either way the record behaves like a map from field name to value, also in equals and hashCode.
+ * <p/>
+ * Long and Double values of fields in the specification are kept unboxed in primitive arrays, so numbers can go
+ * from the parser to the prepared statement through {@link #putLong}/{@link #getLong} and
+ * {@link #putDouble}/{@link #getDouble} without being boxed. They are only boxed if read by {@link #get}.
+ */
 public class Record {
-	private Map<String, Object> map = Maps.newHashMap();
+	// marks array slots of fields that have not been put, as a field can be present with a null value
+	private static final Object ABSENT = new Object();
+	// marks array slots whose value is in longValues or doubleValues
+	private static final Object LONG_VALUE = new Object();
+	private static final Object DOUBLE_VALUE = new Object();
+
+	private final RecordSpecification specification;
+	private final Object[] values;
+	private long[] longValues;
+	private double[] doubleValues;
+	private Map<String, Object> map;
+	// the specification this record was last found to conform to, cleared when the record is changed
+	private RecordSpecification knownToConformTo;
+
+	public Record() {
+		this.specification = null;
+		this.values = null;
+		this.map = Maps.newHashMap();
+	}
+
+	/**
+	 * Creates an empty record that keeps the fields of a specification in an array
+	 */
+	public Record(RecordSpecification specification) {
+		this.specification = specification;
+		this.values = new Object[specification.getFieldCount()];
+		Arrays.fill(values, ABSENT);
+	}
 
 	public Record put(String key, Object value) {
-		map.put(key, value);
+		knownToConformTo = null;
+		int index = indexOf(key);
+		if (index >= 0) {
+			putAt(index, value);
+		} else {
+			if (map == null) {
+				map = Maps.newHashMap();
+			}
+			map.put(key, value);
+		}
 		return this;
 	}
 
+	/**
+	 * Same as put with a Long value, but does not box the value if the field is part of the specification
+	 */
+	public Record putLong(String key, long value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			knownToConformTo = null;
+			putLongAt(index, value);
+			return this;
+		}
+		return put(key, Long.valueOf(value));
+	}
+
+	/**
+	 * Same as put with a Double value, but does not box the value if the field is part of the specification
+	 */
+	public Record putDouble(String key, double value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			knownToConformTo = null;
+			putDoubleAt(index, value);
+			return this;
+		}
+		return put(key, Double.valueOf(value));
+	}
+
+	/**
+	 * @return a record with the same fields, which can be changed without changing this record
+	 */
+	Record copy() {
+		Record copy = specification != null ? new Record(specification) : new Record();
+		if (values != null) {
+			System.arraycopy(values, 0, copy.values, 0, values.length);
+			copy.longValues = longValues != null ? longValues.clone() : null;
+			copy.doubleValues = doubleValues != null ? doubleValues.clone() : null;
+		}
+		if (map != null) {
+			copy.map = Maps.newHashMap(map);
+		}
+		copy.knownToConformTo = knownToConformTo;
+		return copy;
+	}
+
 	int size() {
-		return map.size();
+		int size = map != null ? map.size() : 0;
+		if (values != null) {
+			for (Object value : values) {
+				if (value != ABSENT) {
+					size++;
+				}
+			}
+		}
+		return size;
 	}
 
 	public boolean containsKey(String key) {
-		return map.containsKey(key);
+		int index = indexOf(key);
+		if (index >= 0) {
+			return values[index] != ABSENT;
+		}
+		return map != null && map.containsKey(key);
 	}
 
 	public Object get(String key) {
-		return map.get(key);
+		int index = indexOf(key);
+		if (index >= 0) {
+			return valueAt(index);
+		}
+		return map != null ? map.get(key) : null;
+	}
+
+	/**
+	 * Same as get when the value is known to be null or not, but does not box a number kept unboxed
+	 * @return true if the field has the value null or is not present
+	 */
+	public boolean isNull(String key) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			return values[index] == null || values[index] == ABSENT;
+		}
+		return map == null || map.get(key) == null;
+	}
+
+	boolean isNumber(String key) {
+		int index = indexOf(key);
+		if (index >= 0 && (values[index] == LONG_VALUE || values[index] == DOUBLE_VALUE)) {
+			return true;
+		}
+		return get(key) instanceof Number;
 	}
 
+	boolean isKnownToConformTo(RecordSpecification specification) {
+		return knownToConformTo == specification;
+	}
+
+	void setKnownToConformTo(RecordSpecification specification) {
+		knownToConformTo = specification;
+	}
+
+	/**
+	 * Returns the value of a numerical field as a long, without boxing it if it is kept unboxed
+	 * @throws NullPointerException if the field is null or not present
+	 */
+	public long getLong(String key) {
+		int index = indexOf(key);
+		if (index >= 0 && values[index] == LONG_VALUE) {
+			return longValues[index];
+		}
+		return ((Number) get(key)).longValue();
+	}
+
+	/**
+	 * Returns the value of a numerical field as a double, without boxing it if it is kept unboxed
+	 * @throws NullPointerException if the field is null or not present
+	 */
+	public double getDouble(String key) {
+		int index = indexOf(key);
+		if (index >= 0 && values[index] == DOUBLE_VALUE) {
+			return doubleValues[index];
+		}
+		return ((Number) get(key)).doubleValue();
+	}
+
+	/**
+	 * @return a view of the fields of this record, changing the value of an entry or removing it through the
+	 * iterator changes the record
+	 */
 	public Set<Map.Entry<String, Object>> fields() {
-		return map.entrySet();
+		return new FieldSet();
+	}
+
+	private int indexOf(String key) {
+		return specification != null ? specification.indexOf(key) : -1;
+	}
+
+	private void putAt(int index, Object value) {
+		if (value instanceof Long) {
+			putLongAt(index, (Long) value);
+		} else if (value instanceof Double) {
+			putDoubleAt(index, (Double) value);
+		} else {
+			values[index] = value;
+		}
+	}
+
+	private void putLongAt(int index, long value) {
+		if (longValues == null) {
+			longValues = new long[values.length];
+		}
+		longValues[index] = value;
+		values[index] = LONG_VALUE;
+	}
+
+	private void putDoubleAt(int index, double value) {
+		if (doubleValues == null) {
+			doubleValues = new double[values.length];
+		}
+		doubleValues[index] = value;
+		values[index] = DOUBLE_VALUE;
+	}
+
+	private Object valueAt(int index) {
+		Object value = values[index];
+		if (value == LONG_VALUE) {
+			return longValues[index];
+		} else if (value == DOUBLE_VALUE) {
+			return doubleValues[index];
+		}
+		return value != ABSENT ? value : null;
+	}
+
+	private boolean slotsEqual(Record record) {
+		for (int i = 0; i < values.length; i++) {
+			Object value = values[i];
+			if (value != record.values[i]) {
+				if (value == null || value == LONG_VALUE || value == DOUBLE_VALUE || value == ABSENT
+						|| !value.equals(record.values[i])) {
+					return false;
+				}
+			} else if (value == LONG_VALUE && longValues[i] != record.longValues[i]) {
+				return false;
+			} else if (value == DOUBLE_VALUE
+					&& Double.doubleToLongBits(doubleValues[i]) != Double.doubleToLongBits(record.doubleValues[i])) {
+				return false; // same as Double.equals
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -60,18 +288,178 @@ public class Record {
 
 		Record record = (Record) o;
 
-		if (map != null ? !map.equals(record.map) : record.map != null) return false;
+		if (specification != null && specification == record.specification) {
+			return slotsEqual(record) && Objects.equal(extraFields(), record.extraFields());
+		}
+
+		if (size() != record.size()) return false;
+		for (Map.Entry<String, Object> field : new FieldSet()) {
+			Object value = field.getValue();
+			if (value == null ? !(record.get(field.getKey()) == null && record.containsKey(field.getKey()))
+					: !value.equals(record.get(field.getKey()))) {
+				return false;
+			}
+		}
 
 		return true;
 	}
 
 	@Override
 	public int hashCode() {
-		return map != null ? map.hashCode() : 0;
+		// same as the hashCode of a map with the fields of the record
+		int hashCode = 0;
+		for (Map.Entry<String, Object> field : new FieldSet()) {
+			hashCode += field.hashCode();
+		}
+		return hashCode;
 	}
 
 	@Override
 	public String toString() {
-		return "Record[" + map.toString() + "]";
-	};
+		StringBuilder builder = new StringBuilder("Record[{");
+		Iterator<Map.Entry<String, Object>> iterator = new FieldSet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Object> field = iterator.next();
+			builder.append(field.getKey()).append('=').append(field.getValue());
+			if (iterator.hasNext()) {
+				builder.append(", ");
+			}
+		}
+		return builder.append("}]").toString();
+	}
+
+	private Map<String, Object> extraFields() {
+		return map != null && !map.isEmpty() ? map : null;
+	}
+
+	private class FieldSet extends AbstractSet<Map.Entry<String, Object>> {
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator() {
+			return new FieldIterator();
+		}
+
+		@Override
+		public int size() {
+			return Record.this.size();
+		}
+	}
+
+	private class FieldIterator implements Iterator<Map.Entry<String, Object>> {
+		private int nextIndex = -1;
+		private int lastIndex = -1;
+		private boolean lastFromMap;
+		private final Iterator<Map.Entry<String, Object>> mapIterator = map != null ? map.entrySet().iterator() : null;
+
+		private FieldIterator() {
+			advance();
+		}
+
+		private void advance() {
+			nextIndex++;
+			if (values != null) {
+				while (nextIndex < values.length && values[nextIndex] == ABSENT) {
+					nextIndex++;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (values != null && nextIndex < values.length) || (mapIterator != null && mapIterator.hasNext());
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (values != null && nextIndex < values.length) {
+				lastIndex = nextIndex;
+				lastFromMap = false;
+				advance();
+				return new SlotEntry(lastIndex);
+			}
+			if (mapIterator != null) {
+				Map.Entry<String, Object> entry = mapIterator.next();
+				lastIndex = -1;
+				lastFromMap = true;
+				return new MapEntry(entry);
+			}
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public void remove() {
+			if (lastFromMap) {
+				mapIterator.remove();
+			} else if (lastIndex >= 0) {
+				values[lastIndex] = ABSENT;
+			} else {
+				throw new IllegalStateException();
+			}
+			lastIndex = -1;
+			lastFromMap = false;
+			knownToConformTo = null;
+		}
+	}
+
+	private class MapEntry extends ForwardingMapEntry<String, Object> {
+		private final Map.Entry<String, Object> entry;
+
+		private MapEntry(Map.Entry<String, Object> entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		protected Map.Entry<String, Object> delegate() {
+			return entry;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			knownToConformTo = null;
+			return entry.setValue(value);
+		}
+	}
+
+	private class SlotEntry implements Map.Entry<String, Object> {
+		private final int index;
+
+		private SlotEntry(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return specification.getFieldName(index);
+		}
+
+		@Override
+		public Object getValue() {
+			return valueAt(index);
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object previous = valueAt(index);
+			knownToConformTo = null;
+			putAt(index, value);
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return getKey().equals(entry.getKey()) && Objects.equal(getValue(), entry.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return getKey().hashCode() ^ (value != null ? value.hashCode() : 0);
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
 }
@@ -26,7 +26,6 @@ package dk.nsi.sdm4.core.persistence.recordpersister;
 
 import java.util.Date;
 
-import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.*;
 
@@ -36,11 +35,13 @@ public class RecordBuilder {
 
 	public RecordBuilder(RecordSpecification recordSpecification) {
 		this.recordSpecification = recordSpecification;
-		record = new Record();
+		record = new Record(recordSpecification);
 	}
 
     public RecordBuilder field(String fieldName, long value) {
-        return field(fieldName, value, NUMERICAL);
+        checkFieldType(fieldName, NUMERICAL);
+        record.putLong(fieldName, value);
+        return this;
     }
 
 	public RecordBuilder field(String fieldName, Long value) {
@@ -48,7 +49,9 @@ public class RecordBuilder {
 	}
 
     public RecordBuilder field(String fieldName, double value) {
-        return field(fieldName, value, DECIMAL10_3);
+        checkFieldType(fieldName, DECIMAL10_3);
+        record.putDouble(fieldName, value);
+        return this;
     }
 
 	public RecordBuilder field(String fieldName, Double value) {
@@ -65,13 +68,22 @@ public class RecordBuilder {
 
 	private RecordBuilder field(String fieldName, Object value, FieldSpecification.RecordFieldType recordFieldType) {
 		checkNotNull(fieldName);
-		checkArgument(value == null || getFieldType(fieldName) == recordFieldType, "Field " + fieldName + " is not " + recordFieldType);
+		if (value != null) {
+			checkFieldType(fieldName, recordFieldType);
+		}
 
 		record = record.put(fieldName, value);
 
 		return this;
 	}
 
+	private void checkFieldType(String fieldName, FieldSpecification.RecordFieldType recordFieldType) {
+		checkNotNull(fieldName);
+		if (getFieldType(fieldName) != recordFieldType) {
+			throw new IllegalArgumentException("Field " + fieldName + " is not " + recordFieldType);
+		}
+	}
+
 	public Record build() {
 		if (recordSpecification.conformsToSpecifications(record)) {
 			return record;
@@ -98,12 +110,6 @@ public class RecordBuilder {
 	}
 
 	private FieldSpecification.RecordFieldType getFieldType(String fieldName) {
-		for (FieldSpecification fieldSpecification : recordSpecification.getFieldSpecs()) {
-			if (fieldSpecification.name.equals(fieldName)) {
-				return fieldSpecification.type;
-			}
-		}
-
-		return null;
+		return recordSpecification.getFieldType(fieldName);
 	}
 }
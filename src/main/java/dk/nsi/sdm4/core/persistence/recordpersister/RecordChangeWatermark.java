@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import org.joda.time.Instant;
+
+/**
+ * Position in the change feed of a table, ie. the ModifiedDate and PID of the last row a reader has received.
+ * Rows are ordered by ModifiedDate and then PID, so the rows after a watermark are those written later, or at the
+ * same time with a higher PID.
+ * @see RecordFetcher#fetchChangesSince(RecordChangeWatermark, int, RecordSpecification)
+ */
+public class RecordChangeWatermark {
+    /**
+     * Position before the first row of any table
+     */
+    public static final RecordChangeWatermark BEGINNING = new RecordChangeWatermark(null, 0);
+
+    private final Instant modifiedDate;
+    private final long pid;
+
+    /**
+     * @param modifiedDate ModifiedDate of the last row received, null for {@link #BEGINNING}
+     * @param pid PID of the last row received
+     */
+    public RecordChangeWatermark(Instant modifiedDate, long pid) {
+        this.modifiedDate = modifiedDate;
+        this.pid = pid;
+    }
+
+    /**
+     * @return the position right after a row read from the change feed
+     */
+    public static RecordChangeWatermark after(RecordWithMetadata recordWithMeta) {
+        Preconditions.checkNotNull(recordWithMeta.getModifiedDate(), "The record has no ModifiedDate");
+        Preconditions.checkNotNull(recordWithMeta.getPid(), "The record has no PID");
+        return new RecordChangeWatermark(recordWithMeta.getModifiedDate(), recordWithMeta.getPid());
+    }
+
+    public Instant getModifiedDate() {
+        return modifiedDate;
+    }
+
+    public long getPid() {
+        return pid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RecordChangeWatermark that = (RecordChangeWatermark) o;
+        return pid == that.pid && Objects.equal(modifiedDate, that.modifiedDate);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(modifiedDate, pid);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordChangeWatermark{modifiedDate=" + modifiedDate + ", pid=" + pid + "}";
+    }
+}
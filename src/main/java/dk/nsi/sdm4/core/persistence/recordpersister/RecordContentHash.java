@@ -0,0 +1,102 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Date;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.*;
+
+/**
+ * Digest of the persisted fields of a record, stored in the ContentHash column of specifications created
+ * with {@link RecordSpecification#withContentHash()}.
+ * Two records that are equal have the same digest, so whether an incoming record differs from the current db-record
+ * can be found by comparing the digest of the incoming record with the stored one, without fetching the stored fields.
+ * Instances hold the stored digest of a db-record together with its PID.
+ */
+public class RecordContentHash {
+    public static final String COLUMN = "ContentHash";
+
+    /**
+     * Number of characters in a digest, ie. the hex encoded MD5
+     */
+    public static final int LENGTH = 32;
+
+    private final Long pid;
+    private final String contentHash;
+
+    public RecordContentHash(Long pid, String contentHash) {
+        this.pid = pid;
+        this.contentHash = contentHash;
+    }
+
+    public Long getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the stored digest, null for rows inserted before the specification had a ContentHash column
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Calculates the digest of the persisted fields of a record, in the order of the specification.
+     * Each value is prefixed by a marker telling whether it is null, and strings by their length,
+     * so different records can not give the same input to the digest.
+     * @param record
+     * @param specification
+     * @return hex encoded MD5 digest of {@link #LENGTH} characters
+     */
+    public static String compute(Record record, RecordSpecification specification) {
+        Hasher hasher = Hashing.md5().newHasher();
+        for (FieldSpecification fieldSpecification : specification.compile().getPersistedFields()) {
+            String fieldName = fieldSpecification.name;
+            if (record.isNull(fieldName)) {
+                hasher.putByte((byte) 0);
+                continue;
+            }
+
+            hasher.putByte((byte) 1);
+            if (fieldSpecification.type == ALPHANUMERICAL) {
+                byte[] bytes = ((String) record.get(fieldName)).getBytes(Charsets.UTF_8);
+                hasher.putInt(bytes.length).putBytes(bytes);
+            } else if (fieldSpecification.type == NUMERICAL) {
+                hasher.putLong(record.getLong(fieldName));
+            } else if (fieldSpecification.type == DECIMAL10_3) {
+                hasher.putDouble(record.getDouble(fieldName));
+            } else if (fieldSpecification.type == DATETIME) {
+                hasher.putLong(((Date) record.get(fieldName)).getTime());
+            } else {
+                throw new AssertionError("RecordType was not set correctly in the specification");
+            }
+        }
+        return hasher.hash().toString();
+    }
+}
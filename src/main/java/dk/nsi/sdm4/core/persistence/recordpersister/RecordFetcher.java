@@ -24,27 +24,65 @@
  */
 package dk.nsi.sdm4.core.persistence.recordpersister;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import dk.nsi.sdm4.core.status.ImportCheckpoint;
 import org.apache.log4j.Logger;
 import org.joda.time.Instant;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.*;
 
 public class RecordFetcher {
 	private static final Logger log = Logger.getLogger(RecordFetcher.class);
+
+    /**
+     * Most keys in the IN list of one query when fetching records for a number of keys
+     */
+    public static final int MAX_KEYS_PER_QUERY = 1000;
+
+    // column with the position of the requested key a row is selected for, see forRequestedKeysSql
+    private static final String REQUESTED_KEY_INDEX = "RequestedKeyIndex";
+
+    /**
+     * Rows read at a time by scans on databases that cannot stream a result set row by row
+     */
+    private static final int SCAN_FETCH_SIZE = 1000;
+
+    /**
+     * ModifiedDate of the rows of an import that is not published yet, which the change feed leaves out
+     */
+    private static final Timestamp UNPUBLISHED = new Timestamp(ImportCheckpoint.UNPUBLISHED.getMillis());
+
     private Instant transactionTime;
 
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
 
+    @Autowired(required = false)
+    private CurrentRecordCache currentRecordCache;
+
     @Autowired
     public RecordFetcher(Instant transactionTime) {
         this.transactionTime = transactionTime;
@@ -55,42 +93,73 @@ public class RecordFetcher {
     }
 
     public void resetTransactionTime() {
-        this.transactionTime = new Instant();
+        setTransactionTime(new Instant());
     }
 
+    /**
+     * Sets the time the fetched current records are valid at, and empties the {@link CurrentRecordCache} if there is one
+     */
     public void setTransactionTime(Instant transactionTime) {
         this.transactionTime = transactionTime;
+        if (currentRecordCache != null) {
+            currentRecordCache.invalidateAll();
+        }
     }
 
     public Record fetchCurrent(String key, RecordSpecification recordSpecification,
                                String lookupColumn) {
+		Record record;
+		if (currentRecordCache != null) {
+			RecordWithMetadata recordWithMeta = fetchCurrentWithMetaCached(key, recordSpecification, lookupColumn);
+			record = recordWithMeta != null ? recordWithMeta.getRecord() : null;
+		} else {
+			record = fetchAt(key, transactionTime, recordSpecification, lookupColumn, new RecordRowsetMapper(recordSpecification));
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Fetch current for " + recordSpecification.getTable() + " " + lookupColumn + "=" + key + " returning " + record);
+		}
+
+		return record;
+	}
+
+    private RecordWithMetadata fetchCurrentWithMetaCached(String key, RecordSpecification recordSpecification, String lookupColumn) {
+        Optional<RecordWithMetadata> cached = currentRecordCache.get(recordSpecification, lookupColumn, key);
+        if (cached != null) {
+            return cached.orNull();
+        }
+
+        RecordWithMetadata recordWithMeta = fetchAt(key, transactionTime, recordSpecification, lookupColumn,
+                new RecordMetaRowsetMapper(recordSpecification));
+        currentRecordCache.put(recordSpecification, lookupColumn, key, recordWithMeta);
+        return recordWithMeta;
+    }
+
+    /**
+     * @return the row with the key in the lookup column valid at a time, or null if there is none
+     */
+    private <T> T fetchAt(String key, Instant validAt, RecordSpecification recordSpecification, String lookupColumn,
+                          RowMapper<T> mapper) {
         // KPN ValidTo does not have to be null as long as it is in the future it is ok
         //             futhermore ValidFrom should be checked here aswell
-        Timestamp validAtStamp = new Timestamp(transactionTime.getMillis());
-		Record record;
+        Timestamp validAtStamp = new Timestamp(validAt.getMillis());
 		try {
             if (key != null) {
-                String sql = String.format("SELECT * FROM %s WHERE %s = ? AND (ValidTo IS NULL OR ValidTo > ?) AND (ValidFrom <= ?)",
-                        recordSpecification.getTable(), lookupColumn);
-                record = jdbcTemplate.queryForObject(sql,
-                        new RecordRowsetMapper(recordSpecification), key, validAtStamp, validAtStamp);
+                String sql = lookupColumn.equals(recordSpecification.getKeyColumn())
+                        ? recordSpecification.compile().getSelectCurrentByKeySql()
+                        : recordSpecification.compile().getSelectSql() + " WHERE " + lookupColumn + " = ? " + CompiledRecordSpecification.VALID_AT_CONDITION;
+                return jdbcTemplate.queryForObject(sql, mapper, key, validAtStamp, validAtStamp);
             } else {
                 // A record could have a key with null as value.
-                String sql = String.format("SELECT * FROM %s WHERE %s IS NULL AND (ValidTo IS NULL OR ValidTo > ?) AND (ValidFrom <= ?)",
-                        recordSpecification.getTable(), lookupColumn);
-                record = jdbcTemplate.queryForObject(sql,
-                        new RecordRowsetMapper(recordSpecification), validAtStamp, validAtStamp);
+                String sql = lookupColumn.equals(recordSpecification.getKeyColumn())
+                        ? recordSpecification.compile().getSelectCurrentByNullKeySql()
+                        : recordSpecification.compile().getSelectSql() + " WHERE " + lookupColumn + " IS NULL " + CompiledRecordSpecification.VALID_AT_CONDITION;
+                return jdbcTemplate.queryForObject(sql, mapper, validAtStamp, validAtStamp);
             }
 		} catch (EmptyResultDataAccessException e) {
 			// når der ingen åben record er, forventer klienter bare at vi returnerer null
 			return null;
 		}
-
-		if (log.isDebugEnabled()) {
-			log.debug("Fetch current for " + recordSpecification.getTable() + " " + lookupColumn + "=" + key + " returning " + record);
-		}
-
-		return record;
 	}
 
 	public Record fetchCurrent(String key, RecordSpecification recordSpecification) throws SQLException {
@@ -107,6 +176,257 @@ public class RecordFetcher {
         return fetchWithMetaAt(key, transactionTime, recordSpecification);
     }
 
+    /**
+     * Fetch currently valid records including metadata for a number of keys, see
+     * {@link #fetchWithMetaAt(Collection, Instant, RecordSpecification)}.
+     * @param keys keys of the records to find
+     * @param recordSpecification specification
+     * @return the found records mapped by their key
+     */
+    public Map<String, RecordWithMetadata> fetchCurrentWithMeta(Collection<String> keys, RecordSpecification recordSpecification) {
+        return fetchWithMetaAt(keys, transactionTime, recordSpecification);
+    }
+
+    /**
+     * Fetch records including metadata that were valid at a specific time for a number of keys, using a query per
+     * {@link #MAX_KEYS_PER_QUERY} keys instead of one per key. The result is the same as calling
+     * {@link #fetchWithMetaAt(String, Instant, RecordSpecification)} for each key: the database compares the keys
+     * with the key column, so keys differing in case or trailing spaces find the same record when the collation of
+     * the column ignores those, a null key finds the record whose key is null, and a key with more than one valid
+     * record gives an {@link IncorrectResultSizeDataAccessException}.
+     * Keys without a valid record are not present in the returned map.
+     * @param keys keys of the records to find
+     * @param validAt When should the records be valid
+     * @param recordSpecification specification
+     * @return the found records mapped by their key, as given in keys
+     */
+    public Map<String, RecordWithMetadata> fetchWithMetaAt(Collection<String> keys, final Instant validAt,
+                                                           final RecordSpecification recordSpecification) {
+        Set<String> distinctKeys = Sets.newLinkedHashSet(keys);
+        Map<String, RecordWithMetadata> result = Maps.newHashMapWithExpectedSize(distinctKeys.size());
+
+        if (distinctKeys.remove(null)) {
+            RecordWithMetadata recordWithMeta = fetchWithMetaAt((String) null, validAt, recordSpecification);
+            if (recordWithMeta != null) {
+                result.put(null, recordWithMeta);
+            }
+        }
+
+        CompiledRecordSpecification compiled = recordSpecification.compile();
+        String select = "SELECT " + compiled.getSelectColumns() + ", " + REQUESTED_KEY_INDEX + " FROM " + recordSpecification.getTable();
+        final int keyIndexColumn = compiled.getSelectColumnIndex(compiled.getPersistedFields().size());
+        final RecordMetaRowsetMapper mapper = new RecordMetaRowsetMapper(recordSpecification);
+        for (final List<String> chunk : Iterables.partition(distinctKeys, MAX_KEYS_PER_QUERY)) {
+            final Map<String, RecordWithMetadata> found = Maps.newHashMapWithExpectedSize(chunk.size());
+            jdbcTemplate.query(forRequestedKeysSql(select, chunk.size(), recordSpecification), new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet resultSet) throws SQLException {
+                    String key = chunk.get(resultSet.getInt(keyIndexColumn));
+                    if (found.put(key, mapper.mapRow(resultSet, found.size())) != null) {
+                        throw new IncorrectResultSizeDataAccessException("More than one record valid at " + validAt + " for "
+                                + recordSpecification.getTable() + " " + recordSpecification.getKeyColumn() + "=" + key, 1);
+                    }
+                }
+            }, forRequestedKeysArgs(chunk, validAt));
+            result.putAll(found);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Fetch current for " + recordSpecification.getTable() + " " + distinctKeys.size() + " keys returning " + result.size() + " records");
+        }
+        return result;
+    }
+
+    /**
+     * Fetch the PID and stored content hash of currently valid records for a number of keys using a query per
+     * {@link #MAX_KEYS_PER_QUERY} keys, without transferring the fields of the records. The specification must have
+     * a ContentHash column. Keys match the records as in {@link #fetchCurrentWithMeta(Collection, RecordSpecification)},
+     * and a key with more than one current record gives an {@link IncorrectResultSizeDataAccessException}.
+     * Keys without a current record are not present in the returned map.
+     * @param keys keys of the records to find
+     * @param recordSpecification specification
+     * @return the found hashes mapped by their key, as given in keys
+     * @see RecordSpecification#withContentHash()
+     */
+    public Map<String, RecordContentHash> fetchCurrentContentHashesForKeys(Collection<String> keys,
+                                                                           final RecordSpecification recordSpecification) {
+        Preconditions.checkArgument(recordSpecification.hasContentHash(), "The specification has no content hash");
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Set<String> distinctKeys = Sets.newLinkedHashSet(keys);
+        String select = "SELECT PID, " + RecordContentHash.COLUMN + ", " + REQUESTED_KEY_INDEX + " FROM " + recordSpecification.getTable();
+        final Map<String, RecordContentHash> result = Maps.newHashMapWithExpectedSize(distinctKeys.size());
+        for (final List<String> chunk : Iterables.partition(distinctKeys, MAX_KEYS_PER_QUERY)) {
+            jdbcTemplate.query(forRequestedKeysSql(select, chunk.size(), recordSpecification), new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet resultSet) throws SQLException {
+                    String key = chunk.get(resultSet.getInt(3));
+                    if (result.put(key, new RecordContentHash(resultSet.getLong(1), resultSet.getString(2))) != null) {
+                        throw new IncorrectResultSizeDataAccessException("More than one record valid at " + transactionTime
+                                + " for " + recordSpecification.getTable() + " " + recordSpecification.getKeyColumn() + "=" + key, 1);
+                    }
+                }
+            }, forRequestedKeysArgs(chunk, transactionTime));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Fetch current hashes for " + recordSpecification.getTable() + " " + keys.size() + " keys returning " + result.size() + " hashes");
+        }
+        return result;
+    }
+
+    /**
+     * Loads the PID, ValidFrom and content hash of all records valid at the transaction time into an index keyed by
+     * the numerical key column, with one streamed query instead of one per key or chunk of keys. Records whose key is
+     * null are not in the index. Without a ContentHash column the index has no content hashes.
+     * @param recordSpecification specification with a numerical key column
+     * @return the index of the current records
+     * @throws IncorrectResultSizeDataAccessException if a key has more than one current record
+     * @see UpdateExistingRecordPersister#setIndexCurrentRecords(boolean)
+     */
+    public CurrentRecordIndex fetchCurrentIndex(final RecordSpecification recordSpecification) {
+        final String keyColumn = recordSpecification.getKeyColumn();
+        Preconditions.checkArgument(recordSpecification.getFieldType(keyColumn) == NUMERICAL,
+                "The key column %s of %s is not numerical", keyColumn, recordSpecification.getTable());
+
+        String hashColumn = recordSpecification.hasContentHash() ? RecordContentHash.COLUMN : "NULL";
+        String queryString = "SELECT " + keyColumn + ", PID, ValidFrom, " + hashColumn + " FROM " + recordSpecification.getTable()
+                + " WHERE " + keyColumn + " IS NOT NULL " + CompiledRecordSpecification.VALID_AT_CONDITION;
+        Timestamp validAtStamp = new Timestamp(transactionTime.getMillis());
+
+        final CurrentRecordIndex index = new CurrentRecordIndex();
+        stream(queryString, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                long key = resultSet.getLong(1);
+                if (!index.put(key, resultSet.getLong(2), resultSet.getTimestamp(3).getTime(), resultSet.getString(4))) {
+                    throw new IncorrectResultSizeDataAccessException("More than one record valid at " + transactionTime
+                            + " for " + recordSpecification.getTable() + " " + keyColumn + "=" + key, 1);
+                }
+            }
+        }, validAtStamp, validAtStamp);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Fetch current index for " + recordSpecification.getTable() + " returning " + index.size() + " records");
+        }
+        return index;
+    }
+
+    /**
+     * Reads every row of a table, current or not, and hands them to a handler one at a time in no particular order.
+     * The rows are streamed from the database on a forward-only result set, so the memory used does not depend on
+     * the size of the table. A row has a null ValidTo when the column is NULL.
+     * <p/>
+     * MySQL cannot run other statements on a connection while it streams a result set, so the handler must not use
+     * the database through the connection of the scan, ie. through this fetcher, a {@link RecordPersister} or
+     * a JdbcTemplate in the same transaction.
+     * @param recordSpecification specification of the table
+     * @param handler receives each row
+     * @return number of rows read
+     */
+    public long scan(RecordSpecification recordSpecification, RecordScanHandler handler) {
+        return scan(recordSpecification, "", handler);
+    }
+
+    /**
+     * Reads the rows valid at the transaction time, see {@link #scan(RecordSpecification, RecordScanHandler)}
+     * @return number of rows read
+     */
+    public long scanCurrent(RecordSpecification recordSpecification, RecordScanHandler handler) {
+        Timestamp validAtStamp = new Timestamp(transactionTime.getMillis());
+        return scan(recordSpecification, " WHERE 1=1 " + CompiledRecordSpecification.VALID_AT_CONDITION, handler,
+                validAtStamp, validAtStamp);
+    }
+
+    /**
+     * Reads the rows with a ValidFrom from and including one time until but excluding another, see
+     * {@link #scan(RecordSpecification, RecordScanHandler)}
+     * @return number of rows read
+     */
+    public long scanByValidFrom(Instant from, Instant to, RecordSpecification recordSpecification, RecordScanHandler handler) {
+        return scan(recordSpecification, " WHERE ValidFrom >= ? AND ValidFrom < ?", handler,
+                new Timestamp(from.getMillis()), new Timestamp(to.getMillis()));
+    }
+
+    /**
+     * Reads the rows with a ModifiedDate from and including one time until but excluding another, leaving out the
+     * rows of an import that is not published yet, see {@link #scan(RecordSpecification, RecordScanHandler)}
+     * @return number of rows read
+     */
+    public long scanByModifiedDate(Instant from, Instant to, RecordSpecification recordSpecification, RecordScanHandler handler) {
+        return scan(recordSpecification, " WHERE ModifiedDate >= ? AND ModifiedDate < ? AND ModifiedDate < ?", handler,
+                new Timestamp(from.getMillis()), new Timestamp(to.getMillis()), UNPUBLISHED);
+    }
+
+    private long scan(RecordSpecification recordSpecification, String whereClause, final RecordScanHandler handler,
+                      Object... args) {
+        final RecordMetaRowsetMapper mapper = new RecordMetaRowsetMapper(recordSpecification, true);
+        final long[] rowCount = {0};
+        stream(recordSpecification.compile().getSelectSql() + whereClause, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet resultSet) throws SQLException {
+                handler.handle(mapper.mapRow(resultSet, (int) rowCount[0]));
+                rowCount[0]++;
+            }
+        }, args);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Scan of " + recordSpecification.getTable() + whereClause + " read " + rowCount[0] + " rows");
+        }
+        return rowCount[0];
+    }
+
+    /**
+     * Runs a query on a forward-only, read-only result set, which MySQL streams row by row when the fetch size is
+     * Integer.MIN_VALUE instead of reading the whole result into memory. Other databases read SCAN_FETCH_SIZE rows
+     * at a time.
+     */
+    private void stream(final String sql, RowCallbackHandler handler, final Object... args) {
+        jdbcTemplate.query(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                boolean mysql = "MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName());
+                statement.setFetchSize(mysql ? Integer.MIN_VALUE : SCAN_FETCH_SIZE);
+                for (int i = 0; i < args.length; i++) {
+                    statement.setObject(i + 1, args[i]);
+                }
+                return statement;
+            }
+        }, handler);
+    }
+
+    /**
+     * @return select joined with the rows whose key the database finds equal to one of keyCount requested keys, and
+     * which are valid at a time. A row is selected once for each requested key it equals, with the position of that
+     * key in the column {@link #REQUESTED_KEY_INDEX}. Comparing in the database, rather than the key read back with
+     * the key requested, makes the keys match as in the single key queries, eg. ignoring case and trailing spaces
+     * when the collation of the column does. The parameters are the keys followed by the time twice.
+     */
+    private String forRequestedKeysSql(String select, int keyCount, RecordSpecification recordSpecification) {
+        StringBuilder sql = new StringBuilder(select);
+        sql.append(" JOIN (SELECT 0 AS ").append(REQUESTED_KEY_INDEX).append(", ? AS RequestedKey");
+        for (int i = 1; i < keyCount; i++) {
+            sql.append(" UNION ALL SELECT ").append(i).append(", ?");
+        }
+        sql.append(") RequestedKeys ON ").append(recordSpecification.getKeyColumn()).append(" = RequestedKey ")
+                .append(CompiledRecordSpecification.VALID_AT_CONDITION);
+        return sql.toString();
+    }
+
+    private Object[] forRequestedKeysArgs(Collection<String> keys, Instant validAt) {
+        Timestamp validAtStamp = new Timestamp(validAt.getMillis());
+        Object[] args = new Object[keys.size() + 2];
+        int index = 0;
+        for (String key : keys) {
+            args[index++] = key;
+        }
+        args[index++] = validAtStamp;
+        args[index] = validAtStamp;
+        return args;
+    }
+
     /**
      * Fetch a record including metadata that was valid at a specific time.
      * @param key Key value of record that should be fetched
@@ -116,24 +436,11 @@ public class RecordFetcher {
      */
     public RecordWithMetadata fetchWithMetaAt(String key, Instant validAt, RecordSpecification recordSpecification) {
         String keyColumn = recordSpecification.getKeyColumn();
-        Timestamp validAtStamp = new Timestamp(validAt.getMillis());
         RecordWithMetadata recordWithMeta;
-        try {
-            // Some register also uses null as id
-            if (key != null) {
-                String queryString = String.format("SELECT * FROM %s WHERE %s=? " +
-                        "AND ValidFrom <= ? AND (ValidTo IS NULL OR ValidTo > ?) ", recordSpecification.getTable(), keyColumn);
-                recordWithMeta = jdbcTemplate.queryForObject(queryString,
-                        new RecordMetaRowsetMapper(recordSpecification), key, validAtStamp, validAtStamp);
-            } else {
-                String queryString = String.format("SELECT * FROM %s WHERE %s IS NULL " +
-                        "AND ValidFrom <= ? AND (ValidTo IS NULL OR ValidTo > ?) ", recordSpecification.getTable(), keyColumn);
-                recordWithMeta = jdbcTemplate.queryForObject(queryString,
-                        new RecordMetaRowsetMapper(recordSpecification), validAtStamp, validAtStamp);
-            }
-        } catch (EmptyResultDataAccessException e) {
-            // når der ingen åben recordWithMeta er, forventer klienter bare at vi returnerer null
-            return null;
+        if (currentRecordCache != null && validAt.equals(transactionTime)) {
+            recordWithMeta = fetchCurrentWithMetaCached(key, recordSpecification, keyColumn);
+        } else {
+            recordWithMeta = fetchAt(key, validAt, recordSpecification, keyColumn, new RecordMetaRowsetMapper(recordSpecification));
         }
         if (log.isDebugEnabled()) {
             log.debug("Fetch current for " + recordSpecification.getTable() + " " + keyColumn + "=" + key + " returning " + recordWithMeta);
@@ -141,13 +448,50 @@ public class RecordFetcher {
         return recordWithMeta;
     }
 
-    // Indtil 7/7-2012 var der her en fetchSince-metode. Den er fjernet, da dens semantik var uklar, og ingen parsere
-	// brugte den. Den antog at databasetabellen for en Record havde en kolonne PID, hvilket kun gælder for én parser
-	// blandt de nuværende.
-	// Når/hvis NSP-modulerne skal over på det nye core, må vi genindføre metoden med en mere veldefineret semantik.
+    /**
+     * Fetch a page of the change feed of a table: the rows written after a watermark, ordered by ModifiedDate and
+     * then PID, using keyset pagination on the (ModifiedDate, PID) index made by {@link RecordMySQLTableGenerator}.
+     * Pass {@link RecordChangeWatermark#after(RecordWithMetadata)} of the last row of a page to get the next page;
+     * a page with fewer than maxRows rows is the last one for now.
+     * <p/>
+     * Every insert and every update of a row sets its ModifiedDate to the transaction time, so a reader that follows
+     * the feed receives each row when it is inserted and again each time it is updated, eg. when its ValidTo is set.
+     * The rows of an import share the ModifiedDate of its transaction time, and are not visible before the import
+     * commits, so the feed is complete as long as the imports of a table do not overlap in time. The rows of an import
+     * committed in chunks are left out until it is published, see {@link ImportCheckpoint#UNPUBLISHED}. The rows
+     * have a null ValidTo when the column is NULL.
+     * <p/>
+     * This replaces the fetchSince method removed 7/7-2012, whose semantics were unclear and which assumed the table
+     * of a record to have a PID column.
+     * @param watermark position of the last row already received, {@link RecordChangeWatermark#BEGINNING} to start
+     * from the first row of the table
+     * @param maxRows most rows to fetch
+     * @param recordSpecification specification
+     * @return the rows after the watermark, at most maxRows
+     */
+    public List<RecordWithMetadata> fetchChangesSince(RecordChangeWatermark watermark, int maxRows,
+                                                      RecordSpecification recordSpecification) {
+        Preconditions.checkNotNull(watermark);
+        Preconditions.checkArgument(maxRows > 0, "maxRows must be positive, was %s", maxRows);
+
+        String selectSql = recordSpecification.compile().getSelectSql() + " WHERE ModifiedDate < ?";
+        String orderBy = " ORDER BY ModifiedDate, PID LIMIT ?";
+        RecordMetaRowsetMapper mapper = new RecordMetaRowsetMapper(recordSpecification, true);
+        List<RecordWithMetadata> changes;
+        if (watermark.getModifiedDate() == null) {
+            changes = jdbcTemplate.query(selectSql + orderBy, mapper, UNPUBLISHED, maxRows);
+        } else {
+            // the OR form can use the index as a range, which MySQL does not do for a row comparison
+            Timestamp modifiedDate = new Timestamp(watermark.getModifiedDate().getMillis());
+            changes = jdbcTemplate.query(selectSql + " AND (ModifiedDate > ? OR (ModifiedDate = ? AND PID > ?))" + orderBy,
+                    mapper, UNPUBLISHED, modifiedDate, modifiedDate, watermark.getPid(), maxRows);
+        }
 
-    // TODO: KPN Not sure I agree fetchsince is used by the batch copy service, so it should be recreated if the service
-    // should run on sdm4 at some point...
+        if (log.isDebugEnabled()) {
+            log.debug("Fetch changes for " + recordSpecification.getTable() + " since " + watermark + " returning " + changes.size() + " rows");
+        }
+        return changes;
+    }
 
 	private class RecordRowsetMapper implements RowMapper<Record> {
 		private RecordSpecification recordSpecification;
@@ -159,35 +503,37 @@ public class RecordFetcher {
 		@Override
 		public Record mapRow(ResultSet resultSet, int rowNum) throws SQLException {
 			RecordBuilder builder = new RecordBuilder(recordSpecification);
+			CompiledRecordSpecification compiled = recordSpecification.compile();
 
-			for (FieldSpecification fieldSpec : recordSpecification.getFieldSpecs()) {
+			List<FieldSpecification> persistedFields = compiled.getPersistedFields();
+			for (int i = 0; i < persistedFields.size(); i++) {
+				FieldSpecification fieldSpec = persistedFields.get(i);
 				if (log.isDebugEnabled()) {
 					log.debug("Processing field " + fieldSpec.name);
 				}
 
-				if (fieldSpec.persistField) {
-					String fieldName = fieldSpec.name;
-					if (fieldSpec.type == NUMERICAL) {
-                        long fieldVal = resultSet.getLong(fieldName);
-                        if (resultSet.wasNull()) {
-                            builder.field(fieldName, (Long)null);
-                        } else {
-                            builder.field(fieldName, fieldVal);
-                        }
-					} else if (fieldSpec.type == DECIMAL10_3) {
-                        double fieldVal = resultSet.getDouble(fieldName);
-                        if (resultSet.wasNull()) {
-                            builder.field(fieldName, (Double)null);
-                        } else {
-                            builder.field(fieldName, fieldVal);
-                        }
-					} else if (fieldSpec.type == ALPHANUMERICAL) {
-						builder.field(fieldName, resultSet.getString(fieldName));
-					} else if (fieldSpec.type == DATETIME) {
-                        builder.field(fieldName, resultSet.getDate(fieldName));
+				String fieldName = fieldSpec.name;
+				int columnIndex = compiled.getSelectColumnIndex(i);
+				if (fieldSpec.type == NUMERICAL) {
+                    long fieldVal = resultSet.getLong(columnIndex);
+                    if (resultSet.wasNull()) {
+                        builder.field(fieldName, (Long)null);
+                    } else {
+                        builder.field(fieldName, fieldVal);
+                    }
+				} else if (fieldSpec.type == DECIMAL10_3) {
+                    double fieldVal = resultSet.getDouble(columnIndex);
+                    if (resultSet.wasNull()) {
+                        builder.field(fieldName, (Double)null);
                     } else {
-						throw new AssertionError("Invalid field specifier " + fieldSpec.type + " used");
-					}
+                        builder.field(fieldName, fieldVal);
+                    }
+				} else if (fieldSpec.type == ALPHANUMERICAL) {
+					builder.field(fieldName, resultSet.getString(columnIndex));
+				} else if (fieldSpec.type == DATETIME) {
+                    builder.field(fieldName, resultSet.getDate(columnIndex));
+                } else {
+					throw new AssertionError("Invalid field specifier " + fieldSpec.type + " used");
 				}
 			}
 
@@ -198,17 +544,28 @@ public class RecordFetcher {
     private class RecordMetaRowsetMapper implements RowMapper<RecordWithMetadata> {
 
         private RecordRowsetMapper recordMapper;
+        private boolean keepNullValidTo;
 
         public RecordMetaRowsetMapper(RecordSpecification recordSpecification) {
+            this(recordSpecification, false);
+        }
+
+        /**
+         * @param keepNullValidTo map a NULL ValidTo to null, rather than to the time the row is mapped
+         */
+        public RecordMetaRowsetMapper(RecordSpecification recordSpecification, boolean keepNullValidTo) {
             recordMapper = new RecordRowsetMapper(recordSpecification);
+            this.keepNullValidTo = keepNullValidTo;
         }
 
         @Override
         public RecordWithMetadata mapRow(ResultSet resultSet, int i) throws SQLException {
-            Instant modifiedDate = new Instant(resultSet.getTimestamp("ModifiedDate"));
-            Instant validTo = new Instant(resultSet.getTimestamp("ValidTo"));
-            Instant validFrom = new Instant(resultSet.getTimestamp("ValidFrom"));
-            Long pid = (Long) resultSet.getObject("PID");
+            // the metadata columns come first in CompiledRecordSpecification.getSelectSql()
+            Long pid = (Long) resultSet.getObject(1);
+            Instant validFrom = new Instant(resultSet.getTimestamp(2));
+            Timestamp validToStamp = resultSet.getTimestamp(3);
+            Instant validTo = validToStamp != null || !keepNullValidTo ? new Instant(validToStamp) : null;
+            Instant modifiedDate = new Instant(resultSet.getTimestamp(4));
             Record record = recordMapper.mapRow(resultSet, i);
             return new RecordWithMetadata(validFrom, validTo, modifiedDate, pid, record);
         }
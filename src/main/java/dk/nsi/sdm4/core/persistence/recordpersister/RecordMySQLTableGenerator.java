@@ -29,6 +29,11 @@ import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.Re
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.NUMERICAL;
 
 public class RecordMySQLTableGenerator {
+	/**
+	 * Name of the index on (ModifiedDate, PID) of generated tables
+	 */
+	public static final String CHANGES_INDEX = "ModifiedDate_PID";
+
 	public static String createSqlSchema(RecordSpecification recordSpecification) {
 		RecordMySQLTableGenerator creator = new RecordMySQLTableGenerator(recordSpecification);
 		return creator.buildSqlSchema();
@@ -61,11 +66,18 @@ public class RecordMySQLTableGenerator {
 			}
 		}
 
+		if (recordSpecification.hasContentHash()) {
+			builder.append(String.format(",\n\t%s CHAR(%d)", RecordContentHash.COLUMN, RecordContentHash.LENGTH));
+		}
+
 		builder.append(",\n\tValidFrom DateTime NOT NULL");
 		builder.append(",\n\tValidTo DateTime");
 
 		builder.append(",\n\tModifiedDate DateTime NOT NULL");
 
+		// keyset pagination of RecordFetcher.fetchChangesSince
+		builder.append(",\n\tINDEX " + CHANGES_INDEX + " (ModifiedDate, PID)");
+
 		builder.append("\n) ENGINE=InnoDB COLLATE=utf8_bin;\n");
 
 		return builder.toString();
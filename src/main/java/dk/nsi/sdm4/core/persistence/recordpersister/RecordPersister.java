@@ -25,23 +25,75 @@
 package dk.nsi.sdm4.core.persistence.recordpersister;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordInsertSetter;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordLoadDataWriter;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordMultiRowInsertSetter;
 import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordUpdateSetter;
+import org.apache.log4j.Logger;
 import org.joda.time.Instant;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.StatementCallback;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Handles persisting of Records
  */
 public class RecordPersister {
+    private static final Logger log = Logger.getLogger(RecordPersister.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Amount of data sent by each LOAD DATA statement in {@link #bulkLoad}
+     */
+    private static final int LOAD_DATA_CHUNK_BYTES = 16 * 1024 * 1024;
+
 	private Instant transactionTime;
 
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private boolean multiRowInserts = false;
+
+    private int maxStatementBytes = RecordMultiRowInsertSetter.DEFAULT_MAX_STATEMENT_BYTES;
+
+    /**
+     * Error code of MySQL when LOAD DATA LOCAL INFILE is disabled by local_infile on the server or
+     * allowLoadLocalInfile in the driver
+     */
+    private static final int ER_NOT_ALLOWED_COMMAND = 1148;
+
+    // Whether the database driver accepts LOAD DATA LOCAL INFILE from a stream, null until it has been checked,
+    // false as well if the server has refused it
+    private Boolean loadDataSupported;
+
+    // Whether a LOAD DATA LOCAL INFILE has been accepted by the server
+    private boolean loadDataAccepted = false;
+
+    // Inserts queued by persistBatched, kept per specification so each batch uses a single statement
+    private final Map<RecordSpecification, List<RecordInsertSetter>> pendingInserts = Maps.newLinkedHashMap();
+
 	@Autowired
 	protected JdbcTemplate jdbcTemplate;
 
+    // the lookups of RecordFetcher, whose entries are removed when the records are written
+    @Autowired(required = false)
+    CurrentRecordCache currentRecordCache;
+
 	@Autowired
 	public RecordPersister(Instant transactionTime) {
 		this.transactionTime = transactionTime;
@@ -59,6 +111,53 @@ public class RecordPersister {
 		return transactionTime;
 	}
 
+    /**
+     * @param transactionTime time used as ValidFrom and ModifiedDate of the records persisted from now on
+     */
+    public void setTransactionTime(Instant transactionTime) {
+        this.transactionTime = transactionTime;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of records sent to the database in one JDBC batch by {@link #persistBatched}
+     * @param batchSize must be at least 1
+     */
+    public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive, was " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    public boolean isMultiRowInserts() {
+        return multiRowInserts;
+    }
+
+    /**
+     * When enabled, records queued by {@link #persistBatched} are sent as INSERT statements with a VALUES list per
+     * record instead of a JDBC batch of single row inserts. This is much faster on MySQL when the driver is not
+     * configured with rewriteBatchedStatements.
+     * @param multiRowInserts
+     */
+    public void setMultiRowInserts(boolean multiRowInserts) {
+        this.multiRowInserts = multiRowInserts;
+    }
+
+    public int getMaxStatementBytes() {
+        return maxStatementBytes;
+    }
+
+    /**
+     * Sets the size limit used when multi row inserts are enabled, should match max_allowed_packet on the server
+     * @param maxStatementBytes
+     */
+    public void setMaxStatementBytes(int maxStatementBytes) {
+        Preconditions.checkArgument(maxStatementBytes > 0, "Max statement bytes must be positive, was " + maxStatementBytes);
+        this.maxStatementBytes = maxStatementBytes;
+    }
+
     /**
      * Persist a record to database, automatically handles setting ModifiedDate and ValidFrom
      * @param record
@@ -70,11 +169,14 @@ public class RecordPersister {
 		Preconditions.checkNotNull(specification);
 		Preconditions.checkArgument(specification.conformsToSpecifications(record));
 
+		flush();
+
 		// Data dumps from Yderregister and "Sikrede" contains history information and are therefore handled
 		// differently from all other register types. The data contained in each input record is appended directly
 		// to the database instead of updating existing records.
-		jdbcTemplate.update(RecordInsertSetter.createInsertStatementSql(specification),
+		jdbcTemplate.update(specification.compile().getInsertSql(),
                 new RecordInsertSetter(record, specification, transactionTime, null, null));
+		invalidateCached(record, specification);
 	}
 
     /**
@@ -91,14 +193,40 @@ public class RecordPersister {
         Preconditions.checkNotNull(specification);
         Preconditions.checkArgument(specification.conformsToSpecifications(recordWithMeta.getRecord()));
 
-        jdbcTemplate.update(RecordInsertSetter.createInsertStatementSql(specification),
+        flush();
+
+        jdbcTemplate.update(specification.compile().getInsertSql(),
                 new RecordInsertSetter(recordWithMeta.getRecord(), specification, transactionTime,
                         recordWithMeta.getValidFrom(), recordWithMeta.getValidTo()));
+        invalidateCached(recordWithMeta.getRecord(), specification);
         Long pid = jdbcTemplate.queryForLong( "select last_insert_id()" );
          return new RecordWithMetadata(recordWithMeta.getValidFrom(), recordWithMeta.getValidTo(), transactionTime,
                  pid, recordWithMeta.getRecord());
     }
 
+    /**
+     * Persist a list of records to database, ValidTo and ValidFrom are set from metadata.
+     * ModifiedDate is always set to transaction time.
+     * The records are inserted using JDBC batches of {@link #getBatchSize()} records, and the new PIDs are read
+     * through the generated keys of each batch instead of one select per record.
+     * @param recordsWithMeta
+     * @param specification
+     * @return new recordmetas with PID and ModifiedDate updated, in the same order as the input.
+     */
+    public List<RecordWithMetadata> persist(List<RecordWithMetadata> recordsWithMeta, RecordSpecification specification)
+            throws SQLException {
+        Preconditions.checkNotNull(recordsWithMeta);
+        Preconditions.checkNotNull(specification);
+
+        flush();
+
+        List<RecordWithMetadata> persisted = Lists.newArrayListWithCapacity(recordsWithMeta.size());
+        for (List<RecordWithMetadata> chunk : Lists.partition(recordsWithMeta, batchSize)) {
+            persisted.addAll(insertReturningPids(chunk, specification));
+        }
+        return persisted;
+    }
+
     /**
      * Updates a record including ValidTo and ValidFrom.
      * ModifiedDate is always set to transaction time regardsless of meta
@@ -111,8 +239,253 @@ public class RecordPersister {
         Preconditions.checkNotNull(specification);
         Preconditions.checkArgument(specification.conformsToSpecifications(recordWithMeta.getRecord()));
 
-        jdbcTemplate.update(RecordUpdateSetter.createUpdateStatementSql(specification),
+        flush();
+
+        jdbcTemplate.update(specification.compile().getUpdateSql(),
                 new RecordUpdateSetter(recordWithMeta, specification, transactionTime));
+        invalidateCached(recordWithMeta.getRecord(), specification);
     }
 
+    /**
+     * Queues a record for insertion, with the same semantics as {@link #persist(Record, RecordSpecification)}.
+     * Queued records are sent to the database using JDBC batches of {@link #getBatchSize()} records, whatever is
+     * left in the queue is sent when {@link #flush()} is called.
+     * The record must not be modified after it has been queued.
+     * @param record
+     * @param specification
+     */
+    public void persistBatched(Record record, RecordSpecification specification) {
+        Preconditions.checkNotNull(record);
+        Preconditions.checkNotNull(specification);
+        Preconditions.checkArgument(specification.conformsToSpecifications(record));
+
+        List<RecordInsertSetter> pending = pendingInserts.get(specification);
+        if (pending == null) {
+            pending = Lists.newArrayListWithCapacity(batchSize);
+            pendingInserts.put(specification, pending);
+        }
+        pending.add(new RecordInsertSetter(record, specification, transactionTime, null, null));
+
+        if (pending.size() >= batchSize) {
+            flush(specification);
+        }
+    }
+
+    /**
+     * Appends a number of records to the database, with the same semantics as calling
+     * {@link #persist(Record, RecordSpecification)} for each of them. Intended for initial loads of registers like
+     * Yderregister and Sikrede where records are only ever appended.
+     * <p/>
+     * On MySQL the records are written as tab separated lines to memory and streamed to the server by
+     * LOAD DATA LOCAL INFILE statements of a bounded size, without staging a file on disk. On other databases, and
+     * when the MySQL server or driver does not allow LOAD DATA LOCAL INFILE, the records are inserted using JDBC
+     * batches.
+     * @param records
+     * @param specification
+     * @throws SQLException
+     */
+    public void bulkLoad(Iterable<Record> records, RecordSpecification specification) throws SQLException {
+        Preconditions.checkNotNull(records);
+        Preconditions.checkNotNull(specification);
+
+        flush();
+
+        // the records are streamed, so the lookups of the whole table are removed
+        if (currentRecordCache != null) {
+            currentRecordCache.invalidate(specification);
+        }
+
+        Iterator<Record> iterator = records.iterator();
+        if (!isLoadDataSupported()) {
+            insertBatched(iterator, specification);
+            return;
+        }
+
+        String sql = specification.compile().getLoadDataSql();
+        RecordLoadDataWriter writer = new RecordLoadDataWriter(specification, transactionTime);
+        // until the server has accepted a LOAD DATA the records are kept, so they can be inserted if it refuses it
+        List<Record> unaccepted = loadDataAccepted ? null : Lists.<Record>newArrayList();
+        while (iterator.hasNext()) {
+            writer.reset();
+            while (iterator.hasNext() && writer.getByteCount() < LOAD_DATA_CHUNK_BYTES) {
+                Record record = iterator.next();
+                Preconditions.checkNotNull(record);
+                writer.write(record);
+                if (unaccepted != null) {
+                    unaccepted.add(record);
+                }
+            }
+
+            if (!loadData(sql, writer)) {
+                log.warn("LOAD DATA LOCAL INFILE is not allowed, inserting the records of " + specification.getTable()
+                        + " in JDBC batches. Set local_infile on the server to load them faster.");
+                loadDataSupported = false;
+                insertBatched(Iterators.concat(unaccepted.iterator(), iterator), specification);
+                return;
+            }
+            loadDataAccepted = true;
+            unaccepted = null;
+        }
+    }
+
+    private void insertBatched(Iterator<Record> records, RecordSpecification specification) {
+        while (records.hasNext()) {
+            persistBatched(records.next(), specification);
+        }
+        flush();
+    }
+
+    /**
+     * Sends all records queued by {@link #persistBatched} to the database.
+     * Every other write made through this persister flushes the queue first, so statements reach the database in
+     * the order they were issued.
+     */
+    public void flush() {
+        for (RecordSpecification specification : Lists.newArrayList(pendingInserts.keySet())) {
+            flush(specification);
+        }
+    }
+
+    /**
+     * Throws away records queued by {@link #persistBatched} without sending them, used when an import fails.
+     * As the writes of the import are rolled back, the {@link CurrentRecordCache} is emptied as well.
+     */
+    public void clearBatch() {
+        pendingInserts.clear();
+        if (currentRecordCache != null) {
+            currentRecordCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Removes the lookups of the {@link CurrentRecordCache} whose result is changed by writing a record, called for
+     * every record inserted or updated
+     */
+    void invalidateCached(Record record, RecordSpecification specification) {
+        if (currentRecordCache != null) {
+            currentRecordCache.invalidate(record, specification);
+        }
+    }
+
+    private List<RecordWithMetadata> insertReturningPids(final List<RecordWithMetadata> recordsWithMeta,
+                                                         RecordSpecification specification) {
+        final List<RecordInsertSetter> setters = Lists.newArrayListWithCapacity(recordsWithMeta.size());
+        for (RecordWithMetadata recordWithMeta : recordsWithMeta) {
+            Preconditions.checkNotNull(recordWithMeta);
+            Preconditions.checkNotNull(recordWithMeta.getRecord());
+            Preconditions.checkArgument(specification.conformsToSpecifications(recordWithMeta.getRecord()));
+            setters.add(new RecordInsertSetter(recordWithMeta.getRecord(), specification, transactionTime,
+                    recordWithMeta.getValidFrom(), recordWithMeta.getValidTo()));
+            invalidateCached(recordWithMeta.getRecord(), specification);
+        }
+
+        final String sql = specification.compile().getInsertSql();
+        return jdbcTemplate.execute(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            }
+        }, new PreparedStatementCallback<List<RecordWithMetadata>>() {
+            @Override
+            public List<RecordWithMetadata> doInPreparedStatement(PreparedStatement preparedStatement) throws SQLException {
+                for (RecordInsertSetter setter : setters) {
+                    setter.setValues(preparedStatement);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+
+                List<RecordWithMetadata> persisted = Lists.newArrayListWithCapacity(recordsWithMeta.size());
+                ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
+                try {
+                    for (RecordWithMetadata recordWithMeta : recordsWithMeta) {
+                        if (!generatedKeys.next()) {
+                            throw new SQLException("Expected " + recordsWithMeta.size() + " generated keys, but got "
+                                    + persisted.size());
+                        }
+                        persisted.add(new RecordWithMetadata(recordWithMeta.getValidFrom(), recordWithMeta.getValidTo(),
+                                transactionTime, generatedKeys.getLong(1), recordWithMeta.getRecord()));
+                    }
+                } finally {
+                    generatedKeys.close();
+                }
+                return persisted;
+            }
+        });
+    }
+
+    private boolean isLoadDataSupported() {
+        if (loadDataSupported == null) {
+            loadDataSupported = jdbcTemplate.execute(new StatementCallback<Boolean>() {
+                @Override
+                public Boolean doInStatement(Statement statement) throws SQLException {
+                    return RecordLoadDataWriter.setLocalInfileInputStream(statement, null);
+                }
+            });
+        }
+        return loadDataSupported;
+    }
+
+    /**
+     * @return false if the server or driver does not allow LOAD DATA LOCAL INFILE, in which case nothing is loaded
+     */
+    private boolean loadData(final String sql, final RecordLoadDataWriter writer) {
+        Integer loaded = jdbcTemplate.execute(new StatementCallback<Integer>() {
+            @Override
+            public Integer doInStatement(Statement statement) throws SQLException {
+                RecordLoadDataWriter.setLocalInfileInputStream(statement, writer.toInputStream());
+                try {
+                    return statement.executeUpdate(sql);
+                } catch (SQLException e) {
+                    if (e.getErrorCode() == ER_NOT_ALLOWED_COMMAND) {
+                        return null;
+                    }
+                    throw e;
+                } finally {
+                    RecordLoadDataWriter.setLocalInfileInputStream(statement, null);
+                }
+            }
+        });
+
+        if (loaded == null) {
+            return false;
+        }
+        if (loaded != writer.getRowCount()) {
+            throw new IllegalStateException("LOAD DATA into " + sql + " loaded " + loaded + " rows, expected "
+                    + writer.getRowCount());
+        }
+        return true;
+    }
+
+    private void flush(RecordSpecification specification) {
+        final List<RecordInsertSetter> pending = pendingInserts.remove(specification);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+
+        for (RecordInsertSetter setter : pending) {
+            invalidateCached(setter.getRecord(), specification);
+        }
+
+        if (multiRowInserts) {
+            int maxRows = RecordMultiRowInsertSetter.maxRowsPerStatement(specification, maxStatementBytes);
+            for (List<RecordInsertSetter> rows : Lists.partition(pending, maxRows)) {
+                jdbcTemplate.update(RecordMultiRowInsertSetter.createInsertStatementSql(specification, rows.size()),
+                        new RecordMultiRowInsertSetter(rows));
+            }
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(specification.compile().getInsertSql(),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement preparedStatement, int i) throws SQLException {
+                        pending.get(i).setValues(preparedStatement);
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return pending.size();
+                    }
+                });
+    }
 }
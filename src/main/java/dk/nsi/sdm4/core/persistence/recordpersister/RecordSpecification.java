@@ -26,17 +26,17 @@ package dk.nsi.sdm4.core.persistence.recordpersister;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Map;
 
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.*;
 
 public class RecordSpecification {
 	private final String table;
 	private final String keyColumn;
+	private boolean contentHash = false;
 
 	public String getTable() {
 		return table;
@@ -46,76 +46,143 @@ public class RecordSpecification {
 		return keyColumn;
 	}
 
-	private List<FieldSpecification> fields;
+	private ImmutableList<FieldSpecification> fields;
+	private Map<String, Integer> fieldIndexes;
+	private transient volatile CompiledRecordSpecification compiled;
 
 	private RecordSpecification(String table, String keyColumn) {
 		this.table = table;
 		this.keyColumn = keyColumn;
 
-		fields = new ArrayList<FieldSpecification>();
+		fields = ImmutableList.of();
 	}
 
 	public static RecordSpecification createSpecification(String tableName, String keyColumnName, FieldSpecification... fieldSpecifications) {
 		RecordSpecification recordSpecification = new RecordSpecification(tableName, keyColumnName);
 
-		recordSpecification.fields = Arrays.asList(fieldSpecifications);
+		recordSpecification.fields = ImmutableList.copyOf(fieldSpecifications);
+		recordSpecification.fieldIndexes = Maps.newHashMapWithExpectedSize(fieldSpecifications.length);
+		for (int i = fieldSpecifications.length - 1; i >= 0; i--) {
+			// the first field wins if several fields have the same name
+			recordSpecification.fieldIndexes.put(fieldSpecifications[i].name, i);
+		}
 
 		return recordSpecification;
 	}
 
+	/**
+	 * Makes records of this specification carry a digest of their persisted fields in a ContentHash column,
+	 * so unchanged records can be recognised without fetching the stored fields. See {@link RecordContentHash}.
+	 * @return this specification
+	 */
+	public RecordSpecification withContentHash() {
+		this.contentHash = true;
+		this.compiled = null;
+		return this;
+	}
+
+	public boolean hasContentHash() {
+		return contentHash;
+	}
+
 	public Iterable<FieldSpecification> getFieldSpecs() {
-		return ImmutableList.copyOf(fields);
+		return fields;
 	}
 
-	public int acceptedTotalLineLength() {
-		int totalLength = 0;
-		for (FieldSpecification fieldSpecification : fields) {
-            if (!fieldSpecification.calculatedField) {
-			    totalLength += fieldSpecification.length;
-            }
+	/**
+	 * @return the SQL and field lists derived from this specification, worked out on the first call
+	 */
+	public CompiledRecordSpecification compile() {
+		CompiledRecordSpecification result = compiled;
+		if (result == null) {
+			// harmless if two threads compile at the same time, they get equal results
+			result = new CompiledRecordSpecification(this);
+			compiled = result;
 		}
-		return totalLength;
+		return result;
+	}
+
+	public int getFieldCount() {
+		return fields.size();
 	}
 
+	/**
+	 * @return the name of the field at a position in this specification
+	 */
+	public String getFieldName(int index) {
+		return fields.get(index).name;
+	}
+
+	/**
+	 * @return the position of a field in this specification, or -1 if the specification has no field of that name
+	 */
+	public int indexOf(String fieldName) {
+		Integer index = fieldIndexes.get(fieldName);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * @return the type of a field, or null if the specification has no field of that name
+	 */
+	public FieldSpecification.RecordFieldType getFieldType(String fieldName) {
+		int index = indexOf(fieldName);
+		return index >= 0 ? fields.get(index).type : null;
+	}
+
+	public int acceptedTotalLineLength() {
+		return compile().acceptedTotalLineLength();
+	}
+
+	/**
+	 * Checks that a record has the persisted fields of this specification, with values of the right types.
+	 * The outcome is remembered by the record until it is changed, so checking the same record again is cheap.
+	 */
 	public boolean conformsToSpecifications(Record record) {
 		Preconditions.checkNotNull(record, "record");
+		if (record.isKnownToConformTo(this)) {
+			return true;
+		}
+		if (checkConformance(record)) {
+			record.setKnownToConformTo(this);
+			return true;
+		}
+		return false;
+	}
 
-		for (FieldSpecification fieldsSpecification : fields) {
-			if (fieldsSpecification.persistField) {
-				if (!record.containsKey(fieldsSpecification.name) && !fieldsSpecification.isOptional()) {
+	private boolean checkConformance(Record record) {
+		for (FieldSpecification fieldsSpecification : compile().getPersistedFields()) {
+			if (!record.containsKey(fieldsSpecification.name) && !fieldsSpecification.isOptional()) {
+				return false;
+			} else if (fieldsSpecification.type == NUMERICAL || fieldsSpecification.type == DECIMAL10_3) {
+				// checked without boxing numbers kept unboxed by the record
+				if (!record.isNull(fieldsSpecification.name) && !record.isNumber(fieldsSpecification.name)) {
 					return false;
-				} else {
-					Object value = record.get(fieldsSpecification.name);
+				}
+			} else {
+				Object value = record.get(fieldsSpecification.name);
 
-					if (fieldsSpecification.type == NUMERICAL || fieldsSpecification.type == DECIMAL10_3) {
-						if(value == null && fieldsSpecification.isOptional()) {
-							// ok, field is optional
-						} else if (value != null && !(value instanceof Number)) {
+				if (fieldsSpecification.type == ALPHANUMERICAL) {
+					if(value == null && fieldsSpecification.isOptional()) {
+						// ok, field is optional
+					} else {
+						if (value != null && !(value instanceof String)) {
 							return false;
-						}
-					} else if (fieldsSpecification.type == ALPHANUMERICAL) {
-						if(value == null && fieldsSpecification.isOptional()) {
-							// ok, field is optional
-						} else {
-							if (value != null && !(value instanceof String)) {
-								return false;
-							} else if (value != null) {
-								String valueAsString = String.valueOf(value);
+						} else if (value != null) {
+							String valueAsString = String.valueOf(value);
 
-								if (valueAsString.length() > fieldsSpecification.length) {
-									return false;
-								}
+							if (valueAsString.length() > fieldsSpecification.length) {
+								return false;
 							}
 						}
-                    } else if (fieldsSpecification.type == DATETIME) {
-                        if(value == null && fieldsSpecification.isOptional()) {
-                            // ok, field is optional
-                        } else if (value != null && !(value instanceof java.util.Date)) {
-                            return false;
-                        }
-					} else {
-						throw new AssertionError("Field specification is in illegal state. Type must be set.");
 					}
+				} else if (fieldsSpecification.type == DATETIME) {
+					if(value == null && fieldsSpecification.isOptional()) {
+						// ok, field is optional
+					} else if (value != null && !(value instanceof java.util.Date)) {
+						return false;
+					}
+				} else {
+					throw new AssertionError("Field specification is in illegal state. Type must be set.");
 				}
 			}
 		}
@@ -1,9 +1,23 @@
 package dk.nsi.sdm4.core.persistence.recordpersister;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.joda.time.Instant;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.NUMERICAL;
 
 /**
  *
@@ -13,6 +27,18 @@ public class UpdateExistingRecordPersister extends RecordPersister {
     @Autowired
     private RecordFetcher fetcher;
 
+    private boolean indexCurrentRecords = false;
+
+    // loaded at the first persist of each specification, for the transaction time they were loaded at
+    private final Map<RecordSpecification, CurrentRecordIndex> currentRecordIndexes = Maps.newHashMap();
+    private Instant indexedTransactionTime;
+
+    // records queued by persistBatched, compared with the current db-records when the queue is flushed
+    private final Map<RecordSpecification, List<Record>> pendingRecords = Maps.newLinkedHashMap();
+
+    // whether the alphanumerical key column of a specification has a binary collation, read once per specification
+    private final Map<RecordSpecification, Boolean> binaryKeyCollations = Maps.newHashMap();
+
     public UpdateExistingRecordPersister() {
     }
 
@@ -20,6 +46,21 @@ public class UpdateExistingRecordPersister extends RecordPersister {
         super(transactionTime);
     }
 
+    public boolean isIndexCurrentRecords() {
+        return indexCurrentRecords;
+    }
+
+    /**
+     * When set, the current records of a specification with a content hash and a numerical key column are loaded
+     * into a {@link CurrentRecordIndex} by the first persist of an import, and records are compared with the index
+     * instead of with a query per chunk of records. Only keys written during the import are read from the database.
+     * Intended for registers where most of the table is compared on every import.
+     * @see RecordFetcher#fetchCurrentIndex(RecordSpecification)
+     */
+    public void setIndexCurrentRecords(boolean indexCurrentRecords) {
+        this.indexCurrentRecords = indexCurrentRecords;
+    }
+
     /**
      * This method will persist the record parsed from file into the database, using the following algorithm:
      * <ol>
@@ -46,6 +87,13 @@ public class UpdateExistingRecordPersister extends RecordPersister {
      */
     @Override
     public void persist(Record record, RecordSpecification specification) throws SQLException {
+        if (specification.hasContentHash()) {
+            // compare content hashes instead of fetching the existing record
+            persist(Collections.singletonList(record), specification);
+            return;
+        }
+
+        flush(); // queued inserts must be visible to the fetcher
         RecordWithMetadata existingRecord = fetcher.fetchCurrentWithMeta(String.valueOf(record.get(specification.getKeyColumn())), specification);
         if (existingRecord == null) {
             super.persist(record, specification);
@@ -57,4 +105,288 @@ public class UpdateExistingRecordPersister extends RecordPersister {
             } // else - ignore persist record request as existing record is identical
         }
     }
+
+    /**
+     * Persists a number of records with the same semantics as calling {@link #persist(Record, RecordSpecification)}
+     * for each of them, but using a few statements per chunk of {@link #getBatchSize()} records instead of up to three
+     * statements per record:
+     * <ol>
+     *     <li>The current db-records for all keys in the chunk are fetched by a single query</li>
+     *     <li>The records are compared in memory</li>
+     *     <li>Changed db-records are closed in one JDBC batch, new and changed records are inserted in another</li>
+     * </ol>
+     * A chunk is ended early if a key occurs twice, or two keys may match the same db-record, eg. keys differing in
+     * case or trailing spaces, so a later record is compared against the one before it.
+     * If the specification has a content hash only the PIDs and hashes of the current db-records are fetched.
+     * @param records
+     * @param specification
+     * @throws SQLException
+     */
+    public void persist(Iterable<Record> records, RecordSpecification specification) throws SQLException {
+        persistRecords(records, specification);
+    }
+
+    private void persistRecords(Iterable<Record> records, RecordSpecification specification) {
+        Preconditions.checkNotNull(records);
+        Preconditions.checkNotNull(specification);
+
+        flush(); // queued inserts must be visible to the fetcher
+        String keyColumn = specification.getKeyColumn();
+        // keys MySQL may find equal, eg. differing in case, must be compared against the record before them. The keys
+        // of a numerical column are its values, and a binary collation only ignores trailing spaces, so the keys are
+        // only normalized when the collation of the column can find other keys equal.
+        boolean numericalKeys = specification.getFieldType(keyColumn) == NUMERICAL;
+        boolean binaryKeys = !numericalKeys && hasBinaryKeyCollation(specification);
+        Map<String, Record> chunk = Maps.newLinkedHashMap();
+        Set<String> comparedKeys = Sets.newHashSet();
+        for (Record record : records) {
+            Preconditions.checkNotNull(record);
+            Preconditions.checkArgument(specification.conformsToSpecifications(record));
+
+            String key = String.valueOf(record.get(keyColumn));
+            String comparedKey = numericalKeys ? key
+                    : binaryKeys ? KeyComparison.withoutTrailingSpaces(key)
+                    : KeyComparison.normalize(specification, keyColumn, key);
+            if (chunk.size() >= getBatchSize() || comparedKeys.contains(comparedKey)) {
+                persistChunk(chunk, specification);
+                chunk.clear();
+                comparedKeys.clear();
+            }
+            chunk.put(key, record);
+            comparedKeys.add(comparedKey);
+        }
+        persistChunk(chunk, specification);
+    }
+
+    /**
+     * Queues a record with the same semantics as {@link #persist(Record, RecordSpecification)}. Queued records are
+     * compared with the current db-records and written by {@link #persist(Iterable, RecordSpecification)} when
+     * {@link #getBatchSize()} records are queued for the specification, or when {@link #flush()} is called.
+     * The record must not be modified after it has been queued.
+     * @param record
+     * @param specification
+     */
+    @Override
+    public void persistBatched(Record record, RecordSpecification specification) {
+        Preconditions.checkNotNull(record);
+        Preconditions.checkNotNull(specification);
+        Preconditions.checkArgument(specification.conformsToSpecifications(record));
+
+        List<Record> pending = pendingRecords.get(specification);
+        if (pending == null) {
+            pending = Lists.newArrayListWithCapacity(getBatchSize());
+            pendingRecords.put(specification, pending);
+        }
+        pending.add(record);
+
+        if (pending.size() >= getBatchSize()) {
+            persistPending(specification);
+        }
+    }
+
+    /**
+     * Compares and writes the records like {@link #persist(Iterable, RecordSpecification)}, as LOAD DATA can only
+     * append records and would leave the current db-records of changed keys current
+     * @param records
+     * @param specification
+     * @throws SQLException
+     */
+    @Override
+    public void bulkLoad(Iterable<Record> records, RecordSpecification specification) throws SQLException {
+        persist(records, specification);
+    }
+
+    /**
+     * Compares and writes the records queued by {@link #persistBatched}, and sends the resulting inserts
+     */
+    @Override
+    public void flush() {
+        for (RecordSpecification specification : Lists.newArrayList(pendingRecords.keySet())) {
+            persistPending(specification);
+        }
+        super.flush();
+    }
+
+    private boolean hasBinaryKeyCollation(RecordSpecification specification) {
+        Boolean binary = binaryKeyCollations.get(specification);
+        if (binary == null) {
+            List<String> collations = jdbcTemplate.queryForList("SELECT COLLATION_NAME FROM information_schema.COLUMNS" +
+                    " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?", String.class,
+                    specification.getTable(), specification.getKeyColumn());
+            binary = collations.size() == 1 && collations.get(0) != null && collations.get(0).endsWith("_bin");
+            binaryKeyCollations.put(specification, binary);
+        }
+        return binary;
+    }
+
+    private void persistPending(RecordSpecification specification) {
+        List<Record> pending = pendingRecords.remove(specification);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+
+        persistRecords(pending, specification);
+    }
+
+    private void persistChunk(Map<String, Record> chunk, RecordSpecification specification) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        List<RecordWithMetadata> changedRecords = Lists.newArrayList();
+        Map<String, Record> toCompare = chunk;
+        if (specification.hasContentHash()) {
+            toCompare = persistChangedHashes(chunk, changedRecords, specification);
+        }
+
+        Map<String, RecordWithMetadata> existingRecords = fetcher.fetchCurrentWithMeta(toCompare.keySet(), specification);
+        for (Map.Entry<String, Record> entry : toCompare.entrySet()) {
+            RecordWithMetadata existingRecord = existingRecords.get(entry.getKey());
+            if (existingRecord == null) {
+                super.persistBatched(entry.getValue(), specification);
+            } else if (!existingRecord.getRecord().equals(entry.getValue())) {
+                existingRecord.setValidTo(getTransactionTime());
+                changedRecords.add(existingRecord);
+                super.persistBatched(entry.getValue(), specification);
+            } // else - ignore persist record request as existing record is identical
+        }
+
+        close(changedRecords, specification);
+        flush();
+    }
+
+    /**
+     * Handles the records of a chunk that can be compared with the current db-records by their content hashes only.
+     * @return the records whose current db-record has no stored hash and must be compared field by field
+     */
+    private Map<String, Record> persistChangedHashes(Map<String, Record> chunk, List<RecordWithMetadata> changedRecords,
+                                                     RecordSpecification specification) {
+        Map<String, RecordContentHash> existingHashes = fetchCurrentContentHashes(chunk.keySet(), specification);
+        Map<String, Record> unhashed = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Record> entry : chunk.entrySet()) {
+            RecordContentHash existingHash = existingHashes.get(entry.getKey());
+            if (existingHash == null) {
+                super.persistBatched(entry.getValue(), specification);
+            } else if (existingHash.getContentHash() == null) {
+                unhashed.put(entry.getKey(), entry.getValue());
+            } else if (!existingHash.getContentHash().equals(RecordContentHash.compute(entry.getValue(), specification))) {
+                changedRecords.add(new RecordWithMetadata(null, getTransactionTime(), null, existingHash.getPid(), null));
+                super.persistBatched(entry.getValue(), specification);
+            } // else - ignore persist record request as existing record is identical
+        }
+        return unhashed;
+    }
+
+    private Map<String, RecordContentHash> fetchCurrentContentHashes(Collection<String> keys, RecordSpecification specification) {
+        CurrentRecordIndex index = currentRecordIndex(specification);
+        if (index == null) {
+            return fetcher.fetchCurrentContentHashesForKeys(keys, specification);
+        }
+
+        Map<String, RecordContentHash> hashes = Maps.newHashMapWithExpectedSize(keys.size());
+        List<String> notIndexed = Lists.newArrayList();
+        for (String key : keys) {
+            Long numericalKey = parseNumericalKey(key);
+            if (numericalKey == null || index.isWritten(numericalKey)) {
+                notIndexed.add(key);
+            } else {
+                RecordContentHash hash = index.getContentHash(numericalKey);
+                if (hash != null) {
+                    hashes.put(key, hash);
+                }
+            }
+        }
+        if (!notIndexed.isEmpty()) {
+            hashes.putAll(fetcher.fetchCurrentContentHashesForKeys(notIndexed, specification));
+        }
+        return hashes;
+    }
+
+    private CurrentRecordIndex currentRecordIndex(RecordSpecification specification) {
+        if (!indexCurrentRecords || specification.getFieldType(specification.getKeyColumn()) != NUMERICAL) {
+            return null;
+        }
+
+        if (!getTransactionTime().equals(indexedTransactionTime)) {
+            currentRecordIndexes.clear();
+            indexedTransactionTime = getTransactionTime();
+        }
+        CurrentRecordIndex index = currentRecordIndexes.get(specification);
+        if (index == null) {
+            index = fetcher.fetchCurrentIndex(specification);
+            currentRecordIndexes.put(specification, index);
+        }
+        return index;
+    }
+
+    /**
+     * Also marks the key as written in the {@link CurrentRecordIndex} of the specification, whichever method wrote
+     * the record, as the index no longer knows its current record
+     */
+    @Override
+    void invalidateCached(Record record, RecordSpecification specification) {
+        super.invalidateCached(record, specification);
+
+        CurrentRecordIndex index = currentRecordIndexes.get(specification);
+        if (index != null) {
+            Long numericalKey = parseNumericalKey(String.valueOf(record.get(specification.getKeyColumn())));
+            if (numericalKey != null) {
+                index.markWritten(numericalKey);
+            }
+        }
+    }
+
+    /**
+     * @return the value of a key of a numerical key column, or null if the key is null
+     */
+    private static Long parseNumericalKey(String key) {
+        try {
+            return Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return null; // the keys of null values are "null"
+        }
+    }
+
+    @Override
+    public void clearBatch() {
+        pendingRecords.clear();
+        super.clearBatch();
+        currentRecordIndexes.clear();
+        binaryKeyCollations.clear();
+    }
+
+    private void close(final List<RecordWithMetadata> recordsWithMeta, RecordSpecification specification) {
+        if (recordsWithMeta.isEmpty()) {
+            return;
+        }
+
+        final Timestamp transactionTime = new Timestamp(getTransactionTime().getMillis());
+        jdbcTemplate.batchUpdate("UPDATE " + specification.getTable() + " SET ValidTo=?, ModifiedDate=? WHERE PID=?",
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement preparedStatement, int i) throws SQLException {
+                        RecordWithMetadata recordWithMeta = recordsWithMeta.get(i);
+                        preparedStatement.setTimestamp(1, new Timestamp(recordWithMeta.getValidTo().getMillis()));
+                        preparedStatement.setTimestamp(2, transactionTime);
+                        preparedStatement.setLong(3, recordWithMeta.getPid());
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return recordsWithMeta.size();
+                    }
+                });
+
+        if (currentRecordCache != null) {
+            for (RecordWithMetadata recordWithMeta : recordsWithMeta) {
+                if (recordWithMeta.getRecord() != null) {
+                    currentRecordCache.invalidate(recordWithMeta.getRecord(), specification);
+                } else {
+                    // closed by comparing content hashes, so the fields of the closed record are not known
+                    currentRecordCache.invalidate(specification);
+                    break;
+                }
+            }
+        }
+    }
 }
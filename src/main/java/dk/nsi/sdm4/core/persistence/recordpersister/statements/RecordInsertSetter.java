@@ -27,6 +27,7 @@ package dk.nsi.sdm4.core.persistence.recordpersister.statements;
 import com.google.common.collect.Lists;
 import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
 import dk.nsi.sdm4.core.persistence.recordpersister.Record;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordContentHash;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.Instant;
@@ -52,12 +53,23 @@ public class RecordInsertSetter extends RecordSetter {
 
     @Override
     public void setValues(PreparedStatement preparedStatement) throws SQLException {
-        int index = 1;
+        setValues(preparedStatement, 1);
+    }
 
-        for (FieldSpecification fieldSpecification : recordSpec.getFieldSpecs()) {
-            if (fieldSpecification.persistField) {
-                setStatementFieldAtIndex(preparedStatement, fieldSpecification, index++);
-            }
+    /**
+     * Sets the values of this record on a statement, starting at a given parameter index. Used when several records
+     * are inserted by the same statement.
+     * @param preparedStatement
+     * @param index index of the first parameter to set
+     * @return index of the parameter following the ones set for this record
+     * @throws SQLException
+     */
+    public int setValues(PreparedStatement preparedStatement, int index) throws SQLException {
+        for (FieldSpecification fieldSpecification : recordSpec.compile().getPersistedFields()) {
+            setStatementFieldAtIndex(preparedStatement, fieldSpecification, index++);
+        }
+        if (recordSpec.hasContentHash()) {
+            preparedStatement.setString(index++, RecordContentHash.compute(record, recordSpec));
         }
         // Set ValidFrom
         if (validFrom == null) {
@@ -74,6 +86,8 @@ public class RecordInsertSetter extends RecordSetter {
         }
         // Set ModifiedDate to transaction time always
         preparedStatement.setTimestamp(index++, new Timestamp(transactionTime.getMillis()));
+
+        return index;
     }
 
     public static String createInsertStatementSql(RecordSpecification specification) {
@@ -91,6 +105,11 @@ public class RecordInsertSetter extends RecordSetter {
             }
         }
 
+        if (specification.hasContentHash()) {
+            fieldNames.add(RecordContentHash.COLUMN);
+            questionMarks.add("?");
+        }
+
         fieldNames.add("ValidFrom");
         questionMarks.add("?");
 
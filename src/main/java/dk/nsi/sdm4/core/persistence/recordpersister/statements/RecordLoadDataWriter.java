@@ -0,0 +1,207 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister.statements;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.Record;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordContentHash;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import org.apache.commons.lang.StringUtils;
+import org.joda.time.Instant;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.ALPHANUMERICAL;
+
+/**
+ * Writes Records as tab separated lines in the format expected by MySQL's LOAD DATA statement, with the columns in
+ * the order of the RecordSpecification followed by ContentHash (if the specification has one), ValidFrom, ValidTo
+ * and ModifiedDate.
+ * The lines are kept in memory and handed to the MySQL driver as an input stream, so no file is written to disk.
+ * <p/>
+ * The values are formatted the way the MySQL driver formats parameters for the insert statement made by
+ * {@link RecordInsertSetter}, so a loaded record is stored exactly as if it had been inserted.
+ */
+public class RecordLoadDataWriter {
+    private static final String MYSQL_STATEMENT_INTERFACE = "com.mysql.jdbc.Statement";
+    private static final String LOCAL_INFILE_HOOK = "setLocalInfileInputStream";
+    private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String NULL_VALUE = "\\N";
+
+    private final RecordSpecification recordSpec;
+    private final String transactionTimeValue;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final StringBuilder line = new StringBuilder();
+    private int rowCount = 0;
+
+    public RecordLoadDataWriter(RecordSpecification recordSpec, Instant transactionTime) {
+        this.recordSpec = recordSpec;
+        this.transactionTimeValue = DATETIME_FORMAT.print(transactionTime);
+    }
+
+    /**
+     * Appends a record, with ValidFrom and ModifiedDate set to the transaction time and no ValidTo
+     */
+    public void write(Record record) {
+        Preconditions.checkArgument(recordSpec.conformsToSpecifications(record), "The record does not conform to it's spec.");
+
+        line.setLength(0);
+        for (FieldSpecification fieldSpecification : recordSpec.compile().getPersistedFields()) {
+            appendField(fieldSpecification, record);
+            line.append('\t');
+        }
+        if (recordSpec.hasContentHash()) {
+            line.append(RecordContentHash.compute(record, recordSpec)).append('\t');
+        }
+        line.append(transactionTimeValue).append('\t'); // ValidFrom
+        line.append(NULL_VALUE).append('\t'); // ValidTo
+        line.append(transactionTimeValue).append('\n'); // ModifiedDate
+
+        byte[] bytes = line.toString().getBytes(Charsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+        rowCount++;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getByteCount() {
+        return buffer.size();
+    }
+
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    public void reset() {
+        buffer.reset();
+        rowCount = 0;
+    }
+
+    private void appendField(FieldSpecification fieldSpecification, Record record) {
+        String fieldName = fieldSpecification.name;
+        if (record.isNull(fieldName)) {
+            line.append(NULL_VALUE);
+        } else if (fieldSpecification.type == ALPHANUMERICAL) {
+            appendEscaped((String) record.get(fieldName));
+        } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.NUMERICAL) {
+            line.append(record.getLong(fieldName));
+        } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DECIMAL10_3) {
+            line.append(record.getDouble(fieldName));
+        } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DATETIME) {
+            line.append(DATETIME_FORMAT.print(((Date) record.get(fieldName)).getTime()));
+        } else {
+            throw new AssertionError("RecordType was not set correctly in the specification");
+        }
+    }
+
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': line.append("\\\\"); break;
+                case '\t': line.append("\\t"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                case '\0': line.append("\\0"); break;
+                default: line.append(c);
+            }
+        }
+    }
+
+    public static String createLoadDataStatementSql(RecordSpecification specification) {
+        List<String> fieldNames = Lists.newArrayList();
+        for (FieldSpecification fieldSpecification : specification.getFieldSpecs()) {
+            if (fieldSpecification.persistField) {
+                fieldNames.add(fieldSpecification.name);
+            }
+        }
+        if (specification.hasContentHash()) {
+            fieldNames.add(RecordContentHash.COLUMN);
+        }
+        fieldNames.add("ValidFrom");
+        fieldNames.add("ValidTo");
+        fieldNames.add("ModifiedDate");
+
+        return "LOAD DATA LOCAL INFILE 'records.tsv' INTO TABLE " + specification.getTable() +
+                " CHARACTER SET utf8 (" + StringUtils.join(fieldNames, ", ") + ")";
+    }
+
+    /**
+     * Hands an input stream to the MySQL driver, which will send it instead of reading a local file the next time a
+     * LOAD DATA LOCAL INFILE statement is executed on the statement.
+     * The MySQL driver is not a compile time dependency, so the hook is looked up by reflection.
+     * @param statement
+     * @param inputStream the stream to send, or null to remove a stream again
+     * @return false if the statement does not come from the MySQL driver
+     */
+    public static boolean setLocalInfileInputStream(Statement statement, InputStream inputStream) throws SQLException {
+        Object mysqlStatement = unwrapMysqlStatement(statement);
+        if (mysqlStatement == null) {
+            return false;
+        }
+
+        try {
+            Method hook = mysqlStatement.getClass().getMethod(LOCAL_INFILE_HOOK, InputStream.class);
+            hook.invoke(mysqlStatement, inputStream);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            throw new SQLException("Unable to set local infile input stream on " + statement, e);
+        }
+    }
+
+    private static Object unwrapMysqlStatement(Statement statement) throws SQLException {
+        Class<?> mysqlStatementInterface;
+        try {
+            mysqlStatementInterface = Class.forName(MYSQL_STATEMENT_INTERFACE, false, statement.getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (statement.isWrapperFor(mysqlStatementInterface)) {
+                return statement.unwrap(mysqlStatementInterface);
+            }
+        } catch (AbstractMethodError e) {
+            // pre JDBC 4 wrapper, fall through to checking the statement itself
+        }
+        return mysqlStatementInterface.isInstance(statement) ? statement : null;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister.statements;
+
+import com.google.common.base.Preconditions;
+import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordContentHash;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Sets values on an INSERT statement that carries several records in one VALUES list, ie.
+ * INSERT INTO table (...) VALUES (...), (...), ...
+ * MySQL handles such a statement much faster than the same records inserted one statement at a time,
+ * also when the driver does not rewrite batches by itself.
+ * Each record is set by its own RecordInsertSetter at an offset parameter index.
+ */
+public class RecordMultiRowInsertSetter implements PreparedStatementSetter {
+    /**
+     * The default max_allowed_packet of MySQL 5.1
+     */
+    public static final int DEFAULT_MAX_STATEMENT_BYTES = 1024 * 1024;
+
+    /**
+     * MySQL does not allow more parameters than this in one prepared statement
+     */
+    static final int MAX_PARAMETERS = 65535;
+
+    private static final int METADATA_COLUMN_COUNT = 3; // ValidFrom, ValidTo, ModifiedDate
+
+    private final List<RecordInsertSetter> recordSetters;
+
+    public RecordMultiRowInsertSetter(List<RecordInsertSetter> recordSetters) {
+        Preconditions.checkArgument(!recordSetters.isEmpty(), "At least one record is needed");
+        this.recordSetters = recordSetters;
+    }
+
+    @Override
+    public void setValues(PreparedStatement preparedStatement) throws SQLException {
+        int index = 1;
+        for (RecordInsertSetter recordSetter : recordSetters) {
+            index = recordSetter.setValues(preparedStatement, index);
+        }
+    }
+
+    /**
+     * Creates an insert statement with a VALUES list for each of rowCount records
+     * @param specification
+     * @param rowCount number of records inserted by the statement
+     * @return
+     */
+    public static String createInsertStatementSql(RecordSpecification specification, int rowCount) {
+        Preconditions.checkArgument(rowCount > 0, "rowCount must be positive, was " + rowCount);
+
+        String singleRowSql = specification.compile().getInsertSql();
+        String questionMarks = singleRowSql.substring(singleRowSql.lastIndexOf(" VALUES ") + " VALUES ".length());
+
+        StringBuilder builder = new StringBuilder(singleRowSql.length() + (rowCount - 1) * (questionMarks.length() + 2));
+        builder.append(singleRowSql);
+        for (int i = 1; i < rowCount; i++) {
+            builder.append(", ").append(questionMarks);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Finds the number of records of a specification that can be inserted by one statement, without the statement
+     * sent to the server exceeding maxStatementBytes or the parameter limit of MySQL.
+     * The size of a record is estimated from the lengths and types of its persisted fields, so the
+     * result holds no matter what the actual values are.
+     * @param specification
+     * @param maxStatementBytes the max_allowed_packet of the server
+     * @return at least 1
+     */
+    public static int maxRowsPerStatement(RecordSpecification specification, int maxStatementBytes) {
+        int parametersPerRow = specification.hasContentHash() ? METADATA_COLUMN_COUNT + 1 : METADATA_COLUMN_COUNT;
+        for (FieldSpecification fieldSpecification : specification.getFieldSpecs()) {
+            if (fieldSpecification.persistField) {
+                parametersPerRow++;
+            }
+        }
+
+        int headerBytes = specification.compile().getInsertSql().length();
+        int rowsWithinBudget = (maxStatementBytes - headerBytes) / estimatedRowBytes(specification);
+        int rowsWithinParameterLimit = MAX_PARAMETERS / parametersPerRow;
+
+        return Math.max(1, Math.min(rowsWithinBudget, rowsWithinParameterLimit));
+    }
+
+    /**
+     * Upper bound on the number of bytes a record takes up in the VALUES list, when the driver has inlined the
+     * parameters. Strings are quoted and may need up to three bytes per character in utf8.
+     */
+    public static int estimatedRowBytes(RecordSpecification specification) {
+        int bytes = "(), ".length();
+
+        for (FieldSpecification fieldSpecification : specification.getFieldSpecs()) {
+            if (fieldSpecification.persistField) {
+                bytes += ", ".length();
+                if (fieldSpecification.type == FieldSpecification.RecordFieldType.ALPHANUMERICAL) {
+                    bytes += 2 + 3 * fieldSpecification.length;
+                } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.NUMERICAL) {
+                    bytes += 20; // Long.MIN_VALUE
+                } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DECIMAL10_3) {
+                    bytes += 24; // longest Double.toString
+                } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DATETIME) {
+                    bytes += 25; // quoted yyyy-MM-dd HH:mm:ss.SSS
+                } else {
+                    throw new AssertionError("RecordType was not set correctly in the specification");
+                }
+            }
+        }
+
+        if (specification.hasContentHash()) {
+            bytes += ", ".length() + 2 + RecordContentHash.LENGTH;
+        }
+
+        // ValidFrom, ValidTo and ModifiedDate
+        bytes += METADATA_COLUMN_COUNT * (", ".length() + 25);
+
+        return bytes;
+    }
+}
@@ -47,6 +47,10 @@ public abstract class RecordSetter implements PreparedStatementSetter {
         Preconditions.checkArgument(recordSpec.conformsToSpecifications(record), "The record does not conform to it's spec.");
     }
 
+    public Record getRecord() {
+        return record;
+    }
+
     /**
      * Sets a field on a prepared statement according to its field specification
      * @param statement
@@ -56,26 +60,29 @@ public abstract class RecordSetter implements PreparedStatementSetter {
      */
     protected void setStatementFieldAtIndex(PreparedStatement statement, FieldSpecification fieldSpecification,
                                             int index) throws SQLException {
-        Object fieldVal = record.get(fieldSpecification.name);
+        String fieldName = fieldSpecification.name;
         if (fieldSpecification.type == ALPHANUMERICAL) {
+            Object fieldVal = record.get(fieldName);
             if (fieldVal == null) {
                 statement.setNull(index, Types.VARCHAR);
             } else {
                 statement.setString(index, (String) fieldVal);
             }
         } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.NUMERICAL) {
-            if (fieldVal == null) {
+            // numbers are read unboxed
+            if (record.isNull(fieldName)) {
                 statement.setNull(index, Types.BIGINT);
             } else {
-                statement.setLong(index, (Long) fieldVal);
+                statement.setLong(index, record.getLong(fieldName));
             }
         } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DECIMAL10_3) {
-            if (fieldVal == null) {
+            if (record.isNull(fieldName)) {
                 statement.setNull(index, Types.DECIMAL);
             } else {
-                statement.setDouble(index, (Double) fieldVal);
+                statement.setDouble(index, record.getDouble(fieldName));
             }
         } else if (fieldSpecification.type == FieldSpecification.RecordFieldType.DATETIME) {
+            Object fieldVal = record.get(fieldName);
             if (fieldVal == null) {
                 statement.setNull(index, Types.TIMESTAMP);
             } else {
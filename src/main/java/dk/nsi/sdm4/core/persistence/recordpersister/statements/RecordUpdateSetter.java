@@ -25,6 +25,7 @@
 package dk.nsi.sdm4.core.persistence.recordpersister.statements;
 
 import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordContentHash;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordWithMetadata;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
 import org.joda.time.Instant;
@@ -56,10 +57,11 @@ public class RecordUpdateSetter extends RecordSetter {
         int index = 1;
 
         // Set all record fields
-        for (FieldSpecification fieldSpecification : recordSpec.getFieldSpecs()) {
-            if (fieldSpecification.persistField) {
-                setStatementFieldAtIndex(preparedStatement, fieldSpecification, index++);
-            }
+        for (FieldSpecification fieldSpecification : recordSpec.compile().getPersistedFields()) {
+            setStatementFieldAtIndex(preparedStatement, fieldSpecification, index++);
+        }
+        if (recordSpec.hasContentHash()) {
+            preparedStatement.setString(index++, RecordContentHash.compute(record, recordSpec));
         }
         // Set ValidFrom
         if (recordWithMeta.getValidFrom() != null) {
@@ -97,6 +99,9 @@ public class RecordUpdateSetter extends RecordSetter {
                 builder.append("=?, ");
             }
         }
+        if (specification.hasContentHash()) {
+            builder.append(RecordContentHash.COLUMN).append("=?, ");
+        }
         builder.append("ValidFrom=?, ValidTo=?, ModifiedDate=? ");
         builder.append("WHERE PID=?");
 
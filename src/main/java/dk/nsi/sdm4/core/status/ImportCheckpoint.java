@@ -0,0 +1,70 @@
+package dk.nsi.sdm4.core.status;
+
+import com.google.common.base.Objects;
+import dk.nsi.sdm4.core.util.Dates;
+import org.joda.time.Instant;
+
+/**
+ * How far an import committing in chunks has come with a file of a data set
+ */
+public class ImportCheckpoint {
+	/**
+	 * Transaction time of records committed before their import is done. As ValidFrom it hides the records
+	 * until {@link ImportCheckpointRepository#publish} gives them the transaction time of the import.
+	 */
+	public static final Instant UNPUBLISHED = new Instant(Dates.THE_END_OF_TIME.getTime());
+
+	private final String dataset;
+	private final String file;
+	private final String table;
+	private final long byteOffset;
+
+	/**
+	 * @param dataset name of the data set directory
+	 * @param file name of the file in the data set
+	 * @param table table the records of the file are persisted in
+	 * @param byteOffset offset in the file of the first line not yet committed
+	 */
+	public ImportCheckpoint(String dataset, String file, String table, long byteOffset) {
+		this.dataset = dataset;
+		this.file = file;
+		this.table = table;
+		this.byteOffset = byteOffset;
+	}
+
+	public String getDataset() {
+		return dataset;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public long getByteOffset() {
+		return byteOffset;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		ImportCheckpoint that = (ImportCheckpoint) o;
+		return byteOffset == that.byteOffset && Objects.equal(dataset, that.dataset)
+				&& Objects.equal(file, that.file) && Objects.equal(table, that.table);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(dataset, file, table, byteOffset);
+	}
+
+	@Override
+	public String toString() {
+		return "ImportCheckpoint{dataset=" + dataset + ", file=" + file + ", table=" + table + ", byteOffset=" + byteOffset + "}";
+	}
+}
@@ -0,0 +1,34 @@
+package dk.nsi.sdm4.core.status;
+
+import org.joda.time.Instant;
+
+/**
+ * Checkpoints of the imports of a single parser that commit in chunks, see
+ * {@link dk.nsi.sdm4.core.parser.RecordPipeline#setCommitInterval(int)}.
+ * <p/>
+ * Records committed by such an import have the transaction time {@link ImportCheckpoint#UNPUBLISHED}, so readers do
+ * not see them before {@link #publish} runs in the transaction that ends the import.
+ */
+public interface ImportCheckpointRepository {
+	/**
+	 * @return the checkpoint of a file in a data set, or null if nothing has been committed from it
+	 */
+	ImportCheckpoint getCheckpoint(String dataset, String file);
+
+	/**
+	 * Saves a checkpoint in the transaction committing the records before it
+	 */
+	void saveCheckpoint(ImportCheckpoint checkpoint);
+
+	/**
+	 * Gives the unpublished records of the data set the transaction time of the import and removes its checkpoints
+	 */
+	void publish(String dataset, Instant transactionTime);
+
+	/**
+	 * Deletes the unpublished records and checkpoints of imports that did not finish, if they were for another
+	 * data set. Their records can not be published, as the data set is no longer the next in the inbox.
+	 * Commits in a transaction of its own, so the locks are released before the chunks of the import are committed.
+	 */
+	void discardOtherDatasets(String dataset);
+}
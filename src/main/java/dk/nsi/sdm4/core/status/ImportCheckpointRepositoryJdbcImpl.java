@@ -0,0 +1,102 @@
+package dk.nsi.sdm4.core.status;
+
+import dk.nsi.sdm4.core.parser.Parser;
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Keeps the checkpoints in the table &lt;parser home&gt;ImportCheckpoint, next to the ImportStatus table.
+ * Parsers committing in chunks create it in their migrations:
+ * <pre>
+ * CREATE TABLE &lt;parser home&gt;ImportCheckpoint (
+ *     Dataset VARCHAR(255) NOT NULL,
+ *     File VARCHAR(255) NOT NULL,
+ *     TableName VARCHAR(64) NOT NULL,
+ *     ByteOffset BIGINT NOT NULL,
+ *     PRIMARY KEY (Dataset, File)
+ * );
+ * </pre>
+ */
+public class ImportCheckpointRepositoryJdbcImpl implements ImportCheckpointRepository {
+	private static final Logger logger = Logger.getLogger(ImportCheckpointRepositoryJdbcImpl.class);
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private Parser parser;
+
+	private String checkpointTableName;
+
+	@PostConstruct
+	private void constructTableNameFromParser() {
+		checkpointTableName = parser.getHome() + "ImportCheckpoint";
+	}
+
+	@Override
+	public ImportCheckpoint getCheckpoint(String dataset, String file) {
+		List<ImportCheckpoint> checkpoints = jdbcTemplate.query("SELECT * FROM " + checkpointTableName + " WHERE Dataset=? AND File=?",
+				new ImportCheckpointRowMapper(), dataset, file);
+		return checkpoints.isEmpty() ? null : checkpoints.get(0);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.MANDATORY)
+	public void saveCheckpoint(ImportCheckpoint checkpoint) {
+		int updated = jdbcTemplate.update("UPDATE " + checkpointTableName + " SET TableName=?, ByteOffset=? WHERE Dataset=? AND File=?",
+				checkpoint.getTable(), checkpoint.getByteOffset(), checkpoint.getDataset(), checkpoint.getFile());
+		if (updated == 0) {
+			jdbcTemplate.update("INSERT INTO " + checkpointTableName + " (Dataset, File, TableName, ByteOffset) VALUES (?, ?, ?, ?)",
+					checkpoint.getDataset(), checkpoint.getFile(), checkpoint.getTable(), checkpoint.getByteOffset());
+		}
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.MANDATORY)
+	public void publish(String dataset, Instant transactionTime) {
+		Timestamp unpublished = new Timestamp(ImportCheckpoint.UNPUBLISHED.getMillis());
+		Timestamp published = new Timestamp(transactionTime.getMillis());
+		for (String table : jdbcTemplate.queryForList("SELECT DISTINCT TableName FROM " + checkpointTableName + " WHERE Dataset=?", String.class, dataset)) {
+			int rows = jdbcTemplate.update("UPDATE " + table + " SET ValidFrom=?, ModifiedDate=? WHERE ValidFrom=?", published, published, unpublished);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Published " + rows + " rows of " + table + " from " + dataset);
+			}
+		}
+		jdbcTemplate.update("DELETE FROM " + checkpointTableName + " WHERE Dataset=?", dataset);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public void discardOtherDatasets(String dataset) {
+		int others = jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + checkpointTableName + " WHERE Dataset<>?", dataset);
+		if (others == 0) {
+			return;
+		}
+
+		// the unpublished rows of the tables can not be told apart, so the data set starts over as well
+		Timestamp unpublished = new Timestamp(ImportCheckpoint.UNPUBLISHED.getMillis());
+		for (String table : jdbcTemplate.queryForList("SELECT DISTINCT TableName FROM " + checkpointTableName, String.class)) {
+			int rows = jdbcTemplate.update("DELETE FROM " + table + " WHERE ValidFrom=?", unpublished);
+			logger.warn("Discarded " + rows + " unpublished rows of " + table + " from an unfinished import");
+		}
+		jdbcTemplate.update("DELETE FROM " + checkpointTableName);
+	}
+
+	private class ImportCheckpointRowMapper implements RowMapper<ImportCheckpoint> {
+		@Override
+		public ImportCheckpoint mapRow(ResultSet rs, int rowNum) throws SQLException {
+			return new ImportCheckpoint(rs.getString("Dataset"), rs.getString("File"), rs.getString("TableName"), rs.getLong("ByteOffset"));
+		}
+	}
+}
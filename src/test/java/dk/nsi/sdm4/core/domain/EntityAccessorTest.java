@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import org.junit.Test;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EntityAccessorTest {
+	@Entity
+	public static class Drug extends AbstractStamdataEntity {
+		@Id
+		@Column
+		public long getDrugId() {
+			return 28100636L;
+		}
+
+		@Column
+		public String getName() {
+			return "Panodil";
+		}
+
+		@Override
+		public Date getValidFrom() {
+			return new Date(0);
+		}
+	}
+
+	@Entity
+	static class PackageLocalDrug extends Drug {
+	}
+
+	@Test
+	public void readsIdAndColumnsInTheOrderOfTheColumnMethods() throws Exception {
+		EntityAccessor accessor = EntityAccessor.of(Drug.class);
+		Drug drug = new Drug();
+
+		assertEquals(28100636L, accessor.getId(drug));
+		assertEquals(2, accessor.getColumnMethods().size());
+		Object[] values = accessor.getColumnValues(drug);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(accessor.getColumnMethods().get(i).invoke(drug), values[i]);
+		}
+	}
+
+	@Test
+	public void readsTypesThatAreNotPublicByReflection() {
+		EntityAccessor accessor = EntityAccessor.of(PackageLocalDrug.class);
+
+		assertEquals(28100636L, accessor.getId(new PackageLocalDrug()));
+		assertEquals(2, accessor.getColumnValues(new PackageLocalDrug()).length);
+	}
+
+	@Test
+	public void createsOneAccessorPerType() {
+		assertSame(EntityAccessor.of(Drug.class), EntityAccessor.of(Drug.class));
+	}
+
+	@Test
+	public void entitiesUsesTheAccessorForIds() {
+		assertEquals(28100636L, Entities.getEntityID(new Drug()));
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import org.junit.Test;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EntityMetadataTest {
+	@Entity(name = "Laegemiddel")
+	public static class Drug extends AbstractStamdataEntity {
+		@Id
+		@Column(name = "DrugID")
+		public long getDrugId() {
+			return 28100636L;
+		}
+
+		@Column
+		public String getName() {
+			return "Panodil";
+		}
+
+		@Override
+		public Date getValidFrom() {
+			return new Date(0);
+		}
+	}
+
+	@Test
+	public void findsTableIdAndColumns() throws Exception {
+		EntityMetadata metadata = EntityMetadata.of(Drug.class);
+
+		assertEquals("Laegemiddel", metadata.getTableName());
+		assertEquals(Drug.class.getMethod("getDrugId"), metadata.getIdMethod());
+		assertEquals("DrugID", metadata.getIdColumnName());
+		assertEquals(2, metadata.getColumnMethods().size());
+		for (int i = 0; i < metadata.getColumnMethods().size(); i++) {
+			assertEquals(Entities.getColumnName(metadata.getColumnMethods().get(i)), metadata.getColumnNames().get(i));
+		}
+	}
+
+	@Test
+	public void isFoundOncePerType() {
+		assertSame(EntityMetadata.of(Drug.class), EntityMetadata.of(Drug.class));
+		assertSame(EntityMetadata.of(Drug.class).getColumnMethods(), Entities.getOutputMethods(Drug.class));
+		assertSame(Entities.getColumns(Drug.class), Entities.getColumns(Drug.class));
+	}
+
+	@Test
+	public void allowsTypesWithoutId() {
+		assertNull(EntityMetadata.of(String.class).getIdMethod());
+		assertNull(Entities.getIdMethod(String.class));
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeySetTest {
+	@Test
+	public void containsNumericKeysAddedInAnyOrder() {
+		KeySet keys = new KeySet();
+		for (long key = 5000; key > 0; key -= 2) {
+			keys.add(key);
+		}
+
+		assertTrue(keys.contains(5000L));
+		assertTrue(keys.contains(2L));
+		assertFalse(keys.contains(3L));
+		assertFalse(keys.contains(5002L));
+		assertEquals(2500, keys.size());
+	}
+
+	@Test
+	public void matchesIntegralKeysOfDifferentTypes() {
+		KeySet keys = new KeySet();
+		keys.add(42);
+
+		assertTrue(keys.contains(42L));
+		assertTrue(keys.contains((short) 42));
+		assertFalse(keys.contains("42"));
+	}
+
+	@Test
+	public void keepsOtherKeysInAHashSet() {
+		KeySet keys = new KeySet();
+		keys.add("0101011234");
+		keys.add(7L);
+
+		assertTrue(keys.contains("0101011234"));
+		assertFalse(keys.contains("7"));
+		assertEquals(2, keys.size());
+	}
+
+	@Test
+	public void countsDuplicates() {
+		KeySet keys = new KeySet();
+		keys.add(1L);
+		keys.add(2L);
+		keys.add(1L);
+		keys.add("a");
+		keys.add("a");
+
+		assertEquals(3, keys.size());
+		assertEquals(2, keys.getDuplicates());
+	}
+
+	@Test
+	public void canAddAfterLookingUp() {
+		KeySet keys = new KeySet();
+		keys.add(3L);
+		assertFalse(keys.contains(1L));
+
+		keys.add(1L);
+
+		assertTrue(keys.contains(1L));
+		assertTrue(keys.contains(3L));
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FixedWidthFileReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsLinesWithNewlines() throws IOException {
+        assertEquals(Lists.newArrayList("abc", "def", "ghi"), readAll("abc\ndef\nghi\n", 1024));
+    }
+
+    @Test
+    public void readsLinesWithCarriageReturnsAndUnterminatedLastLine() throws IOException {
+        assertEquals(Lists.newArrayList("abc", "def", "ghi"), readAll("abc\r\ndef\r\nghi", 1024));
+    }
+
+    @Test
+    public void ignoresEndOfFileMarker() throws IOException {
+        assertEquals(Lists.newArrayList("abc", "def"), readAll("abc\r\ndef\r\n\u001a", 1024));
+    }
+
+    @Test
+    public void readsLinesAcrossSegments() throws IOException {
+        assertEquals(Lists.newArrayList("abc", "def", "ghi", "jkl", "mno"), readAll("abc\ndef\nghi\njkl\nmno\n", 9));
+    }
+
+    @Test
+    public void readsEmptyFile() throws IOException {
+        assertEquals(Lists.<String>newArrayList(), readAll("", 1024));
+    }
+
+    @Test(expected = ParserException.class)
+    public void complainsAboutLineOfWrongLength() throws IOException {
+        readAll("abc\ndefg\nhij\n", 1024);
+    }
+
+    @Test(expected = ParserException.class)
+    public void complainsAboutTruncatedLastLine() throws IOException {
+        readAll("abc\ndef\ngh", 1024);
+    }
+
+    @Test
+    public void seeksToPosition() throws IOException {
+        FixedWidthFileReader reader = new FixedWidthFileReader(write("abc\ndef\nghi\njkl\n"), 3, 8);
+        try {
+            reader.next();
+            reader.next();
+            long position = reader.getPosition();
+            assertEquals("ghi", toString(reader.next()));
+
+            reader.seek(0);
+            assertEquals("abc", toString(reader.next()));
+            reader.seek(position);
+            assertEquals(2, reader.getLineNumber());
+            assertEquals("ghi", toString(reader.next()));
+            assertEquals("jkl", toString(reader.next()));
+            assertFalse(reader.hasNext());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void linesCanBeParsed() throws IOException {
+        SingleLineRecordParser parser = new SingleLineRecordParser(
+                RecordSpecification.createSpecification("T", "Foo", FieldSpecification.field("Foo", 3, false).numerical()));
+        FixedWidthFileReader reader = new FixedWidthFileReader(write("001\n042\n"), 3);
+        try {
+            assertEquals(1L, parser.parseLine(reader.next()).get("Foo"));
+            assertEquals(42L, parser.parseLine(reader.next()).get("Foo"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private List<String> readAll(String contents, int maxSegmentBytes) throws IOException {
+        FixedWidthFileReader reader = new FixedWidthFileReader(write(contents), 3, maxSegmentBytes);
+        try {
+            List<String> lines = Lists.newArrayList();
+            while (reader.hasNext()) {
+                lines.add(toString(reader.next()));
+            }
+            assertEquals(lines.size(), reader.getLineCount());
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File write(String contents) throws IOException {
+        File file = folder.newFile();
+        FileUtils.write(file, contents, "ISO-8859-1");
+        return file;
+    }
+
+    private String toString(ByteBuffer line) {
+        byte[] bytes = new byte[line.remaining()];
+        line.duplicate().get(bytes);
+        return new String(bytes, Charsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.Record;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelRecordParserTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordSpecification specification = RecordSpecification.createSpecification("T", "Number",
+            FieldSpecification.field("Number", 6, false).numerical(),
+            FieldSpecification.field("Text", 4, false));
+
+    @Test
+    public void handsRecordsToHandlerInFileOrder() throws IOException {
+        File file = writeLines(10007, -1);
+        ParallelRecordParser parser = createParser();
+
+        final List<Record> records = Lists.newArrayList();
+        long count = parser.parse(file, new RecordHandler() {
+            @Override
+            public void handle(Record record) {
+                records.add(record);
+            }
+        });
+
+        assertEquals(10007, count);
+        assertEquals(10007, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals((long) i, records.get(i).get("Number"));
+            assertEquals("t" + (i % 10), records.get(i).get("Text"));
+        }
+    }
+
+    @Test
+    public void throwsParseErrorAfterHandlingTheRecordsBeforeIt() throws IOException {
+        File file = writeLines(1000, 555);
+        ParallelRecordParser parser = createParser();
+
+        final List<Record> records = Lists.newArrayList();
+        try {
+            parser.parse(file, new RecordHandler() {
+                @Override
+                public void handle(Record record) {
+                    records.add(record);
+                }
+            });
+        } catch (ParserException e) {
+            assertEquals(500, records.size()); // the chunks before the chunk with the error
+            return;
+        }
+        throw new AssertionError("Expected ParserException");
+    }
+
+    @Test
+    public void throwsExceptionFromHandler() throws IOException {
+        File file = writeLines(1000, -1);
+        ParallelRecordParser parser = createParser();
+
+        try {
+            parser.parse(file, new RecordHandler() {
+                @Override
+                public void handle(Record record) throws SQLException {
+                    throw new SQLException("Database is down");
+                }
+            });
+        } catch (ParserException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            return;
+        }
+        throw new AssertionError("Expected ParserException");
+    }
+
+    private ParallelRecordParser createParser() {
+        ParallelRecordParser parser = new ParallelRecordParser(specification);
+        parser.setWorkers(4);
+        parser.setChunkLines(100);
+        return parser;
+    }
+
+    private File writeLines(int count, int invalidLine) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i == invalidLine) {
+                contents.append("abcdef");
+            } else {
+                contents.append(String.format("%06d", i));
+            }
+            contents.append(String.format("%-4s", "t" + (i % 10))).append("\r\n");
+        }
+        File file = folder.newFile();
+        FileUtils.write(file, contents, "ISO-8859-1");
+        return file;
+    }
+}
@@ -219,6 +219,34 @@ public class ParserExecutorTest {
 		Mockito.verify(parser).process(any(File.class), any(String.class));
 	}
 
+	@Test
+	public void shouldFlushBatchedRecordsBeforeAdvancingTheInbox() throws Exception {
+		whenInboxIsNotLockedAndHasSomeFileInIt();
+
+		executor.run();
+
+		InOrder inOrder = Mockito.inOrder(parser, persister, inbox);
+
+		inOrder.verify(parser).process(any(File.class), any(String.class));
+		inOrder.verify(persister).flush();
+		inOrder.verify(inbox).advance();
+	}
+
+	@Test
+	public void shouldDiscardBatchedRecordsIfTheParserThrowsException() throws Exception {
+		whenInboxIsNotLockedAndHasSomeFileInIt();
+		Mockito.doThrow(new RuntimeException("parser cannot parse")).when(parser).process(any(File.class), any(String.class));
+
+		try {
+			executor.run();
+		} catch (RuntimeException ignore) {
+			// we expect the parser's exception to be rethrown
+		}
+
+		Mockito.verify(persister).clearBatch();
+		Mockito.verify(persister, Mockito.never()).flush();
+	}
+
 	@Test
 	public void shouldLogTheDatasetFilenameAndContentsBeforeHandingItToTheParser() throws Exception {
 		Logger logger = Mockito.mock(Logger.class);
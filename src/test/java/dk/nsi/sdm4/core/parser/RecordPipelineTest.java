@@ -0,0 +1,321 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.parser;
+
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.Record;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordPersister;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import dk.nsi.sdm4.core.persistence.recordpersister.UpdateExistingRecordPersister;
+import dk.nsi.sdm4.core.status.ImportCheckpoint;
+import dk.nsi.sdm4.core.status.ImportCheckpointRepository;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+
+public class RecordPipelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordSpecification specification = RecordSpecification.createSpecification("T", "Number",
+            FieldSpecification.field("Number", 6, false).numerical(),
+            FieldSpecification.field("Text", 4, false));
+
+    @Test
+    public void writesRecordsInFileOrderOnTheCallingThread() throws IOException {
+        File file = writeLines(10007, -1);
+        RecordPipeline pipeline = createPipeline();
+
+        final Thread callingThread = Thread.currentThread();
+        final List<Record> records = Lists.newArrayList();
+        long count = pipeline.process(file, specification, new RecordHandler() {
+            @Override
+            public void handle(Record record) {
+                assertEquals(callingThread, Thread.currentThread());
+                records.add(record);
+            }
+        });
+
+        assertEquals(10007, count);
+        assertEquals(10007, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals((long) i, records.get(i).get("Number"));
+            assertEquals("t" + (i % 10), records.get(i).get("Text"));
+        }
+    }
+
+    @Test
+    public void handlesEmptyFile() throws IOException {
+        File file = folder.newFile();
+
+        assertEquals(0, createPipeline().process(file, specification, new RecordHandler() {
+            @Override
+            public void handle(Record record) {
+                throw new AssertionError("No records expected");
+            }
+        }));
+    }
+
+    @Test
+    public void keepsFileOrderWithOneChunkInFlight() throws Exception {
+        File file = writeLines(2000, -1);
+        RecordPipeline pipeline = createPipeline();
+        pipeline.setChunksInFlight(1);
+
+        final AtomicInteger written = new AtomicInteger();
+        pipeline.process(file, specification, new RecordHandler() {
+            @Override
+            public void handle(Record record) {
+                assertEquals((long) written.getAndIncrement(), record.get("Number"));
+            }
+        });
+
+        assertEquals(2000, written.get());
+    }
+
+    @Test
+    public void throwsParseErrorAfterWritingTheRecordsBeforeIt() throws IOException {
+        File file = writeLines(1000, 555);
+        RecordPipeline pipeline = createPipeline();
+
+        final List<Record> records = Lists.newArrayList();
+        try {
+            pipeline.process(file, specification, new RecordHandler() {
+                @Override
+                public void handle(Record record) {
+                    records.add(record);
+                }
+            });
+        } catch (ParserException e) {
+            assertEquals(500, records.size()); // the chunks before the chunk with the error
+            return;
+        }
+        throw new AssertionError("Expected ParserException");
+    }
+
+    @Test
+    public void throwsExceptionFromWriter() throws IOException {
+        File file = writeLines(1000, -1);
+        RecordPipeline pipeline = createPipeline();
+
+        try {
+            pipeline.process(file, specification, new RecordHandler() {
+                @Override
+                public void handle(Record record) throws SQLException {
+                    throw new SQLException("Database is down");
+                }
+            });
+        } catch (ParserException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            return;
+        }
+        throw new AssertionError("Expected ParserException");
+    }
+
+    @Test
+    public void persistsRecordsInBatchesAndFlushes() throws Exception {
+        File file = writeLines(250, -1);
+        RecordPipeline pipeline = createPipeline();
+        pipeline.recordPersister = Mockito.mock(RecordPersister.class);
+
+        assertEquals(250, pipeline.persist(file, "dataset1", specification));
+
+        InOrder inOrder = Mockito.inOrder(pipeline.recordPersister);
+        inOrder.verify(pipeline.recordPersister, times(250)).persistBatched(any(Record.class), eq(specification));
+        inOrder.verify(pipeline.recordPersister).flush();
+    }
+
+    @Test
+    public void commitsChunksWithCheckpointsAndHidesTheRecordsUntilPublished() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        Instant transactionTime = new Instant(1338000000000L);
+        Mockito.when(pipeline.recordPersister.getTransactionTime()).thenReturn(transactionTime);
+
+        assertEquals(250, pipeline.persist(file, "dataset1", specification));
+
+        InOrder inOrder = Mockito.inOrder(pipeline.recordPersister, pipeline.checkpoints, pipeline.transactionManager);
+        inOrder.verify(pipeline.recordPersister).setTransactionTime(ImportCheckpoint.UNPUBLISHED);
+        for (long lines : new long[] {100, 200, 250}) {
+            inOrder.verify(pipeline.transactionManager).getTransaction(any(TransactionDefinition.class));
+            inOrder.verify(pipeline.recordPersister).flush();
+            inOrder.verify(pipeline.checkpoints).saveCheckpoint(new ImportCheckpoint("dataset1", "numbers.txt", "T", lines * 12));
+            inOrder.verify(pipeline.transactionManager).commit(any(TransactionStatus.class));
+        }
+        inOrder.verify(pipeline.recordPersister).setTransactionTime(transactionTime);
+        Mockito.verify(pipeline.recordPersister, times(250)).persistBatched(any(Record.class), eq(specification));
+    }
+
+    @Test
+    public void continuesFromCheckpoint() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        Mockito.when(pipeline.checkpoints.getCheckpoint("dataset1", "numbers.txt"))
+                .thenReturn(new ImportCheckpoint("dataset1", "numbers.txt", "T", 200 * 12));
+
+        final List<Record> records = Lists.newArrayList();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                records.add((Record) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(pipeline.recordPersister).persistBatched(any(Record.class), eq(specification));
+
+        assertEquals(50, pipeline.persist(file, "dataset1", specification));
+        assertEquals(200L, records.get(0).get("Number"));
+        Mockito.verify(pipeline.checkpoints).saveCheckpoint(new ImportCheckpoint("dataset1", "numbers.txt", "T", 250 * 12));
+    }
+
+    @Test
+    public void rollsBackTheChunkBeingWrittenOnFailure() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        final AtomicInteger persisted = new AtomicInteger();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws SQLException {
+                if (persisted.incrementAndGet() == 150) {
+                    throw new SQLException("Database is down");
+                }
+                return null;
+            }
+        }).when(pipeline.recordPersister).persistBatched(any(Record.class), eq(specification));
+
+        try {
+            pipeline.persist(file, "dataset1", specification);
+            throw new AssertionError("Expected ParserException");
+        } catch (ParserException expected) {
+        }
+
+        Mockito.verify(pipeline.checkpoints).saveCheckpoint(new ImportCheckpoint("dataset1", "numbers.txt", "T", 100 * 12));
+        Mockito.verify(pipeline.transactionManager, times(1)).commit(any(TransactionStatus.class));
+        Mockito.verify(pipeline.transactionManager, times(1)).rollback(any(TransactionStatus.class));
+        Mockito.verify(pipeline.recordPersister).clearBatch();
+    }
+
+    @Test
+    public void refusesToCommitChunksWithoutATransactionManager() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        pipeline.transactionManager = null;
+
+        try {
+            pipeline.persist(file, "dataset1", specification);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        Mockito.verify(pipeline.recordPersister, Mockito.never()).persistBatched(any(Record.class), eq(specification));
+        Mockito.verify(pipeline.checkpoints, Mockito.never()).getCheckpoint(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void refusesToCommitChunksWithUpdateExistingRecordPersister() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        pipeline.recordPersister = Mockito.mock(UpdateExistingRecordPersister.class);
+
+        try {
+            pipeline.persist(file, "dataset1", specification);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        Mockito.verify(pipeline.recordPersister, Mockito.never()).setTransactionTime(ImportCheckpoint.UNPUBLISHED);
+        Mockito.verify(pipeline.recordPersister, Mockito.never()).persistBatched(any(Record.class), eq(specification));
+    }
+
+    @Test
+    public void persistsWithUpdateExistingRecordPersisterInTheImportTransaction() throws Exception {
+        File file = writeLines(folder.newFile("numbers.txt"), 250, -1);
+        RecordPipeline pipeline = createCommittingPipeline();
+        pipeline.recordPersister = Mockito.mock(UpdateExistingRecordPersister.class);
+        pipeline.setCommitInterval(0);
+
+        assertEquals(250, pipeline.persist(file, "dataset1", specification));
+
+        Mockito.verify(pipeline.recordPersister, times(250)).persistBatched(any(Record.class), eq(specification));
+        Mockito.verifyZeroInteractions(pipeline.checkpoints, pipeline.transactionManager);
+    }
+
+    private RecordPipeline createCommittingPipeline() {
+        RecordPipeline pipeline = createPipeline();
+        pipeline.setCommitInterval(100);
+        pipeline.recordPersister = Mockito.mock(RecordPersister.class);
+        pipeline.checkpoints = Mockito.mock(ImportCheckpointRepository.class);
+        pipeline.transactionManager = Mockito.mock(PlatformTransactionManager.class);
+        Mockito.when(pipeline.transactionManager.getTransaction(any(TransactionDefinition.class)))
+                .thenReturn(Mockito.mock(TransactionStatus.class));
+        return pipeline;
+    }
+
+    private RecordPipeline createPipeline() {
+        RecordPipeline pipeline = new RecordPipeline();
+        pipeline.setParserThreads(3);
+        pipeline.setChunkLines(100);
+        return pipeline;
+    }
+
+    private File writeLines(int count, int invalidLine) throws IOException {
+        return writeLines(folder.newFile(), count, invalidLine);
+    }
+
+    private File writeLines(File file, int count, int invalidLine) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i == invalidLine) {
+                contents.append("abcdef");
+            } else {
+                contents.append(String.format("%06d", i));
+            }
+            contents.append(String.format("%-4s", "t" + (i % 10))).append("\r\n");
+        }
+        FileUtils.write(file, contents, "ISO-8859-1");
+        return file;
+    }
+}
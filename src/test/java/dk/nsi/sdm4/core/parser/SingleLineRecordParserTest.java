@@ -3,8 +3,12 @@ package dk.nsi.sdm4.core.parser;
 import dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification;
 import dk.nsi.sdm4.core.persistence.recordpersister.Record;
 import dk.nsi.sdm4.core.persistence.recordpersister.RecordSpecification;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.RecordFieldType.NUMERICAL;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -56,6 +60,70 @@ public class SingleLineRecordParserTest {
         parser.parseLine("");
     }
 
+    @Test
+    public void parsesFieldFollowingIgnoredAndCalculatedFields() {
+        SingleLineRecordParser parser = makeParser(FieldSpecification.field("testField", 5, false).ignored(),
+                FieldSpecification.field("calculated", 3, false).calculated(),
+                FieldSpecification.field("testField2", 12, false));
+        Record record = parser.parseLine("12345testFieldVal");
+        assertEquals("testFieldVal", record.get("testField2"));
+    }
+
+    @Test
+    public void parsesBytesLikeStrings() {
+        SingleLineRecordParser parser = makeParser(FieldSpecification.field("alpha", 6, true),
+                FieldSpecification.field("blank", 2, false).ignored(),
+                FieldSpecification.field("number", 20, false).numerical(),
+                FieldSpecification.field("decimal", 22, false).decimal10_3());
+        String[][] values = {
+                {" Æbleø", "", "00000000000000000042", " -0012.345"},
+                {"", "xx", "9223372036854775807", "1.23456789012345678"},
+                {"a", "", "1", "+.5"},
+                {"b", "", "2", "7."},
+                {"c", "", "3", "1e3"},
+                {"d", "", "4", "-0"},
+                {"e", "", "5", "0.1"},
+                {"f", "", "6", "999999999999999"},
+        };
+        for (String[] fields : values) {
+            String line = StringUtils.rightPad(fields[0], 6) + StringUtils.rightPad(fields[1], 2)
+                    + StringUtils.rightPad(fields[2], 20) + StringUtils.rightPad(fields[3], 22);
+            byte[] bytes = line.getBytes(SingleLineRecordParser.DEFAULT_CHARSET);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 2);
+            direct.put((byte) 'x').put(bytes).put((byte) '\n').flip().position(1).limit(bytes.length + 1);
+
+            Record fromString = parser.parseLine(line);
+            assertEquals(fromString, parser.parseLine(bytes, 0, bytes.length));
+            assertEquals(fromString, parser.parseLine(direct));
+            assertEquals(1, direct.position());
+        }
+    }
+
+    @Test
+    public void parsesRandomDecimalsFromBytesLikeDoubleParseDouble() {
+        SingleLineRecordParser parser = makeParser(FieldSpecification.field("decimal", 20, false).decimal10_3());
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String value = String.valueOf(random.nextInt(2000000) - 1000000) + "." + random.nextInt(1000);
+            byte[] bytes = StringUtils.rightPad(value, 20).getBytes(SingleLineRecordParser.DEFAULT_CHARSET);
+
+            assertEquals(value, Double.parseDouble(value), parser.parseLine(bytes, 0, bytes.length).get("decimal"));
+        }
+    }
+
+    @Test(expected = ParserException.class)
+    public void complainsWhenNumericalFieldInBytesIsNotANumber() {
+        SingleLineRecordParser parser = makeParser(FieldSpecification.field("testField", 2, false).numerical());
+        parser.parseLine(new byte[] {'-', '1'}, 0, 2);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void complainsWhenNumericalFieldInBytesIsTooLarge() {
+        SingleLineRecordParser parser = makeParser(FieldSpecification.field("testField", 19, false).numerical());
+        byte[] bytes = "9223372036854775808".getBytes(SingleLineRecordParser.DEFAULT_CHARSET);
+        parser.parseLine(bytes, 0, bytes.length);
+    }
+
 	private SingleLineRecordParser makeParser(FieldSpecification... fields) {
 		return new SingleLineRecordParser(RecordSpecification.createSpecification("testTable", "testKeyColumn", fields));
 	}
@@ -0,0 +1,367 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+
+package dk.nsi.sdm4.core.persistence;
+
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.domain.AbstractStamdataEntity;
+import dk.nsi.sdm4.core.domain.CompleteDataset;
+import dk.nsi.sdm4.core.persistence.recordpersister.RecordPersisterTestDatasourceConfiguration;
+import dk.nsi.sdm4.core.util.Dates;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@Transactional
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class)
+public class AuditingPersisterTest {
+	@Configuration
+	@PropertySource("classpath:test.properties")
+	@Import(RecordPersisterTestDatasourceConfiguration.class)
+	static class ContextConfiguration {
+		@Bean
+		public AuditingPersister persister() {
+			return new AuditingPersister();
+		}
+	}
+
+	@Entity(name = "AuditingPersisterTest")
+	public static class Code extends AbstractStamdataEntity {
+		private final Object kode;
+		private final String navn;
+		private final Date validFrom;
+		private final Date validTo;
+
+		public Code(Object kode, String navn, Date validFrom, Date validTo) {
+			this.kode = kode;
+			this.navn = navn;
+			this.validFrom = validFrom;
+			this.validTo = validTo;
+		}
+
+		@Id
+		@Column
+		public Object getKode() {
+			return kode;
+		}
+
+		@Column
+		public String getNavn() {
+			return navn;
+		}
+
+		@Override
+		public Date getValidFrom() {
+			return validFrom;
+		}
+
+		@Override
+		public Date getValidTo() {
+			return validTo;
+		}
+	}
+
+	private static final Date END = Dates.THE_END_OF_TIME;
+
+	@Autowired
+	private AuditingPersister persister;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Before
+	public void setUp() {
+		jdbcTemplate.update("DROP TABLE IF EXISTS AuditingPersisterTest");
+		// Extra is not a column of the entity, so it is copied from the current row into new versions
+		jdbcTemplate.update("CREATE TABLE AuditingPersisterTest (AuditingPersisterTestPID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+				"Kode BIGINT, Navn VARCHAR(20), Extra VARCHAR(20), " +
+				"ModifiedDate DATETIME, CreatedDate DATETIME, ValidFrom DATETIME, ValidTo DATETIME, INDEX (Kode, ValidTo, ValidFrom))");
+		persister.transactionTime = year(2012);
+	}
+
+	@Test
+	public void changedEntityInsideAnExistingVersionSplitsIt() throws Exception {
+		insertRow(1, "Old", "x", year(2000), year(2010));
+
+		persistEntity(new Code(1L, "New", year(2003), year(2005)));
+
+		assertEquals(Arrays.asList("Old/x 2000-2003", "New/x 2003-2005", "Old/x 2005-2010"), versions(1));
+	}
+
+	@Test
+	public void changedEntityEncompassingAnExistingVersionReplacesIt() throws Exception {
+		insertRow(1, "Old", "x", year(2003), year(2005));
+
+		persistEntity(new Code(1L, "New", year(2000), year(2010)));
+
+		assertEquals(Arrays.asList("New/x 2000-2010"), versions(1));
+	}
+
+	@Test
+	public void sameEntityEncompassingAnExistingVersionExtendsIt() throws Exception {
+		insertRow(1, "Old", "x", year(2003), year(2005));
+
+		persistEntity(new Code(1L, "Old", year(2000), year(2010)));
+
+		assertEquals(Arrays.asList("Old/x 2000-2010"), versions(1));
+	}
+
+	@Test
+	public void newVersionKeepsTheColumnsTheEntityDoesNotSet() throws Exception {
+		insertRow(1, "Old", "x", year(2000), END);
+		insertRow(2, "Other", "y", year(2000), END);
+
+		persistEntity(new Code(1L, "New", year(2005), END));
+
+		assertEquals(Arrays.asList("Old/x 2000-2005", "New/x 2005-2999"), versions(1));
+		assertEquals(Arrays.asList("Other/y 2000-2999"), versions(2));
+	}
+
+	@Test
+	public void newVersionCopiesTheRowReadLastAmongVersionsWithTheSameValidity() throws Exception {
+		insertRow(1, "Old", "first", year(2000), year(2005));
+		insertRow(1, "Old", "second", year(2000), year(2005));
+
+		persistEntity(new Code(1L, "New", year(2005), END));
+
+		assertEquals(Arrays.asList("Old/first 2000-2005", "Old/second 2000-2005", "New/second 2005-2999"), versions(1));
+	}
+
+	@Test
+	public void newEntityIsInserted() throws Exception {
+		persistEntity(new Code(1L, "New", year(2005), END));
+
+		assertEquals(Arrays.asList("New/null 2005-2999"), versions(1));
+	}
+
+	@Test
+	public void insertAndUpdateFailsWhenTheCurrentRowIsGone() throws Exception {
+		insertRow(1, "Old", "x", year(2000), END);
+
+		DatabaseTableWrapper<Code> table = persister.getTable(Code.class);
+		try {
+			table.fetchEntityConflicts(1L, year(2005), END);
+			jdbcTemplate.update("DELETE FROM AuditingPersisterTest");
+
+			try {
+				table.insertAndUpdateRow(new Code(1L, "New", year(2005), END), persister.transactionTime);
+				fail("Expected the insert to fail without a row to copy");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			try {
+				table.copyCurrentRowButWithChangedValidFrom(year(2005), persister.transactionTime);
+				fail("Expected the copy to fail without a row to copy");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		} finally {
+			table.close();
+		}
+
+		assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM AuditingPersisterTest"));
+	}
+
+	@Test
+	public void completeDatasetClosesTheRecordsInItsRangeThatItDoesNotContain() throws Exception {
+		// more keys than the temporary table of the data set is filled with at a time
+		List<Object[]> rows = Lists.newArrayList();
+		for (long kode = 1; kode <= 1500; kode++) {
+			rows.add(new Object[]{kode, "K" + kode});
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO AuditingPersisterTest (Kode, Navn, ModifiedDate, CreatedDate, ValidFrom, ValidTo)" +
+				" VALUES (?, ?, '1999-01-01', '1999-01-01', '2000-01-01', '2999-01-01')", rows);
+		insertRow(3000, "Ended", null, year(2000), year(2001));
+		insertRow(3001, "Later", null, year(2030), END);
+
+		CompleteDataset<Code> dataset = new CompleteDataset<Code>(Code.class, year(2005), year(2020));
+		for (long kode = 2; kode <= 1500; kode++) {
+			// ids of both types match the BIGINT column
+			Object id = kode % 2 == 0 ? Integer.valueOf((int) kode) : Long.valueOf(kode);
+			dataset.add(new Code(id, "K" + kode, year(2005), END));
+		}
+		dataset.add(new Code(2000L, "New", year(2005), END));
+		persister.persistCompleteDataset(dataset);
+
+		assertEquals(Arrays.asList("K1/null 2000-2005"), versions(1));
+		assertEquals(Arrays.asList("K2/null 2000-2999"), versions(2));
+		assertEquals(Arrays.asList("K1001/null 2000-2999"), versions(1001));
+		assertEquals(Arrays.asList("K1500/null 2000-2999"), versions(1500));
+		assertEquals(Arrays.asList("New/null 2005-2999"), versions(2000));
+		assertEquals(Arrays.asList("Ended/null 2000-2001"), versions(3000));
+		assertEquals(Arrays.asList("Later/null 2030-2999"), versions(3001));
+		assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM AuditingPersisterTest WHERE ValidTo = '2005-01-01'"));
+		assertEquals(1501, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM AuditingPersisterTest WHERE ValidTo > '2005-01-01'"));
+	}
+
+	@Test
+	public void closingSkipsKeysGivenTwice() throws Exception {
+		insertRow(1, "Kept", null, year(2000), END);
+		insertRow(2, "Gone", null, year(2000), END);
+
+		DatabaseTableWrapper<Code> table = persister.getTable(Code.class);
+		try {
+			assertEquals(1, table.updateValidToOnEntitiesNotIn(Arrays.<Object>asList(1, 1L, 1), year(2005), END, persister.transactionTime));
+		} finally {
+			table.close();
+		}
+
+		assertEquals(Arrays.asList("Kept/null 2000-2999"), versions(1));
+		assertEquals(Arrays.asList("Gone/null 2000-2005"), versions(2));
+	}
+
+	@Test
+	public void closingFailsOnKeysTheIdColumnCanNotHold() throws Exception {
+		insertRow(1, "Kept", null, year(2000), END);
+
+		DatabaseTableWrapper<Code> table = persister.getTable(Code.class);
+		try {
+			table.updateValidToOnEntitiesNotIn(Arrays.<Object>asList(1L, "99999999999999999999"), year(2005), END, persister.transactionTime);
+			fail("Expected a key out of the range of the id column to fail");
+		} catch (SQLException e) {
+			// expected
+		} finally {
+			table.close();
+		}
+
+		assertEquals(Arrays.asList("Kept/null 2000-2999"), versions(1));
+	}
+
+	@Test
+	public void streamedCompleteDatasetEndsLikeCompleteDataset() throws Exception {
+		List<Code> entities = Arrays.asList(
+				new Code(1L, "First", year(2005), END),
+				new Code(2L, "Same", year(2005), END),
+				new Code(4L, "Added", year(2005), END),
+				new Code(5L, "Inside", year(2007), year(2009)),
+				// the last of the entities with the same id is the one persisted
+				new Code(1L, "Last", year(2005), END));
+
+		insertDatasetRows();
+		CompleteDataset<Code> dataset = new CompleteDataset<Code>(Code.class, year(2005), END);
+		for (Code entity : entities) {
+			dataset.add(entity);
+		}
+		persister.persistCompleteDataset(dataset);
+		List<String> persisted = allVersions();
+
+		jdbcTemplate.update("DELETE FROM AuditingPersisterTest");
+		insertDatasetRows();
+		StreamingCompleteDataset<Code> streamed = persister.openCompleteDataset(Code.class, year(2005), END);
+		for (Code entity : entities) {
+			streamed.add(entity);
+		}
+		streamed.finish();
+
+		assertEquals(Arrays.asList(
+				"1 Old/x 2000-2005", "1 Last/x 2005-2999",
+				"2 Same/y 2000-2999",
+				"3 Gone/z 2000-2005",
+				"4 Added/null 2005-2999",
+				"5 Old/w 2000-2007", "5 Inside/w 2007-2009", "5 Old/w 2009-2999"), persisted);
+		assertEquals(persisted, allVersions());
+	}
+
+	private void insertDatasetRows() {
+		insertRow(1, "Old", "x", year(2000), END);
+		insertRow(2, "Same", "y", year(2000), END);
+		insertRow(3, "Gone", "z", year(2000), END);
+		insertRow(5, "Old", "w", year(2000), END);
+	}
+
+	private void persistEntity(Code entity) throws Exception {
+		DatabaseTableWrapper<Code> table = persister.getTable(Code.class);
+		try {
+			persister.persistEntity(table, entity);
+		} finally {
+			table.close();
+		}
+	}
+
+	private void insertRow(long kode, String navn, String extra, Date validFrom, Date validTo) {
+		Timestamp created = new Timestamp(year(1999).getTime());
+		jdbcTemplate.update("INSERT INTO AuditingPersisterTest (Kode, Navn, Extra, ModifiedDate, CreatedDate, ValidFrom, ValidTo) VALUES (?, ?, ?, ?, ?, ?, ?)",
+				kode, navn, extra, created, created, new Timestamp(validFrom.getTime()), new Timestamp(validTo.getTime()));
+	}
+
+	/**
+	 * @return the versions of a key as "Navn/Extra ValidFrom-ValidTo", in years, ordered by ValidFrom
+	 */
+	private List<String> versions(long kode) {
+		return jdbcTemplate.query("SELECT Navn, Extra, ValidFrom, ValidTo FROM AuditingPersisterTest WHERE Kode = ? ORDER BY ValidFrom, ValidTo, AuditingPersisterTestPID",
+				new VersionMapper(), kode);
+	}
+
+	/**
+	 * @return the versions of all keys as "Kode Navn/Extra ValidFrom-ValidTo", ordered by Kode and ValidFrom
+	 */
+	private List<String> allVersions() {
+		return jdbcTemplate.query("SELECT Navn, Extra, ValidFrom, ValidTo, Kode FROM AuditingPersisterTest ORDER BY Kode, ValidFrom, ValidTo, AuditingPersisterTestPID",
+				new RowMapper<String>() {
+					@Override
+					public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return rs.getLong(5) + " " + new VersionMapper().mapRow(rs, rowNum);
+					}
+				});
+	}
+
+	private static class VersionMapper implements RowMapper<String> {
+		@Override
+		public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+			return rs.getString(1) + "/" + rs.getString(2) + " " + new DateTime(rs.getTimestamp(3)).getYear()
+					+ "-" + new DateTime(rs.getTimestamp(4)).getYear();
+		}
+	}
+
+	private static Date year(int year) {
+		return new DateTime(year, 1, 1, 0, 0, 0).toDate();
+	}
+}
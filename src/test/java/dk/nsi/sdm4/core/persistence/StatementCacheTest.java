@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+
+package dk.nsi.sdm4.core.persistence;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StatementCacheTest {
+	private static final String SQL = "SELECT * FROM Foo WHERE Id = ?";
+
+	private final Connection connection = mock(Connection.class);
+
+	@After
+	public void clearSynchronization() {
+		for (Object key : Lists.newArrayList(TransactionSynchronizationManager.getResourceMap().keySet())) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(key);
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	public void reusesReleasedStatementsWithinTransaction() throws SQLException {
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(connection.prepareStatement(SQL)).thenReturn(statement);
+		TransactionSynchronizationManager.initSynchronization();
+
+		StatementCache cache = StatementCache.of(connection);
+		assertTrue(cache.isBound());
+		cache.release(SQL, cache.take(SQL));
+
+		StatementCache sameCache = StatementCache.of(connection);
+		assertSame(cache, sameCache);
+		assertSame(statement, sameCache.take(SQL));
+		verify(connection, times(1)).prepareStatement(SQL);
+	}
+
+	@Test
+	public void doesNotShareStatementsInUse() throws SQLException {
+		PreparedStatement first = mock(PreparedStatement.class);
+		PreparedStatement second = mock(PreparedStatement.class);
+		when(connection.prepareStatement(SQL)).thenReturn(first, second);
+		TransactionSynchronizationManager.initSynchronization();
+
+		StatementCache cache = StatementCache.of(connection);
+		PreparedStatement taken = cache.take(SQL);
+		assertNotSame(taken, cache.take(SQL));
+
+		cache.release(SQL, first);
+		cache.release(SQL, second);
+		verify(first, never()).close();
+		verify(second).close();
+	}
+
+	@Test
+	public void closesStatementsWhenTransactionCompletes() throws SQLException {
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(connection.prepareStatement(SQL)).thenReturn(statement);
+		TransactionSynchronizationManager.initSynchronization();
+
+		StatementCache cache = StatementCache.of(connection);
+		cache.release(SQL, cache.take(SQL));
+
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+		}
+
+		verify(statement).close();
+		assertNotSame(cache, StatementCache.of(connection));
+	}
+
+	@Test
+	public void isNotBoundOutsideTransaction() throws SQLException {
+		StatementCache cache = StatementCache.of(connection);
+
+		assertFalse(cache.isBound());
+		assertNotSame(cache, StatementCache.of(connection));
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import org.joda.time.DateTime;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.SQLException;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@Transactional
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class)
+public class CurrentRecordCacheTest {
+    @Configuration
+    @PropertySource("classpath:test.properties")
+    @Import(RecordPersisterTestDatasourceConfiguration.class)
+    static class ContextConfiguration {
+        @Bean
+        public RecordFetcher recordFetcher(Instant transactionTime) {
+            return new RecordFetcher(transactionTime);
+        }
+
+        @Bean
+        public RecordPersister persister(Instant transactionTime) {
+            return new RecordPersister(transactionTime);
+        }
+
+        @Bean
+        public CurrentRecordCache currentRecordCache() {
+            return new CurrentRecordCache();
+        }
+
+        @Bean
+        public Instant transactionTime() {
+            return new DateTime(2011, 5, 29, 0, 0, 0).toInstant();
+        }
+    }
+
+    @Autowired
+    private RecordPersister persister;
+
+    @Autowired
+    private RecordFetcher fetcher;
+
+    @Autowired
+    private CurrentRecordCache cache;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private RecordSpecification recordSpecification;
+
+    @Before
+    public void setup() {
+        recordSpecification = RecordSpecification.createSpecification("CachedTest", "Moo",
+                field("Foo", 5, false).numerical(),
+                field("Moo", 5, false)
+        );
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + recordSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(recordSpecification));
+        cache.invalidateAll();
+    }
+
+    @Test
+    public void answersRepeatedLookupsFromCache() throws SQLException {
+        Record record = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(record, recordSpecification);
+
+        assertEquals(record, fetcher.fetchCurrent("Far", recordSpecification));
+        jdbcTemplate.update("DELETE FROM " + recordSpecification.getTable()); // not seen by the cache
+
+        assertEquals(record, fetcher.fetchCurrent("Far", recordSpecification));
+        assertEquals(record, fetcher.fetchCurrentWithMeta("Far", recordSpecification).getRecord());
+    }
+
+    @Test
+    public void cachesLookupsThatFindNoRecordUntilTheKeyIsWritten() throws SQLException {
+        assertNull(fetcher.fetchCurrent("Far", recordSpecification));
+        assertEquals(1, cache.size());
+
+        Record record = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        persister.persistBatched(record, recordSpecification);
+        assertNull(fetcher.fetchCurrent("Far", recordSpecification)); // still queued
+        persister.flush();
+
+        assertEquals(record, fetcher.fetchCurrent("Far", recordSpecification));
+    }
+
+    @Test
+    public void removesLookupsOfOtherColumnsWhenARecordIsWritten() throws SQLException {
+        Record record = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        assertNull(fetcher.fetchCurrent("00042", recordSpecification, "Foo"));
+
+        persister.persist(record, recordSpecification);
+
+        assertEquals(record, fetcher.fetchCurrent("00042", recordSpecification, "Foo"));
+    }
+
+    @Test
+    public void removesLookupsThatMySqlMatchesIgnoringCase() throws SQLException {
+        // generated tables are case sensitive
+        jdbcTemplate.update("ALTER TABLE " + recordSpecification.getTable() + " MODIFY Moo VARCHAR(5) COLLATE utf8_general_ci");
+        assertNull(fetcher.fetchCurrent("far", recordSpecification));
+
+        persister.persist(new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build(), recordSpecification);
+
+        assertEquals("Far", fetcher.fetchCurrent("far", recordSpecification).get("Moo"));
+    }
+
+    @Test
+    public void removesLookupsThatMySqlMatchesIgnoringAccents() throws SQLException {
+        jdbcTemplate.update("ALTER TABLE " + recordSpecification.getTable() + " MODIFY Moo VARCHAR(5) COLLATE utf8_general_ci");
+        assertNull(fetcher.fetchCurrent("Far", recordSpecification));
+
+        persister.persist(new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Fär").build(), recordSpecification);
+
+        assertEquals("Fär", fetcher.fetchCurrent("Far", recordSpecification).get("Moo"));
+    }
+
+    @Test
+    public void returnsCopiesOfTheCachedRecords() throws SQLException {
+        persister.persist(new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build(), recordSpecification);
+
+        fetcher.fetchCurrent("Far", recordSpecification).put("Foo", 23L);
+
+        assertEquals(42L, fetcher.fetchCurrent("Far", recordSpecification).get("Foo"));
+    }
+
+    @Test
+    public void isEmptiedWhenTheTransactionTimeIsSet() throws SQLException {
+        fetcher.fetchCurrent("Far", recordSpecification);
+
+        fetcher.setTransactionTime(new DateTime(2011, 5, 29, 0, 0, 0).toInstant());
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLookupsBeyondTheBudget() {
+        CurrentRecordCache smallCache = new CurrentRecordCache(10000);
+        for (int i = 0; i < 1000; i++) {
+            Record record = new RecordBuilder(recordSpecification).field("Foo", i).field("Moo", "K" + i).build();
+            smallCache.put(recordSpecification, "Moo", "K" + i, new RecordWithMetadata(null, null, null, (long) i, record));
+        }
+
+        assertTrue(smallCache.size() < 100);
+        assertEquals(999L, smallCache.get(recordSpecification, "Moo", "K999").get().getPid().longValue());
+    }
+}
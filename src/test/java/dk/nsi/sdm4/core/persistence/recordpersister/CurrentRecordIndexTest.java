@@ -0,0 +1,107 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CurrentRecordIndexTest {
+    private static final String HASH = "0123456789abcdef00000000fedcba98";
+
+    @Test
+    public void returnsPidAndContentHashOfIndexedKeys() {
+        CurrentRecordIndex index = new CurrentRecordIndex();
+        assertTrue(index.put(42, 7, 1000, HASH));
+
+        assertTrue(index.contains(42));
+        assertEquals(Long.valueOf(7), index.getContentHash(42).getPid());
+        assertEquals(HASH, index.getContentHash(42).getContentHash());
+        assertEquals(1000, index.getValidFrom(42));
+        assertFalse(index.contains(43));
+        assertNull(index.getContentHash(43));
+    }
+
+    @Test
+    public void rejectsSecondRecordOfKey() {
+        CurrentRecordIndex index = new CurrentRecordIndex();
+        assertTrue(index.put(1, 1, 0, HASH));
+
+        assertFalse(index.put(1, 2, 0, HASH));
+        assertEquals(Long.valueOf(1), index.getContentHash(1).getPid());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void keepsRecordsWithoutValidHashWithoutHash() {
+        CurrentRecordIndex index = new CurrentRecordIndex();
+        index.put(1, 1, 0, null);
+        index.put(2, 2, 0, "not a hash");
+
+        assertEquals(Long.valueOf(1), index.getContentHash(1).getPid());
+        assertNull(index.getContentHash(1).getContentHash());
+        assertNull(index.getContentHash(2).getContentHash());
+    }
+
+    @Test
+    public void growsBeyondExpectedSize() {
+        CurrentRecordIndex index = new CurrentRecordIndex(2);
+        for (long key = -5000; key < 5000; key++) {
+            assertTrue(index.put(key * 1024, key + 5000, key, HASH));
+        }
+
+        assertEquals(10000, index.size());
+        for (long key = -5000; key < 5000; key++) {
+            assertEquals(Long.valueOf(key + 5000), index.getContentHash(key * 1024).getPid());
+            assertEquals(key, index.getValidFrom(key * 1024));
+        }
+        assertFalse(index.contains(1));
+    }
+
+    @Test
+    public void writtenKeysAreNoLongerKnown() {
+        CurrentRecordIndex index = new CurrentRecordIndex();
+        index.put(1, 1, 0, HASH);
+        index.markWritten(1);
+        index.markWritten(2);
+
+        assertTrue(index.isWritten(1));
+        assertTrue(index.isWritten(2));
+        assertTrue(index.contains(2));
+        assertEquals(2, index.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesContentHashOfWrittenKey() {
+        CurrentRecordIndex index = new CurrentRecordIndex();
+        index.put(1, 1, 0, HASH);
+        index.markWritten(1);
+
+        index.getContentHash(1);
+    }
+}
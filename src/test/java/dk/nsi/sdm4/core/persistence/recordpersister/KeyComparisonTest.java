@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import org.junit.Test;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class KeyComparisonTest {
+    private final RecordSpecification specification = RecordSpecification.createSpecification("KeyComparisonTest", "Moo",
+            field("Foo", 5, false).numerical(),
+            field("Moo", 5, false));
+
+    @Test
+    public void ignoresCaseAccentsAndTrailingSpacesOfAlphanumericalKeys() {
+        assertEquals(normalize("Moo", "abc"), normalize("Moo", "ABC  "));
+        assertEquals(normalize("Moo", "Äx"), normalize("Moo", "ax"));
+        assertFalse(normalize("Moo", "abc").equals(normalize("Moo", " abc")));
+    }
+
+    @Test
+    public void comparesNumericalKeysByValue() {
+        assertEquals("42", normalize("Foo", "00042"));
+        assertEquals("42", normalize("Foo", " 42 "));
+        assertEquals("x", normalize("Foo", "x"));
+    }
+
+    @Test
+    public void removesOnlyTrailingSpacesForBinaryCollations() {
+        assertEquals("abc", KeyComparison.withoutTrailingSpaces("abc  "));
+        assertEquals(" aBc", KeyComparison.withoutTrailingSpaces(" aBc"));
+        assertEquals("", KeyComparison.withoutTrailingSpaces("  "));
+    }
+
+    @Test
+    public void keepsNullKeys() {
+        assertNull(normalize("Moo", null));
+    }
+
+    private String normalize(String column, String key) {
+        return KeyComparison.normalize(specification, column, key);
+    }
+}
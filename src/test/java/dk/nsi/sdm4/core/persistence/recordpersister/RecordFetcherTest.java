@@ -26,12 +26,23 @@ package dk.nsi.sdm4.core.persistence.recordpersister;
 
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import dk.nsi.sdm4.core.status.ImportCheckpoint;
 import org.joda.time.DateTime;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
@@ -84,6 +95,9 @@ public class RecordFetcherTest {
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
 
+	@Autowired
+	private Instant transactionTime;
+
 	@Before
 	public void setup() throws SQLException {
 		decimalRecordSpec = RecordSpecification.createSpecification("SikredeTestDecimal", "Moo",
@@ -122,12 +136,319 @@ public class RecordFetcherTest {
     public void canFindRecordWithMetaWithKeyThatIsNull() throws SQLException {
         Record recordWithNull = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", (String)null).build();
         persister.persist(recordWithNull, recordSpecification);
-        RecordWithMetadata fetched = fetcher.fetchCurrentWithMeta(null, recordSpecification);
+        RecordWithMetadata fetched = fetcher.fetchCurrentWithMeta((String) null, recordSpecification);
         assertNotNull(fetched);
         assertNotNull(fetched.getRecord());
         assertEquals(recordWithNull, fetched.getRecord());
     }
 
+    @Test
+    public void canFindRecordsWithMetaForSeveralKeys() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        Record recordB = new RecordBuilder(recordSpecification).field("Foo", 23).field("Moo", "Bar").build();
+        persister.persist(recordA, recordSpecification);
+        persister.persist(recordB, recordSpecification);
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(Arrays.asList("Far", "Bar", "Mor"), recordSpecification);
+
+        assertEquals(2, fetched.size());
+        assertEquals(recordA, fetched.get("Far").getRecord());
+        assertEquals(recordB, fetched.get("Bar").getRecord());
+        assertNotNull(fetched.get("Bar").getPid());
+    }
+
+    @Test
+    public void findsRecordsForMoreKeysThanFitInOneQuery() throws SQLException {
+        List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < RecordFetcher.MAX_KEYS_PER_QUERY + 10; i++) {
+            String key = "K" + i;
+            keys.add(key);
+            if (i % 2 == 0) {
+                persister.persist(new RecordBuilder(recordSpecification).field("Foo", i % 100).field("Moo", key).build(), recordSpecification);
+            }
+        }
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(keys, recordSpecification);
+
+        assertEquals((RecordFetcher.MAX_KEYS_PER_QUERY + 10) / 2, fetched.size());
+        for (String key : keys) {
+            RecordWithMetadata single = fetcher.fetchCurrentWithMeta(key, recordSpecification);
+            if (single == null) {
+                assertFalse(fetched.containsKey(key));
+            } else {
+                assertEquals(single.getRecord(), fetched.get(key).getRecord());
+                assertEquals(single.getPid(), fetched.get(key).getPid());
+            }
+        }
+    }
+
+    @Test
+    public void findsRecordWithKeyThatIsNullAmongSeveralKeys() throws SQLException {
+        Record recordWithNull = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", (String) null).build();
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 23).field("Moo", "Far").build();
+        persister.persist(recordWithNull, recordSpecification);
+        persister.persist(recordA, recordSpecification);
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(Arrays.asList("Far", null), recordSpecification);
+
+        assertEquals(2, fetched.size());
+        assertEquals(recordWithNull, fetched.get(null).getRecord());
+        assertEquals(recordA, fetched.get("Far").getRecord());
+    }
+
+    @Test(expected = IncorrectResultSizeDataAccessException.class)
+    public void throwsExceptionForSeveralKeysWhenTwoRecordsAreCurrentForAKey() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(recordA, recordSpecification);
+        persister.persist(recordA, recordSpecification);
+
+        fetcher.fetchCurrentWithMeta(Arrays.asList("Far", "Bar"), recordSpecification);
+    }
+
+    @Test
+    public void findsRecordsForSeveralNumericalKeysAsWritten() throws SQLException {
+        RecordSpecification numericalKeySpec = RecordSpecification.createSpecification("SikredeTestNumericalKey", "Foo",
+                field("Foo", 5, false).numerical(),
+                field("Moo", 5, false)
+        );
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + numericalKeySpec.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(numericalKeySpec));
+        Record record = new RecordBuilder(numericalKeySpec).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(record, numericalKeySpec);
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(Arrays.asList("00042", "42"), numericalKeySpec);
+
+        assertEquals(record, fetched.get("00042").getRecord());
+        assertEquals(record, fetched.get("42").getRecord());
+        assertEquals(fetcher.fetchCurrentWithMeta("00042", numericalKeySpec).getPid(), fetched.get("00042").getPid());
+    }
+
+    @Test
+    public void findsRecordsForSeveralKeysDifferingInCaseAndPaddingLikeSingleKeys() throws SQLException {
+        jdbcTemplate.update("ALTER TABLE " + recordSpecification.getTable() + " MODIFY Moo VARCHAR(5) COLLATE utf8_general_ci");
+        persister.persist(record(42, "Far"), recordSpecification);
+        List<String> keys = Arrays.asList("Far", "FAR", "far ", "Fa");
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(keys, recordSpecification);
+
+        assertEquals(3, fetched.size());
+        for (String key : keys) {
+            RecordWithMetadata single = fetcher.fetchCurrentWithMeta(key, recordSpecification);
+            if (single == null) {
+                assertFalse(fetched.containsKey(key));
+            } else {
+                assertEquals(single.getPid(), fetched.get(key).getPid());
+            }
+        }
+    }
+
+    @Test
+    public void findsRecordsForSeveralKeysWithCaseSensitiveCollation() throws SQLException {
+        persister.persist(record(42, "Far"), recordSpecification);
+        persister.persist(record(43, "FAR"), recordSpecification);
+
+        Map<String, RecordWithMetadata> fetched = fetcher.fetchCurrentWithMeta(Arrays.asList("Far", "FAR ", "far"), recordSpecification);
+
+        assertEquals(2, fetched.size());
+        assertEquals(record(42, "Far"), fetched.get("Far").getRecord());
+        assertEquals(record(43, "FAR"), fetched.get("FAR ").getRecord());
+    }
+
+    @Test
+    public void findsContentHashesForKeysDifferingInCaseAndPadding() throws SQLException {
+        RecordSpecification hashedSpecification = RecordSpecification.createSpecification("SikredeTestHash", "Moo",
+                field("Foo", 2, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + hashedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(hashedSpecification));
+        jdbcTemplate.update("ALTER TABLE " + hashedSpecification.getTable() + " MODIFY Moo VARCHAR(5) COLLATE utf8_general_ci");
+        persister.persist(new RecordBuilder(hashedSpecification).field("Foo", 42).field("Moo", "Far").build(), hashedSpecification);
+
+        Map<String, RecordContentHash> hashes = fetcher.fetchCurrentContentHashesForKeys(Arrays.asList("FAR", "far ", "Bar"), hashedSpecification);
+
+        assertEquals(2, hashes.size());
+        assertEquals(hashes.get("FAR").getPid(), hashes.get("far ").getPid());
+        assertEquals(fetcher.fetchCurrentWithMeta("Far", hashedSpecification).getPid(), hashes.get("FAR").getPid());
+    }
+
+    @Test(expected = IncorrectResultSizeDataAccessException.class)
+    public void throwsExceptionForContentHashesWhenTwoRecordsAreCurrentForAKey() throws SQLException {
+        RecordSpecification hashedSpecification = RecordSpecification.createSpecification("SikredeTestHash", "Moo",
+                field("Foo", 2, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + hashedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(hashedSpecification));
+        Record record = new RecordBuilder(hashedSpecification).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(record, hashedSpecification);
+        persister.persist(record, hashedSpecification);
+
+        fetcher.fetchCurrentContentHashesForKeys(Arrays.asList("Far"), hashedSpecification);
+    }
+
+    @Test
+    public void findsRecordsForSeveralKeysValidAtAnotherTime() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(recordA, recordSpecification);
+        Instant beforeTransaction = new DateTime(2011, 5, 28, 0, 0, 0).toInstant();
+
+        assertTrue(fetcher.fetchWithMetaAt(Arrays.asList("Far"), beforeTransaction, recordSpecification).isEmpty());
+        assertEquals(recordA, fetcher.fetchWithMetaAt(Arrays.asList("Far"), new DateTime(2011, 5, 30, 0, 0, 0).toInstant(), recordSpecification).get("Far").getRecord());
+    }
+
+    @Test
+    public void indexesCurrentRecordsOfNumericalKeys() throws SQLException {
+        RecordSpecification numericalKeySpec = RecordSpecification.createSpecification("SikredeTestNumericalKey", "Foo",
+                field("Foo", 5, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + numericalKeySpec.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(numericalKeySpec));
+        Record record = new RecordBuilder(numericalKeySpec).field("Foo", 42).field("Moo", "Far").build();
+        persister.persist(record, numericalKeySpec);
+        jdbcTemplate.update("UPDATE " + numericalKeySpec.getTable() + " SET ContentHash=?", RecordContentHash.compute(record, numericalKeySpec));
+
+        CurrentRecordIndex index = fetcher.fetchCurrentIndex(numericalKeySpec);
+
+        assertEquals(1, index.size());
+        assertEquals(fetcher.fetchCurrentWithMeta("42", numericalKeySpec).getPid(), index.getContentHash(42).getPid());
+        assertEquals(RecordContentHash.compute(record, numericalKeySpec), index.getContentHash(42).getContentHash());
+        assertFalse(index.contains(43));
+    }
+
+    @Test
+    public void scansEveryRowOfTable() throws SQLException {
+        Instant past = new DateTime(2010, 1, 1, 0, 0, 0).toInstant();
+        persister.persist(new RecordWithMetadata(past, transactionTime, null, null, record(1, "Old")), recordSpecification);
+        for (int i = 0; i < RecordFetcher.MAX_KEYS_PER_QUERY + 10; i++) {
+            persister.persist(record(i % 100, "K" + i), recordSpecification);
+        }
+
+        final Set<String> keys = Sets.newHashSet();
+        long rowCount = fetcher.scan(recordSpecification, new RecordScanHandler() {
+            @Override
+            public void handle(RecordWithMetadata recordWithMeta) {
+                assertNotNull(recordWithMeta.getPid());
+                keys.add(recordWithMeta.getRecord().get("Moo").toString());
+            }
+        });
+
+        assertEquals(RecordFetcher.MAX_KEYS_PER_QUERY + 11, rowCount);
+        assertEquals(RecordFetcher.MAX_KEYS_PER_QUERY + 11, keys.size());
+        assertTrue(keys.contains("Old"));
+    }
+
+    @Test
+    public void scansCurrentRows() throws SQLException {
+        Instant past = new DateTime(2010, 1, 1, 0, 0, 0).toInstant();
+        persister.persist(new RecordWithMetadata(past, transactionTime, null, null, record(1, "Old")), recordSpecification);
+        persister.persist(record(2, "New"), recordSpecification);
+
+        final List<Record> scanned = Lists.newArrayList();
+        assertEquals(1, fetcher.scanCurrent(recordSpecification, collectInto(scanned)));
+        assertEquals(Arrays.asList(record(2, "New")), scanned);
+    }
+
+    @Test
+    public void scansRowsByValidFromAndModifiedDate() throws SQLException {
+        Instant past = new DateTime(2010, 1, 1, 0, 0, 0).toInstant();
+        persister.persist(new RecordWithMetadata(past, transactionTime, null, null, record(1, "Old")), recordSpecification);
+        persister.persist(record(2, "New"), recordSpecification);
+        jdbcTemplate.update("UPDATE " + recordSpecification.getTable() + " SET ModifiedDate=? WHERE Moo='Old'",
+                new Timestamp(past.getMillis()));
+
+        List<Record> scanned = Lists.newArrayList();
+        assertEquals(1, fetcher.scanByValidFrom(past, transactionTime, recordSpecification, collectInto(scanned)));
+        assertEquals(Arrays.asList(record(1, "Old")), scanned);
+
+        scanned.clear();
+        assertEquals(1, fetcher.scanByModifiedDate(transactionTime, transactionTime.plus(1000), recordSpecification, collectInto(scanned)));
+        assertEquals(Arrays.asList(record(2, "New")), scanned);
+
+        assertEquals(0, fetcher.scanByModifiedDate(past.plus(1000), transactionTime, recordSpecification, collectInto(scanned)));
+    }
+
+    @Test
+    public void pagesThroughChangesInOrderOfModifiedDateAndPid() throws SQLException {
+        List<String> written = Lists.newArrayList();
+        for (int i = 0; i < 7; i++) {
+            persister.persist(record(i, "K" + i), recordSpecification);
+            written.add("K" + i);
+        }
+        // an earlier write of the last row sorts it first
+        jdbcTemplate.update("UPDATE " + recordSpecification.getTable() + " SET ModifiedDate=? WHERE Moo='K6'",
+                new Timestamp(new DateTime(2011, 5, 28, 0, 0, 0).getMillis()));
+        written.add(0, written.remove(6));
+
+        List<String> read = Lists.newArrayList();
+        RecordChangeWatermark watermark = RecordChangeWatermark.BEGINNING;
+        List<RecordWithMetadata> page;
+        do {
+            page = fetcher.fetchChangesSince(watermark, 3, recordSpecification);
+            for (RecordWithMetadata recordWithMeta : page) {
+                read.add(recordWithMeta.getRecord().get("Moo").toString());
+                watermark = RecordChangeWatermark.after(recordWithMeta);
+            }
+        } while (page.size() == 3);
+
+        assertEquals(written, read);
+        assertTrue(fetcher.fetchChangesSince(watermark, 3, recordSpecification).isEmpty());
+    }
+
+    @Test
+    public void changesIncludeRowsWrittenAgain() throws SQLException {
+        persister.persist(record(1, "Far"), recordSpecification);
+        RecordWithMetadata inserted = fetcher.fetchChangesSince(RecordChangeWatermark.BEGINNING, 10, recordSpecification).get(0);
+        assertNull(inserted.getValidTo());
+        RecordChangeWatermark watermark = RecordChangeWatermark.after(inserted);
+
+        Instant later = transactionTime.plus(Duration.standardDays(1));
+        persister.setTransactionTime(later);
+        try {
+            inserted.setValidTo(later);
+            persister.update(inserted, recordSpecification);
+        } finally {
+            persister.setTransactionTime(transactionTime);
+        }
+
+        List<RecordWithMetadata> changes = fetcher.fetchChangesSince(watermark, 10, recordSpecification);
+        assertEquals(1, changes.size());
+        assertEquals(inserted.getPid(), changes.get(0).getPid());
+        assertEquals(later, changes.get(0).getValidTo());
+        assertEquals(later, changes.get(0).getModifiedDate());
+    }
+
+    @Test
+    public void changesAndScansLeaveOutUnpublishedRows() throws SQLException {
+        persister.persist(record(1, "Final"), recordSpecification);
+        persister.setTransactionTime(ImportCheckpoint.UNPUBLISHED);
+        try {
+            persister.persist(record(2, "Draft"), recordSpecification);
+        } finally {
+            persister.setTransactionTime(transactionTime);
+        }
+
+        List<RecordWithMetadata> changes = fetcher.fetchChangesSince(RecordChangeWatermark.BEGINNING, 10, recordSpecification);
+        assertEquals(1, changes.size());
+        assertEquals(record(1, "Final"), changes.get(0).getRecord());
+        assertTrue(fetcher.fetchChangesSince(RecordChangeWatermark.after(changes.get(0)), 10, recordSpecification).isEmpty());
+
+        List<Record> scanned = Lists.newArrayList();
+        assertEquals(1, fetcher.scanByModifiedDate(transactionTime, ImportCheckpoint.UNPUBLISHED.plus(1000),
+                recordSpecification, collectInto(scanned)));
+        assertEquals(Arrays.asList(record(1, "Final")), scanned);
+    }
+
+    @Test
+    public void fetchWithMetaMapsMissingValidToToATime() throws SQLException {
+        persister.persist(record(1, "Far"), recordSpecification);
+
+        assertNotNull(fetcher.fetchCurrentWithMeta("Far", recordSpecification).getValidTo());
+        assertNotNull(fetcher.fetchWithMetaAt("Far", transactionTime, recordSpecification).getValidTo());
+        assertNotNull(fetcher.fetchCurrentWithMeta(Arrays.asList("Far"), recordSpecification).get("Far").getValidTo());
+    }
+
 	@Test
 	public void returnsNullWhenNoRecordExists() throws SQLException {
 		assertNull(fetcher.fetchCurrent("Far", recordSpecification));
@@ -165,6 +486,19 @@ public class RecordFetcherTest {
         assertNotNull(recordWithMeta);
     }
 
+    private Record record(long foo, String moo) {
+        return new RecordBuilder(recordSpecification).field("Foo", foo).field("Moo", moo).build();
+    }
+
+    private RecordScanHandler collectInto(final List<Record> records) {
+        return new RecordScanHandler() {
+            @Override
+            public void handle(RecordWithMetadata recordWithMeta) {
+                records.add(recordWithMeta.getRecord());
+            }
+        };
+    }
+
     private void createRecordFieldsTableOnDatabase() throws SQLException {
 		jdbcTemplate.update("DROP TABLE IF EXISTS " + recordSpecification.getTable());
 		jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(recordSpecification));
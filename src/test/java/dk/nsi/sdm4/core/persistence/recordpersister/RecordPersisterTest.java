@@ -24,6 +24,9 @@
  */
 package dk.nsi.sdm4.core.persistence.recordpersister;
 
+import com.google.common.collect.Lists;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordInsertSetter;
+import dk.nsi.sdm4.core.persistence.recordpersister.statements.RecordMultiRowInsertSetter;
 import org.joda.time.DateTime;
 import org.joda.time.Instant;
 import org.junit.Before;
@@ -35,12 +38,14 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.support.AnnotationConfigContextLoader;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.sql.SQLException;
+import java.util.List;
 
 import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
 import static org.hamcrest.Matchers.is;
@@ -98,6 +103,11 @@ public class RecordPersisterTest
 	    );
 
 	    createSikredeFieldsTableOnDatabase(recordSpecification);
+
+	    persister.clearBatch();
+	    persister.setBatchSize(RecordPersister.DEFAULT_BATCH_SIZE);
+	    persister.setMultiRowInserts(false);
+	    persister.setMaxStatementBytes(RecordMultiRowInsertSetter.DEFAULT_MAX_STATEMENT_BYTES);
     }
 
     @Test
@@ -175,6 +185,193 @@ public class RecordPersisterTest
         assertEquals(new Double(88.8), jdbcTemplate.queryForObject("SELECT Foo FROM " + decimalRecordSpec.getTable(), Double.class));
     }
 
+    @Test
+    public void testBatchedRecordsAreSentWhenBatchIsFull() throws SQLException {
+        persister.setBatchSize(2);
+        persister.persistBatched(new RecordBuilder(recordSpecification).field("Foo", 1).field("Moo", "A").build(), recordSpecification);
+        assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+
+        persister.persistBatched(new RecordBuilder(recordSpecification).field("Foo", 2).field("Moo", "B").build(), recordSpecification);
+        persister.persistBatched(new RecordBuilder(recordSpecification).field("Foo", 3).field("Moo", "C").build(), recordSpecification);
+        assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+
+        persister.flush();
+        assertEquals(3, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+    }
+
+    @Test
+    public void testBatchedRecordsAreStoredLikeSingleRecords() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        Record recordB = new RecordBuilder(decimalRecordSpec).field("Foo", 42.2).field("Moo", "Far").build();
+
+        persister.persistBatched(recordA, recordSpecification);
+        persister.persistBatched(recordB, decimalRecordSpec);
+        persister.flush();
+
+        assertEquals(recordA, fetcher.fetchCurrent("Far", recordSpecification));
+        RecordWithMetadata fetchedB = fetcher.fetchCurrentWithMeta("Far", decimalRecordSpec);
+        assertEquals(recordB, fetchedB.getRecord());
+        assertEquals(persister.getTransactionTime(), fetchedB.getValidFrom());
+        assertEquals(persister.getTransactionTime(), fetchedB.getModifiedDate());
+    }
+
+    @Test
+    public void testQueuedRecordsAreFlushedBeforeOtherWrites() throws SQLException {
+        persister.persistBatched(new RecordBuilder(recordSpecification).field("Foo", 1).field("Moo", "A").build(), recordSpecification);
+        persister.persist(new RecordBuilder(recordSpecification).field("Foo", 2).field("Moo", "B").build(), recordSpecification);
+
+        assertEquals(1, jdbcTemplate.queryForInt("SELECT Foo FROM " + recordSpecification.getTable() + " ORDER BY PID LIMIT 1"));
+    }
+
+    @Test
+    public void testClearBatchDiscardsQueuedRecords() throws SQLException {
+        persister.persistBatched(new RecordBuilder(recordSpecification).field("Foo", 1).field("Moo", "A").build(), recordSpecification);
+        persister.clearBatch();
+        persister.flush();
+
+        assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+    }
+
+    @Test
+    public void testPersistListWithMetaReturnsGeneratedPids() throws SQLException {
+        persister.setBatchSize(2);
+        Instant validFrom = new DateTime(2012, 1, 1, 1, 1, 1).toInstant();
+        List<RecordWithMetadata> recordsWithMeta = Lists.newArrayList();
+        for (String key : new String[] {"A", "B", "C"}) {
+            Record record = new RecordBuilder(decimalRecordSpec).field("Foo", 42.2).field("Moo", key).build();
+            recordsWithMeta.add(new RecordWithMetadata(validFrom, null, null, null, record));
+        }
+
+        List<RecordWithMetadata> persisted = persister.persist(recordsWithMeta, decimalRecordSpec);
+
+        assertEquals(3, persisted.size());
+        for (int i = 0; i < persisted.size(); i++) {
+            RecordWithMetadata recordWithMeta = persisted.get(i);
+            assertSame(recordsWithMeta.get(i).getRecord(), recordWithMeta.getRecord());
+            assertEquals(validFrom, recordWithMeta.getValidFrom());
+            assertEquals(persister.getTransactionTime(), recordWithMeta.getModifiedDate());
+            assertEquals(recordWithMeta.getRecord().get("Moo"), jdbcTemplate.queryForObject(
+                    "SELECT Moo FROM " + decimalRecordSpec.getTable() + " WHERE PID=?", String.class, recordWithMeta.getPid()));
+        }
+    }
+
+    @Test
+    public void testMultiRowInsertsAreStoredLikeSingleRecords() throws SQLException {
+        persister.setMultiRowInserts(true);
+        // room for two records per statement, so the five records below take three statements
+        persister.setMaxStatementBytes(RecordInsertSetter.createInsertStatementSql(recordSpecification).length()
+                + 2 * RecordMultiRowInsertSetter.estimatedRowBytes(recordSpecification));
+        assertEquals(2, RecordMultiRowInsertSetter.maxRowsPerStatement(recordSpecification, persister.getMaxStatementBytes()));
+
+        List<Record> records = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            Record record = new RecordBuilder(recordSpecification).field("Foo", i).field("Moo", "K" + i).build();
+            records.add(record);
+            persister.persistBatched(record, recordSpecification);
+        }
+        persister.flush();
+
+        assertEquals(5, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+        for (Record record : records) {
+            RecordWithMetadata fetched = fetcher.fetchCurrentWithMeta((String) record.get("Moo"), recordSpecification);
+            assertEquals(record, fetched.getRecord());
+            assertEquals(persister.getTransactionTime(), fetched.getValidFrom());
+        }
+    }
+
+    @Test
+    public void testMultiRowInsertStatementIsLimitedByParameterCount() {
+        assertEquals(65535 / 5, RecordMultiRowInsertSetter.maxRowsPerStatement(recordSpecification, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testBulkLoadedRecordsAreStoredLikeSingleRecords() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        Record recordB = new RecordBuilder(recordSpecification).field("Foo", (Long) null).field("Moo", "a\tb\\").build();
+
+        persister.bulkLoad(Lists.newArrayList(recordA, recordB), recordSpecification);
+
+        assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+        assertEquals(recordA, fetcher.fetchCurrent("Far", recordSpecification));
+        RecordWithMetadata fetchedB = fetcher.fetchCurrentWithMeta("a\tb\\", recordSpecification);
+        assertEquals(recordB, fetchedB.getRecord());
+        assertEquals(persister.getTransactionTime(), fetchedB.getValidFrom());
+        assertNull(jdbcTemplate.queryForObject("SELECT ValidTo FROM " + recordSpecification.getTable() + " WHERE PID=?",
+                Object.class, fetchedB.getPid()));
+        assertEquals(persister.getTransactionTime(), fetchedB.getModifiedDate());
+    }
+
+    @Test
+    public void testBulkLoadInsertsInBatchesWhenTheServerRefusesLoadData() throws SQLException {
+        Record recordA = new RecordBuilder(recordSpecification).field("Foo", 42).field("Moo", "Far").build();
+        Record recordB = new RecordBuilder(recordSpecification).field("Foo", 43).field("Moo", "Bar").build();
+        RecordPersister refusedPersister = new RecordPersister(persister.getTransactionTime());
+        refusedPersister.jdbcTemplate = jdbcTemplate;
+
+        int localInfile = jdbcTemplate.queryForInt("SELECT @@GLOBAL.local_infile");
+        jdbcTemplate.execute("SET GLOBAL local_infile=0");
+        try {
+            refusedPersister.bulkLoad(Lists.newArrayList(recordA), recordSpecification);
+            refusedPersister.bulkLoad(Lists.newArrayList(recordB), recordSpecification);
+        } finally {
+            jdbcTemplate.execute("SET GLOBAL local_infile=" + localInfile);
+        }
+
+        assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+        assertEquals(recordA, fetcher.fetchCurrent("Far", recordSpecification));
+        assertEquals(recordB, fetcher.fetchCurrent("Bar", recordSpecification));
+    }
+
+    @Test
+    public void testBulkLoadInsertsInBatchesOnOtherDatabases() throws SQLException {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource("jdbc:hsqldb:mem:bulkload;shutdown=true", "sa", "", true);
+        try {
+            JdbcTemplate hsqldbTemplate = new JdbcTemplate(dataSource);
+            hsqldbTemplate.execute("CREATE TABLE " + recordSpecification.getTable() + " (PID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "Foo BIGINT, Moo VARCHAR(5), ValidFrom TIMESTAMP NOT NULL, ValidTo TIMESTAMP, ModifiedDate TIMESTAMP NOT NULL)");
+            RecordPersister hsqldbPersister = new RecordPersister(persister.getTransactionTime());
+            hsqldbPersister.jdbcTemplate = hsqldbTemplate;
+            hsqldbPersister.setBatchSize(2);
+
+            List<Record> records = Lists.newArrayList();
+            for (int i = 0; i < 5; i++) {
+                records.add(new RecordBuilder(recordSpecification).field("Foo", i).field("Moo", "K" + i).build());
+            }
+            hsqldbPersister.bulkLoad(records, recordSpecification);
+
+            assertEquals(5, hsqldbTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()));
+            assertEquals(5, hsqldbTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable()
+                    + " WHERE ValidFrom=? AND ModifiedDate=? AND ValidTo IS NULL",
+                    persister.getTransactionTime().toDate(), persister.getTransactionTime().toDate()));
+            assertEquals(3L, hsqldbTemplate.queryForLong("SELECT Foo FROM " + recordSpecification.getTable() + " WHERE Moo='K3'"));
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testContentHashIsStoredByAllInsertMethods() throws SQLException {
+        RecordSpecification hashedSpecification = RecordSpecification.createSpecification("SikredeTestHash", "Moo",
+                field("Foo", 2, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + hashedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(hashedSpecification));
+        Record record = new RecordBuilder(hashedSpecification).field("Foo", 42).field("Moo", "Far").build();
+
+        persister.persist(record, hashedSpecification);
+        persister.bulkLoad(Lists.newArrayList(record), hashedSpecification);
+        persister.setMultiRowInserts(true);
+        persister.persistBatched(record, hashedSpecification);
+        persister.flush();
+
+        List<String> hashes = jdbcTemplate.queryForList("SELECT ContentHash FROM " + hashedSpecification.getTable(), String.class);
+        assertEquals(3, hashes.size());
+        for (String hash : hashes) {
+            assertEquals(RecordContentHash.compute(record, hashedSpecification), hash);
+        }
+    }
+
 	private void createSikredeFieldsTableOnDatabase(RecordSpecification recordSpecification) throws SQLException
     {
         jdbcTemplate.update("DROP TABLE IF EXISTS " + recordSpecification.getTable());
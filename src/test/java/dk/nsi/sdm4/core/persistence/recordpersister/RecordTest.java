@@ -0,0 +1,174 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
+import static org.junit.Assert.*;
+
+public class RecordTest {
+    private RecordSpecification specification = RecordSpecification.createSpecification("RecordTest", "Moo",
+            field("Foo", 2, false).numerical(),
+            field("Moo", 5, true),
+            field("Bar", 5, true),
+            field("Baz", 10, true).decimal10_3()
+    );
+
+    @Test
+    public void unboxedNumbersBehaveLikeBoxedNumbers() {
+        Record unboxed = new Record(specification).putLong("Foo", 42).putDouble("Baz", 4.2).putLong("Other", 7);
+        Record boxed = new Record().put("Foo", 42L).put("Baz", 4.2).put("Other", 7L);
+
+        assertEquals(boxed, unboxed);
+        assertEquals(unboxed, new Record(specification).put("Foo", 42L).put("Baz", 4.2).put("Other", 7L));
+        assertEquals(boxed.hashCode(), unboxed.hashCode());
+        assertEquals(42L, unboxed.get("Foo"));
+        assertEquals(4.2, unboxed.get("Baz"));
+        assertEquals(42L, unboxed.getLong("Foo"));
+        assertEquals(4.2, unboxed.getDouble("Baz"), 0);
+        assertEquals(7L, boxed.getLong("Other"));
+        assertFalse(unboxed.isNull("Foo"));
+        assertTrue(unboxed.isNull("Bar"));
+        assertFalse(unboxed.equals(new Record(specification).putLong("Foo", 43).putDouble("Baz", 4.2).putLong("Other", 7)));
+        assertFalse(unboxed.equals(new Record(specification).put("Foo", 42).put("Baz", 4.2).put("Other", 7L)));
+    }
+
+    @Test
+    public void recordWithSpecificationBehavesLikeRecordWithoutSpecification() {
+        Record withSpecification = new Record(specification).put("Foo", 42L).put("Moo", null).put("Other", "x");
+        Record withoutSpecification = new Record().put("Foo", 42L).put("Moo", null).put("Other", "x");
+
+        assertEquals(withoutSpecification, withSpecification);
+        assertEquals(withSpecification, withoutSpecification);
+        assertEquals(withoutSpecification.hashCode(), withSpecification.hashCode());
+        assertEquals(3, withSpecification.size());
+        assertTrue(withSpecification.containsKey("Moo"));
+        assertFalse(withSpecification.containsKey("Bar"));
+        assertNull(withSpecification.get("Bar"));
+        assertEquals("x", withSpecification.get("Other"));
+    }
+
+    @Test
+    public void absentFieldDiffersFromFieldWithNullValue() {
+        Record withNull = new Record(specification).put("Foo", 42L).put("Bar", null);
+        Record withoutBar = new Record(specification).put("Foo", 42L);
+
+        assertFalse(withNull.equals(withoutBar));
+        assertFalse(withNull.equals(new Record().put("Foo", 42L).put("Moo", null)));
+    }
+
+    @Test
+    public void fieldsAreAViewOfTheRecord() {
+        Record record = new Record(specification).put("Foo", 42L).put("Moo", "Far").put("Other", "x");
+
+        Map<String, Object> fields = Maps.newHashMap();
+        for (Map.Entry<String, Object> field : record.fields()) {
+            fields.put(field.getKey(), field.getValue());
+            if (field.getKey().equals("Moo")) {
+                field.setValue("Bar");
+            }
+        }
+
+        assertEquals(3, fields.size());
+        assertEquals(42L, fields.get("Foo"));
+        assertEquals("x", fields.get("Other"));
+        assertEquals("Bar", record.get("Moo"));
+        assertEquals(fields.hashCode(), new Record().put("Foo", 42L).put("Moo", "Far").put("Other", "x").hashCode());
+    }
+
+    @Test
+    public void changedRecordIsCheckedAgainstSpecification() {
+        Record record = new Record(specification).putLong("Foo", 42).put("Moo", "Far");
+        assertTrue(specification.conformsToSpecifications(record));
+
+        record.put("Moo", "Far too long");
+        assertFalse(specification.conformsToSpecifications(record));
+
+        record.put("Moo", "Far");
+        assertTrue(specification.conformsToSpecifications(record));
+        for (Map.Entry<String, Object> field : record.fields()) {
+            field.setValue("Not a number");
+        }
+        assertFalse(specification.conformsToSpecifications(record));
+    }
+
+    @Test
+    public void removingThroughFieldsRemovesTheField() {
+        Record record = new Record(specification).putLong("Foo", 42).put("Moo", "Far").put("Other", "x");
+
+        Iterator<Map.Entry<String, Object>> fields = record.fields().iterator();
+        while (fields.hasNext()) {
+            String key = fields.next().getKey();
+            if (key.equals("Foo") || key.equals("Other")) {
+                fields.remove();
+            }
+        }
+
+        assertEquals(new Record().put("Moo", "Far"), record);
+        assertFalse(record.containsKey("Foo"));
+        assertFalse(record.containsKey("Other"));
+        assertEquals(1, record.fields().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void removingBeforeNextIsRejected() {
+        new Record(specification).put("Moo", "Far").fields().iterator().remove();
+    }
+
+    @Test
+    public void changingAFieldThroughAnEntryAlreadyFetchedIsCheckedAgainstSpecification() {
+        Record record = new Record(specification).putLong("Foo", 42).put("Moo", "Far");
+        Map.Entry<String, Object> moo = null;
+        for (Map.Entry<String, Object> field : record.fields()) {
+            if (field.getKey().equals("Moo")) {
+                moo = field;
+            }
+        }
+        assertTrue(specification.conformsToSpecifications(record));
+
+        moo.setValue("Far too long");
+        assertFalse(specification.conformsToSpecifications(record));
+    }
+
+    @Test
+    public void changingAFieldOfARecordWithoutSpecificationIsCheckedAgainstSpecification() {
+        Record record = new Record().put("Foo", 42L).put("Moo", "Far");
+        Map.Entry<String, Object> moo = null;
+        for (Map.Entry<String, Object> field : record.fields()) {
+            if (field.getKey().equals("Moo")) {
+                moo = field;
+            }
+        }
+        assertTrue(specification.conformsToSpecifications(record));
+
+        moo.setValue("Far too long");
+        assertFalse(specification.conformsToSpecifications(record));
+    }
+}
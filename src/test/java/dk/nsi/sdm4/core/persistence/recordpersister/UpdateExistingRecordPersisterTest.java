@@ -0,0 +1,312 @@
+/**
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Contributor(s): Contributors are attributed in the source code
+ * where applicable.
+ *
+ * The Original Code is "Stamdata".
+ *
+ * The Initial Developer of the Original Code is Trifork Public A/S.
+ *
+ * Portions created for the Original Code are Copyright 2011,
+ * Lægemiddelstyrelsen. All Rights Reserved.
+ *
+ * Portions created for the FMKi Project are Copyright 2011,
+ * National Board of e-Health (NSI). All Rights Reserved.
+ */
+package dk.nsi.sdm4.core.persistence.recordpersister;
+
+
+import com.google.common.collect.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+import static dk.nsi.sdm4.core.persistence.recordpersister.FieldSpecification.field;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@Transactional
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class)
+public class UpdateExistingRecordPersisterTest {
+    @Configuration
+    @PropertySource("classpath:test.properties")
+    @Import(RecordPersisterTestDatasourceConfiguration.class)
+    static class ContextConfiguration {
+        @Bean
+        public RecordFetcher recordFetcher(Instant transactionTime) {
+            return new RecordFetcher(transactionTime);
+        }
+
+        @Bean
+        public UpdateExistingRecordPersister persister(Instant transactionTime) {
+            return new UpdateExistingRecordPersister(transactionTime);
+        }
+
+        @Bean
+        public Instant transactionTime() {
+            return new DateTime(2011, 5, 29, 0, 0, 0).toInstant();
+        }
+    }
+
+    private RecordSpecification recordSpecification;
+
+    @Autowired
+    private RecordFetcher fetcher;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private UpdateExistingRecordPersister persister;
+
+    @Before
+    public void setUp() throws SQLException {
+        recordSpecification = RecordSpecification.createSpecification("UpdateExistingTest", "Moo",
+                field("Foo", 2, false).numerical(),
+                field("Moo", 5, false)
+        );
+
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + recordSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(recordSpecification));
+
+        persister.clearBatch();
+        persister.setBatchSize(RecordPersister.DEFAULT_BATCH_SIZE);
+
+        RecordPersister persisterIn2000 = new RecordPersister(new DateTime(2000, 1, 1, 0, 0).toInstant());
+        persisterIn2000.jdbcTemplate = jdbcTemplate;
+        persisterIn2000.persist(record(1, "Same"), recordSpecification);
+        persisterIn2000.persist(record(2, "Chg"), recordSpecification);
+    }
+
+    @Test
+    public void bulkPersistOnlyClosesAndInsertsChangedAndNewRecords() throws SQLException {
+        persister.setBatchSize(2);
+
+        persister.persist(Lists.newArrayList(record(1, "Same"), record(3, "Chg"), record(4, "New")), recordSpecification);
+
+        assertEquals(1, countRows("Same"));
+        assertEquals(2, countRows("Chg"));
+        assertEquals(1, countRows("New"));
+        assertEquals(record(3, "Chg"), fetcher.fetchCurrent("Chg", recordSpecification));
+        assertEquals(record(4, "New"), fetcher.fetchCurrent("New", recordSpecification));
+        assertEquals(persister.getTransactionTime().toDate(), jdbcTemplate.queryForObject(
+                "SELECT ValidTo FROM " + recordSpecification.getTable() + " WHERE Moo='Chg' AND Foo=2", Date.class));
+    }
+
+    @Test
+    public void bulkPersistComparesRecordsWithTheSameKeyAgainstThePreviousOne() throws SQLException {
+        persister.persist(Lists.newArrayList(record(5, "New"), record(5, "New"), record(6, "New")), recordSpecification);
+
+        assertEquals(2, countRows("New"));
+        assertEquals(record(6, "New"), fetcher.fetchCurrent("New", recordSpecification));
+    }
+
+    @Test
+    public void bulkPersistComparesKeysTheDatabaseFindsEqualAgainstThePreviousOne() throws SQLException {
+        jdbcTemplate.update("ALTER TABLE " + recordSpecification.getTable() + " MODIFY Moo VARCHAR(5) COLLATE utf8_general_ci");
+
+        persister.persist(Lists.newArrayList(record(3, "CHG "), record(4, "chg"), record(4, "chg")), recordSpecification);
+
+        assertEquals(3, countRows("Chg"));
+        assertEquals(1, countCurrentRows("Chg"));
+        assertEquals(record(4, "chg"), fetcher.fetchCurrent("Chg", recordSpecification));
+    }
+
+    @Test
+    public void bulkPersistComparesKeysDifferingInTrailingSpacesAgainstThePreviousOneWithBinaryCollation() throws SQLException {
+        persister.persist(Lists.newArrayList(record(3, "Chg"), record(4, "Chg "), record(5, "chg")), recordSpecification);
+
+        assertEquals(1, countCurrentRows("Chg"));
+        assertEquals(record(4, "Chg "), fetcher.fetchCurrent("Chg", recordSpecification));
+        assertEquals(record(5, "chg"), fetcher.fetchCurrent("chg", recordSpecification));
+    }
+
+    @Test
+    public void batchedPersistClosesChangedRecords() throws SQLException {
+        persister.setBatchSize(2);
+
+        persister.persistBatched(record(1, "Same"), recordSpecification);
+        persister.persistBatched(record(3, "Chg"), recordSpecification);
+        assertEquals(1, countCurrentRows("Chg")); // a full batch is written without a flush
+        persister.persistBatched(record(4, "New"), recordSpecification);
+        persister.persistBatched(record(5, "New"), recordSpecification);
+        persister.flush();
+
+        assertEquals(1, countRows("Same"));
+        assertEquals(2, countRows("Chg"));
+        assertEquals(1, countCurrentRows("Chg"));
+        assertEquals(1, countCurrentRows("New"));
+        assertEquals(record(3, "Chg"), fetcher.fetchCurrent("Chg", recordSpecification));
+        assertEquals(record(5, "New"), fetcher.fetchCurrent("New", recordSpecification));
+    }
+
+    @Test
+    public void clearBatchDropsQueuedRecords() throws SQLException {
+        persister.persistBatched(record(3, "Chg"), recordSpecification);
+        persister.clearBatch();
+        persister.flush();
+
+        assertEquals(record(2, "Chg"), fetcher.fetchCurrent("Chg", recordSpecification));
+    }
+
+    @Test
+    public void bulkLoadClosesChangedRecords() throws SQLException {
+        persister.bulkLoad(Lists.newArrayList(record(1, "Same"), record(3, "Chg"), record(4, "New")), recordSpecification);
+
+        assertEquals(1, countRows("Same"));
+        assertEquals(2, countRows("Chg"));
+        assertEquals(1, countCurrentRows("Chg"));
+        assertEquals(record(3, "Chg"), fetcher.fetchCurrent("Chg", recordSpecification));
+        assertEquals(record(4, "New"), fetcher.fetchCurrent("New", recordSpecification));
+    }
+
+    @Test
+    public void persistWithContentHashOnlyInsertsChangedRecords() throws SQLException {
+        RecordSpecification hashedSpecification = createHashedSpecification();
+
+        persister.persist(Lists.newArrayList(record(1, "Same"), record(2, "Chg")), hashedSpecification);
+        persister.persist(record(1, "Same"), hashedSpecification);
+        persister.persist(Lists.newArrayList(record(3, "Chg"), record(4, "New")), hashedSpecification);
+
+        assertEquals(1, countRows(hashedSpecification, "Same"));
+        assertEquals(2, countRows(hashedSpecification, "Chg"));
+        assertEquals(1, countRows(hashedSpecification, "New"));
+        assertEquals(record(3, "Chg"), fetcher.fetchCurrent("Chg", hashedSpecification));
+        assertEquals(RecordContentHash.compute(record(3, "Chg"), hashedSpecification), jdbcTemplate.queryForObject(
+                "SELECT ContentHash FROM " + hashedSpecification.getTable() + " WHERE Moo='Chg' AND ValidTo IS NULL", String.class));
+    }
+
+    @Test
+    public void persistWithContentHashComparesFieldsOfRowsWithoutHash() throws SQLException {
+        RecordSpecification hashedSpecification = createHashedSpecification();
+        persister.persist(Lists.newArrayList(record(1, "Same"), record(2, "Chg")), hashedSpecification);
+        jdbcTemplate.update("UPDATE " + hashedSpecification.getTable() + " SET ContentHash=NULL");
+
+        persister.persist(Lists.newArrayList(record(1, "Same"), record(3, "Chg")), hashedSpecification);
+
+        assertEquals(1, countRows(hashedSpecification, "Same"));
+        assertEquals(2, countRows(hashedSpecification, "Chg"));
+    }
+
+    @Test
+    public void contentHashDependsOnEveryPersistedField() {
+        assertEquals(RecordContentHash.compute(record(1, "Same"), recordSpecification),
+                RecordContentHash.compute(record(1, "Same"), recordSpecification));
+        assertEquals(RecordContentHash.LENGTH, RecordContentHash.compute(record(1, "Same"), recordSpecification).length());
+        assertFalse(RecordContentHash.compute(record(1, "Same"), recordSpecification).equals(
+                RecordContentHash.compute(record(2, "Same"), recordSpecification)));
+        assertFalse(RecordContentHash.compute(record(1, "Same"), recordSpecification).equals(
+                RecordContentHash.compute(new RecordBuilder(recordSpecification).field("Foo", (Long) null).field("Moo", "Same").build(), recordSpecification)));
+    }
+
+    @Test
+    public void persistWithIndexedCurrentRecordsInsertsOnlyChangedRecords() throws SQLException {
+        RecordSpecification indexedSpecification = RecordSpecification.createSpecification("UpdateExistingIndexTest", "Foo",
+                field("Foo", 5, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + indexedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(indexedSpecification));
+        persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 1, "Same"), indexedRecord(indexedSpecification, 2, "Old")), indexedSpecification);
+
+        persister.setIndexCurrentRecords(true);
+        try {
+            persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 1, "Same"), indexedRecord(indexedSpecification, 2, "New"),
+                    indexedRecord(indexedSpecification, 3, "Added")), indexedSpecification);
+            // written keys are read from the database, not from the index
+            persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 2, "New"), indexedRecord(indexedSpecification, 3, "Again")), indexedSpecification);
+        } finally {
+            persister.setIndexCurrentRecords(false);
+        }
+
+        assertEquals(1, countRows(indexedSpecification, "Same"));
+        assertEquals(1, countRows(indexedSpecification, "Old"));
+        assertEquals(1, countRows(indexedSpecification, "New"));
+        assertEquals(1, countRows(indexedSpecification, "Added"));
+        assertEquals(1, countRows(indexedSpecification, "Again"));
+        assertEquals(indexedRecord(indexedSpecification, 3, "Again"), fetcher.fetchCurrent("3", indexedSpecification));
+    }
+
+    @Test
+    public void recordsWrittenOtherwiseAreReadFromTheDatabaseInsteadOfTheIndex() throws SQLException {
+        RecordSpecification indexedSpecification = RecordSpecification.createSpecification("UpdateExistingIndexTest", "Foo",
+                field("Foo", 5, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + indexedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(indexedSpecification));
+        persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 1, "Same"), indexedRecord(indexedSpecification, 2, "Old")), indexedSpecification);
+
+        persister.setIndexCurrentRecords(true);
+        try {
+            persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 1, "Same")), indexedSpecification);
+
+            RecordWithMetadata closed = fetcher.fetchCurrentWithMeta("2", indexedSpecification);
+            closed.setValidTo(persister.getTransactionTime());
+            persister.update(closed, indexedSpecification);
+            persister.persist(new RecordWithMetadata(persister.getTransactionTime(), null, null, null, indexedRecord(indexedSpecification, 3, "Added")), indexedSpecification);
+
+            persister.persist(Lists.newArrayList(indexedRecord(indexedSpecification, 2, "Old"), indexedRecord(indexedSpecification, 3, "Added")), indexedSpecification);
+        } finally {
+            persister.setIndexCurrentRecords(false);
+        }
+
+        assertEquals(indexedRecord(indexedSpecification, 2, "Old"), fetcher.fetchCurrent("2", indexedSpecification));
+        assertEquals(1, countRows(indexedSpecification, "Added"));
+    }
+
+    private RecordSpecification createHashedSpecification() {
+        RecordSpecification hashedSpecification = RecordSpecification.createSpecification("UpdateExistingHashTest", "Moo",
+                field("Foo", 2, false).numerical(),
+                field("Moo", 5, false)
+        ).withContentHash();
+        jdbcTemplate.update("DROP TABLE IF EXISTS " + hashedSpecification.getTable());
+        jdbcTemplate.update(RecordMySQLTableGenerator.createSqlSchema(hashedSpecification));
+        return hashedSpecification;
+    }
+
+    private Record record(long foo, String moo) {
+        return new RecordBuilder(recordSpecification).field("Foo", foo).field("Moo", moo).build();
+    }
+
+    private Record indexedRecord(RecordSpecification specification, long foo, String moo) {
+        return new RecordBuilder(specification).field("Foo", foo).field("Moo", moo).build();
+    }
+
+    private int countRows(String moo) {
+        return countRows(recordSpecification, moo);
+    }
+
+    private int countCurrentRows(String moo) {
+        return jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + recordSpecification.getTable() + " WHERE Moo=? AND ValidTo IS NULL", moo);
+    }
+
+    private int countRows(RecordSpecification specification, String moo) {
+        return jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + specification.getTable() + " WHERE Moo=?", moo);
+    }
+}
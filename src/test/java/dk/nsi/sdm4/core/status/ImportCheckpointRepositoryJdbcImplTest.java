@@ -0,0 +1,139 @@
+package dk.nsi.sdm4.core.status;
+
+import dk.nsi.sdm4.core.parser.Parser;
+import dk.nsi.sdm4.core.parser.ParserException;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@Transactional
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class)
+public class ImportCheckpointRepositoryJdbcImplTest {
+	@Configuration
+	static class ContextConfiguration {
+		@Bean
+		public ImportCheckpointRepositoryJdbcImpl repository() {
+			return new ImportCheckpointRepositoryJdbcImpl();
+		}
+
+		@Bean
+		public JdbcTemplate template() {
+			return new JdbcTemplate(datasource());
+		}
+
+		@Bean
+		public DataSource datasource() {
+			return new EmbeddedDatabaseBuilder()
+					.addScript("ImportCheckpointRepositoryJdbcImplTest-schema.sql")
+					.build();
+		}
+
+		@Bean
+		public Parser fakeParser() {
+			return new Parser() {
+				@Override
+				public void process(File dataSet, String identifier) throws ParserException {
+					throw new UnsupportedOperationException("process");
+				}
+
+				@Override
+				public String getHome() {
+					return "fakeParser";
+				}
+			};
+		}
+
+		@Bean
+		public PlatformTransactionManager transactionManager(DataSource ds) {
+			return new DataSourceTransactionManager(ds);
+		}
+	}
+
+	@Autowired
+	private ImportCheckpointRepositoryJdbcImpl repository;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Test
+	public void returnsNoCheckpointForFileNotStarted() {
+		assertNull(repository.getCheckpoint("dataset1", "file.txt"));
+	}
+
+	@Test
+	public void returnsLatestSavedCheckpoint() {
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 1000));
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 2000));
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "other.txt", "CheckpointedRecords", 500));
+
+		assertEquals(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 2000),
+				repository.getCheckpoint("dataset1", "file.txt"));
+	}
+
+	@Test
+	public void publishGivesUnpublishedRowsTheTransactionTimeAndRemovesCheckpoints() {
+		Instant transactionTime = new Instant(1338000000000L);
+		insertRow(1, ImportCheckpoint.UNPUBLISHED);
+		insertRow(2, new Instant(1200000000000L));
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 1000));
+
+		repository.publish("dataset1", transactionTime);
+
+		assertEquals(new Timestamp(transactionTime.getMillis()), validFromOf(1));
+		assertEquals(new Timestamp(transactionTime.getMillis()), jdbcTemplate.queryForObject("SELECT ModifiedDate FROM CheckpointedRecords WHERE Number=1", Timestamp.class));
+		assertEquals(new Timestamp(1200000000000L), validFromOf(2));
+		assertNull(repository.getCheckpoint("dataset1", "file.txt"));
+	}
+
+	@Test
+	public void keepsCheckpointsOfTheSameDataset() {
+		insertRow(1, ImportCheckpoint.UNPUBLISHED);
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 1000));
+
+		repository.discardOtherDatasets("dataset1");
+
+		assertEquals(1000, repository.getCheckpoint("dataset1", "file.txt").getByteOffset());
+		assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckpointedRecords"));
+	}
+
+	@Test
+	public void discardsUnpublishedRowsAndCheckpointsOfOtherDatasets() {
+		insertRow(1, ImportCheckpoint.UNPUBLISHED);
+		insertRow(2, new Instant(1200000000000L));
+		repository.saveCheckpoint(new ImportCheckpoint("dataset1", "file.txt", "CheckpointedRecords", 1000));
+
+		repository.discardOtherDatasets("dataset2");
+
+		assertNull(repository.getCheckpoint("dataset1", "file.txt"));
+		assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckpointedRecords"));
+		assertEquals(new Timestamp(1200000000000L), validFromOf(2));
+	}
+
+	private void insertRow(int number, Instant validFrom) {
+		Timestamp time = new Timestamp(validFrom.getMillis());
+		jdbcTemplate.update("INSERT INTO CheckpointedRecords (Number, ValidFrom, ModifiedDate) VALUES (?, ?, ?)", number, time, time);
+	}
+
+	private Timestamp validFromOf(int number) {
+		return jdbcTemplate.queryForObject("SELECT ValidFrom FROM CheckpointedRecords WHERE Number=?", Timestamp.class, number);
+	}
+}
@@ -0,0 +1,2 @@
+CREATE TABLE IF NOT EXISTS fakeParserImportCheckpoint (Dataset VARCHAR(255) NOT NULL, File VARCHAR(255) NOT NULL, TableName VARCHAR(64) NOT NULL, ByteOffset BIGINT NOT NULL, PRIMARY KEY (Dataset, File))
+CREATE TABLE IF NOT EXISTS CheckpointedRecords (Number INTEGER, ValidFrom TIMESTAMP, ValidTo TIMESTAMP, ModifiedDate TIMESTAMP)